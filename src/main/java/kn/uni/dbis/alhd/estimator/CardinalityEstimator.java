@@ -2,16 +2,28 @@ package kn.uni.dbis.alhd.estimator;
 
 import kn.uni.dbis.alhd.queries.CypherPattern;
 import kn.uni.dbis.alhd.queries.CypherQuery;
+import kn.uni.dbis.alhd.queries.PropSelection;
 import kn.uni.dbis.alhd.statistics.GraphStatistics;
 
+import java.util.*;
+
 public final class CardinalityEstimator {
 
 	private final GraphStatistics stats;
 	private final GADbProperties dbProps;
 
 	public CardinalityEstimator(final GraphStatistics stats, final LabelDistribution dist, final boolean simplified) {
+		this(stats, dist, simplified, false);
+	}
+
+	/**
+	 * Creates an estimator which optionally stores label fractions in single precision,
+	 * see {@link GADbProperties#labelVector(double[])}.
+	 */
+	public CardinalityEstimator(final GraphStatistics stats, final LabelDistribution dist, final boolean simplified,
+			final boolean singlePrecision) {
 		this.stats = stats;
-		this.dbProps = new GraphDBProperties(dist, stats, simplified);
+		this.dbProps = new GraphDBProperties(dist, stats, simplified, singlePrecision);
 	}
 
 	public double estimate(final CypherPattern pattern, final boolean useNewJoin, final Double staticSelectivity) {
@@ -31,4 +43,90 @@ public final class CardinalityEstimator {
 	public double estimate_(final CypherQuery query) {
 		return estimate(query, true, null);
 	}
+
+	/**
+	 * Estimates the query over all connected expansion orders of its components, combining the alternatives
+	 * with the given aggregate, see {@link SubPatternEnumerator}.
+	 */
+	public double estimateAllOrders(final CypherQuery query, final boolean useNewJoin, final Double staticSelectivity,
+			final SubPatternEnumerator.Aggregate aggregate) {
+		final CompiledQuery compiled = CompiledQuery.compile(this.stats, query);
+		return new SubPatternEnumerator(this.dbProps, compiled, useNewJoin, staticSelectivity, aggregate).estimate()
+				.getSize();
+	}
+
+	public double estimateAllOrders(final CypherQuery query, final SubPatternEnumerator.Aggregate aggregate) {
+		return estimateAllOrders(query, true, null, aggregate);
+	}
+
+	/**
+	 * Estimates every connected sub-query with at least two node variables, keyed by its node set as in
+	 * {@link CypherQuery#connectedSubsets(int, int, boolean)}. Each sub-query is estimated by extending the estimate
+	 * of one of its sub-queries with one node less, see {@link SubPatternEnumerator}.
+	 */
+	public Map<BitSet, Double> estimateAllSubqueries(final CypherQuery query, final boolean useNewJoin,
+			final Double staticSelectivity, final SubPatternEnumerator.Aggregate aggregate) {
+		final CompiledQuery compiled = CompiledQuery.compile(this.stats, query);
+		final SubPatternEnumerator enumerator = new SubPatternEnumerator(this.dbProps, compiled, useNewJoin,
+				staticSelectivity, aggregate);
+		// node slots of the compiled query by position in the sorted node variables
+		final List<String> sorted = query.sortedNodeVars();
+		final int[] slots = new int[sorted.size()];
+		for (int i = 0; i < compiled.numNodes(); i++) {
+			slots[Collections.binarySearch(sorted, compiled.nodeName(i))] = i;
+		}
+		final Map<BitSet, Double> estimates = new LinkedHashMap<>();
+		query.connectedSubsets(2, sorted.size(), false).forEach(nodes -> {
+			final BitSet slotSet = new BitSet();
+			nodes.stream().forEach(n -> slotSet.set(slots[n]));
+			estimates.put(nodes, enumerator.properties(slotSet).getSize());
+		});
+		return estimates;
+	}
+
+	public Map<BitSet, Double> estimateAllSubqueries(final CypherQuery query) {
+		return estimateAllSubqueries(query, true, null, SubPatternEnumerator.Aggregate.FIRST);
+	}
+
+	/**
+	 * Starts a pattern of a single node variable that can be extended one relationship at a time,
+	 * see {@link IncrementalEstimate#extend}.
+	 */
+	public IncrementalEstimate startPattern(final String var, final Collection<String> labels,
+			final Map<String, PropSelection> predicates, final boolean useNewJoin, final Double staticSelectivity) {
+		return IncrementalEstimate.start(this.stats, this.dbProps, useNewJoin, staticSelectivity, var, labels, predicates);
+	}
+
+	public IncrementalEstimate startPattern(final String var, final String... labels) {
+		return startPattern(var, Arrays.asList(labels), Collections.emptyMap(), true, null);
+	}
+
+	/**
+	 * Estimates the query such that the estimate can be extended one relationship at a time,
+	 * see {@link IncrementalEstimate#extend}.
+	 */
+	public IncrementalEstimate incremental(final CypherQuery query, final boolean useNewJoin,
+			final Double staticSelectivity) {
+		return IncrementalEstimate.of(this.stats, this.dbProps, CompiledQuery.compile(this.stats, query), useNewJoin,
+				staticSelectivity);
+	}
+
+	public IncrementalEstimate incremental(final CypherQuery query) {
+		return incremental(query, true, null);
+	}
+
+	/**
+	 * Prepares a reusable plan for queries that only differ from the given template in the values of their
+	 * property predicates, see {@link EstimationPlan#estimate(java.util.Map)}.
+	 */
+	public EstimationPlan prepare(final CypherQuery template, final boolean useNewJoin, final Double staticSelectivity) {
+		final CompiledQuery compiled = CompiledQuery.compile(this.stats, template);
+		final Expression expression = PatternToTreeConverter.mapToAlgebraExpression(this.dbProps, compiled, useNewJoin,
+				staticSelectivity, true);
+		return new EstimationPlan(compiled, this.stats.getPropertyIDs(), expression);
+	}
+
+	public EstimationPlan prepare(final CypherQuery template) {
+		return prepare(template, true, null);
+	}
 }
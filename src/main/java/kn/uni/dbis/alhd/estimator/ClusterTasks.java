@@ -0,0 +1,157 @@
+package kn.uni.dbis.alhd.estimator;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Fork-join execution of the per-label and per-cluster loops of the operators for databases with many labels.
+ *
+ * Below {@link #THRESHOLD} labels, or with a single set of overlapping labels, all loops run sequentially on the
+ * calling thread. Above it, the work is split into tasks along the sets of the label hierarchy. The loop bodies
+ * must be independent of each other: per-label bodies may only write the entries of their own label and
+ * per-cluster results are returned in the order of {@link GADbProperties#labelPartition()}, so that the results
+ * do not depend on the scheduling.
+ */
+public final class ClusterTasks {
+
+    /**
+     * Minimum number of labels for running loops in parallel, set by the system property
+     * {@code alhd.parallelLabels}.
+     */
+    public static final int THRESHOLD = Integer.getInteger("alhd.parallelLabels", 4096);
+
+    /** Number of labels below which a task is not split any further. */
+    private static final int GRAIN = 256;
+
+    private ClusterTasks() {
+    }
+
+    /**
+     * Returns whether loops over the labels of the given database are run in parallel.
+     *
+     * @param dbProps database properties
+     * @return whether the database has enough labels and more than one set of overlapping labels
+     */
+    public static boolean isParallel(final GADbProperties dbProps) {
+        return dbProps.labelIds().length >= THRESHOLD && dbProps.labelPartition().size() > 1;
+    }
+
+    /**
+     * Runs the given body for every label of the database. In sequential mode, the labels are visited in ascending
+     * order.
+     *
+     * @param dbProps database properties
+     * @param body the loop body, called with the label ID
+     */
+    public static void forEachLabel(final GADbProperties dbProps, final IntConsumer body) {
+        if (!isParallel(dbProps)) {
+            for (final int l : dbProps.labelIds()) {
+                body.accept(l);
+            }
+            return;
+        }
+        // the labels grouped by set of overlapping labels, with the start of each set
+        final List<Set<Integer>> partition = dbProps.labelPartition();
+        final int[] labels = new int[dbProps.labelIds().length];
+        final int[] starts = new int[partition.size() + 1];
+        int pos = 0;
+        for (int i = 0; i < partition.size(); i++) {
+            starts[i] = pos;
+            for (final int l : partition.get(i)) {
+                labels[pos++] = l;
+            }
+        }
+        starts[partition.size()] = pos;
+        new LabelRange(labels, starts, 0, pos, body).invoke();
+    }
+
+    /**
+     * Computes a result for every set of overlapping labels.
+     *
+     * @param dbProps database properties
+     * @param perCluster computes the result of the set with the given index in
+     *                   {@link GADbProperties#labelPartition()}
+     * @param <T> type of the results
+     * @return the results in the order of the sets
+     */
+    public static <T> List<T> mapClusters(final GADbProperties dbProps, final IntFunction<T> perCluster) {
+        final int n = dbProps.labelPartition().size();
+        final Object[] results = new Object[n];
+        if (!isParallel(dbProps)) {
+            for (int i = 0; i < n; i++) {
+                results[i] = perCluster.apply(i);
+            }
+        } else {
+            final List<RecursiveAction> tasks = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                final int cluster = i;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        results[cluster] = perCluster.apply(cluster);
+                    }
+                });
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
+        @SuppressWarnings("unchecked")
+        final List<T> list = (List<T>) Arrays.asList(results);
+        return list;
+    }
+
+    /**
+     * Task running the loop body for a range of the grouped labels, split at the boundaries of the sets of
+     * overlapping labels where possible.
+     */
+    private static final class LabelRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** Labels grouped by set. */
+        private final int[] labels;
+
+        /** Start of each set in {@link #labels}, followed by the number of labels. */
+        private final int[] starts;
+
+        /** Range of positions in {@link #labels} of this task. */
+        private final int from, to;
+
+        /** The loop body. */
+        private final IntConsumer body;
+
+        LabelRange(final int[] labels, final int[] starts, final int from, final int to, final IntConsumer body) {
+            this.labels = labels;
+            this.starts = starts;
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= GRAIN) {
+                for (int i = this.from; i < this.to; i++) {
+                    this.body.accept(this.labels[i]);
+                }
+                return;
+            }
+            // split at the set boundary closest to the middle, or in the middle of a single large set
+            final int mid = (this.from + this.to) >>> 1;
+            int split = mid;
+            final int idx = Arrays.binarySearch(this.starts, mid);
+            if (idx < 0) {
+                final int after = -idx - 1;
+                final int lower = this.starts[after - 1];
+                final int upper = after < this.starts.length ? this.starts[after] : this.to;
+                final int best = mid - lower <= upper - mid ? lower : upper;
+                if (best > this.from && best < this.to) {
+                    split = best;
+                }
+            }
+            invokeAll(new LabelRange(this.labels, this.starts, this.from, split, this.body),
+                    new LabelRange(this.labels, this.starts, split, this.to, this.body));
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.queries.CypherPattern;
+import kn.uni.dbis.alhd.queries.CypherQuery;
+import kn.uni.dbis.alhd.queries.PropSelection;
+import kn.uni.dbis.alhd.statistics.GraphStatistics;
+import kn.uni.dbis.alhd.util.UnionFind;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Compact form of a {@link CypherQuery} in which all names are resolved against the graph statistics.
+ *
+ * Node variables are numbered densely from {@code 0} in the order of the pattern's node map and relationships in
+ * the order of the pattern's relationship list. Labels, types and properties are replaced by their IDs, and the
+ * weakly connected components of the pattern are precomputed together with the order in which their
+ * relationships are expanded. The names of the variables used in the operator tree, including the generated
+ * relationship and temporary variables, are fixed during compilation. Their IDs in the operator tree are derived
+ * from the slots, see {@link #relationshipId(int)} and {@link #temporaryId(int)}, so they are only valid for trees
+ * built from this query.
+ */
+public final class CompiledQuery {
+
+    /** The compiled query. */
+    private final CypherQuery query;
+
+    /** Names of the node variables, indexed by slot. */
+    private final String[] nodeNames;
+
+    /** Label IDs required at each node variable. */
+    private final int[][] nodeLabels;
+
+    /** Property predicates on each node variable, keyed by property ID. */
+    private final List<Map<Integer, PropSelection>> nodePredicates;
+
+    /** Number of relationship end points at each node variable. */
+    private final int[] degrees;
+
+    /** Source node slot of each relationship. */
+    private final int[] sources;
+
+    /** Target node slot of each relationship. */
+    private final int[] targets;
+
+    /** Whether each relationship is directed. */
+    private final boolean[] directed;
+
+    /** Allowed type IDs of each relationship, {@code -1} stands for any type. */
+    private final List<Set<Integer>> types;
+
+    /** Property predicates on each relationship, keyed by property ID. */
+    private final List<Map<Integer, PropSelection>> relationshipPredicates;
+
+    /** Variable of each relationship in the operator tree. */
+    private final String[] relationshipVariables;
+
+    /** Temporary target variable of each cycle-closing relationship, {@code null} for all others. */
+    private final String[] temporaryVariables;
+
+    /** The weakly connected components. */
+    private final List<Component> components;
+
+    private CompiledQuery(final CypherQuery query, final String[] nodeNames, final int[][] nodeLabels,
+                          final List<Map<Integer, PropSelection>> nodePredicates, final int[] degrees,
+                          final int[] sources, final int[] targets, final boolean[] directed,
+                          final List<Set<Integer>> types,
+                          final List<Map<Integer, PropSelection>> relationshipPredicates,
+                          final String[] relationshipVariables, final String[] temporaryVariables,
+                          final List<Component> components) {
+        this.query = query;
+        this.nodeNames = nodeNames;
+        this.nodeLabels = nodeLabels;
+        this.nodePredicates = nodePredicates;
+        this.degrees = degrees;
+        this.sources = sources;
+        this.targets = targets;
+        this.directed = directed;
+        this.types = types;
+        this.relationshipPredicates = relationshipPredicates;
+        this.relationshipVariables = relationshipVariables;
+        this.temporaryVariables = temporaryVariables;
+        this.components = components;
+    }
+
+    /**
+     * Compiles the given query.
+     *
+     * @param stats graph statistics used to resolve label, type and property names
+     * @param query the query
+     * @return the compiled query
+     * @throws NoSuchElementException if a label or type of the query is unknown
+     */
+    public static CompiledQuery compile(final GraphStatistics stats, final CypherQuery query) {
+        final CypherPattern pattern = query.getPattern();
+        final Map<String, Set<String>> nodeVars = pattern.getNodeVars();
+        final List<CypherPattern.Relationship> rels = pattern.getRelationships();
+        final Map<String, Integer> propIDs = stats.getPropertyIDs();
+
+        final String[] nodeNames = nodeVars.keySet().toArray(String[]::new);
+        final Map<String, Integer> varToPos = new HashMap<>();
+        for (int i = 0; i < nodeNames.length; i++) {
+            varToPos.put(nodeNames[i], i);
+        }
+
+        final int[][] nodeLabels = new int[nodeNames.length][];
+        final List<Map<Integer, PropSelection>> nodePredicates = new ArrayList<>(nodeNames.length);
+        for (int i = 0; i < nodeNames.length; i++) {
+            nodeLabels[i] = nodeVars.get(nodeNames[i]).stream()
+                    .mapToInt(lbl -> stats.getLabelID(lbl).orElseThrow()).toArray();
+            nodePredicates.add(resolve(propIDs, query.getNodePredicates().get(nodeNames[i])));
+        }
+
+        final int numRels = rels.size();
+        final int[] sources = new int[numRels];
+        final int[] targets = new int[numRels];
+        final boolean[] directed = new boolean[numRels];
+        final List<Set<Integer>> types = new ArrayList<>(numRels);
+        final List<Map<Integer, PropSelection>> relPredicates = new ArrayList<>(numRels);
+        final int[] degrees = new int[nodeNames.length];
+        final BitSet[] incident = new BitSet[nodeNames.length];
+        Arrays.setAll(incident, i -> new BitSet(numRels));
+        final int[] unionFind = new int[nodeNames.length];
+        Arrays.fill(unionFind, -1);
+        for (int i = 0; i < numRels; i++) {
+            final CypherPattern.Relationship rel = rels.get(i);
+            sources[i] = varToPos.get(rel.getSource());
+            targets[i] = varToPos.get(rel.getTarget());
+            directed[i] = rel.isDirected();
+            final List<String> typeNames = rel.getTypes();
+            types.add(typeNames.isEmpty() ? Collections.singleton(-1)
+                    : typeNames.stream().map(tp -> stats.getTypeID(tp).orElseThrow()).collect(Collectors.toSet()));
+            relPredicates.add(resolve(propIDs, query.getEdgePredicates().get(rel.name())));
+            for (final int v : new int[] { sources[i], targets[i] }) {
+                incident[v].set(i);
+                degrees[v]++;
+            }
+            UnionFind.union(unionFind, sources[i], targets[i]);
+        }
+
+        // gather the nodes and relationships of each component, ordered by the ID of the component
+        final SortedMap<Integer, Set<String>> compNodes = new TreeMap<>();
+        for (int i = 0; i < nodeNames.length; i++) {
+            compNodes.computeIfAbsent(UnionFind.find(unionFind, i), k -> new HashSet<>()).add(nodeNames[i]);
+        }
+        final Map<Integer, BitSet> compRels = new HashMap<>();
+        for (int i = 0; i < numRels; i++) {
+            compRels.computeIfAbsent(UnionFind.find(unionFind, sources[i]), k -> new BitSet()).set(i);
+        }
+
+        int varGen = 0;
+        final String[] relVars = new String[numRels];
+        final String[] tempVars = new String[numRels];
+        final List<Component> components = new ArrayList<>(compNodes.size());
+        for (final Map.Entry<Integer, Set<String>> e : compNodes.entrySet()) {
+            // initial node in the component, chosen as the one with the most neighbors
+            final int start = e.getValue().stream().map(varToPos::get)
+                    .max(Comparator.comparing(v -> incident[v].cardinality())).orElseThrow();
+            final BitSet relSet = compRels.getOrDefault(e.getKey(), new BitSet());
+
+            // breadth-first order of the relationships, cycle-closing ones are deferred to the end
+            final BitSet nodesSeen = new BitSet();
+            nodesSeen.set(start);
+            final Deque<Integer> relDeque = new ArrayDeque<>();
+            incident[start].stream().forEach(relDeque::addLast);
+            final BitSet pending = (BitSet) relSet.clone();
+            pending.andNot(incident[start]);
+            final List<Integer> steps = new ArrayList<>();
+            final List<Integer> cycles = new ArrayList<>();
+            while (!relDeque.isEmpty()) {
+                final int rel = relDeque.pollFirst();
+                final int newNode;
+                if (nodesSeen.get(sources[rel])) {
+                    if (nodesSeen.get(targets[rel])) {
+                        cycles.add(rel);
+                        continue;
+                    }
+                    newNode = targets[rel];
+                } else if (nodesSeen.get(targets[rel])) {
+                    newNode = sources[rel];
+                } else {
+                    throw new AssertionError();
+                }
+                steps.add(rel);
+                relVars[rel] = "$e" + varGen++;
+                incident[newNode].stream().filter(pending::get).forEach(r -> {
+                    pending.clear(r);
+                    relDeque.addLast(r);
+                });
+                nodesSeen.set(newNode);
+            }
+            for (final int rel : cycles) {
+                tempVars[rel] = "$v" + varGen++;
+                relVars[rel] = "$e" + varGen++;
+            }
+            components.add(new Component(start, steps.stream().mapToInt(Integer::intValue).toArray(),
+                    cycles.stream().mapToInt(Integer::intValue).toArray()));
+        }
+
+        return new CompiledQuery(query, nodeNames, nodeLabels, nodePredicates, degrees, sources, targets, directed,
+                types, relPredicates, relVars, tempVars, List.copyOf(components));
+    }
+
+    private static Map<Integer, PropSelection> resolve(final Map<String, Integer> propIDs,
+                                                       final Map<String, PropSelection> preds) {
+        return preds == null || preds.isEmpty() ? Collections.emptyMap() : preds.entrySet().stream()
+                .collect(Collectors.toMap(e -> propIDs.get(e.getKey()), Map.Entry::getValue));
+    }
+
+    /**
+     * Returns the compiled query.
+     *
+     * @return the query
+     */
+    public CypherQuery getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Returns the number of node variables.
+     *
+     * @return the number of node slots
+     */
+    public int numNodes() {
+        return this.nodeNames.length;
+    }
+
+    /**
+     * Returns the number of relationships.
+     *
+     * @return the number of relationship slots
+     */
+    public int numRelationships() {
+        return this.sources.length;
+    }
+
+    /**
+     * Returns the name of the node variable in the given slot.
+     *
+     * @param node node slot
+     * @return the variable name
+     */
+    public String nodeName(final int node) {
+        return this.nodeNames[node];
+    }
+
+    /**
+     * Returns the label IDs required at the node variable in the given slot.
+     *
+     * @param node node slot
+     * @return the label IDs
+     */
+    public int[] nodeLabels(final int node) {
+        return this.nodeLabels[node];
+    }
+
+    /**
+     * Returns the property predicates on the node variable in the given slot.
+     *
+     * @param node node slot
+     * @return the predicates keyed by property ID, possibly empty
+     */
+    public Map<Integer, PropSelection> nodePredicates(final int node) {
+        return this.nodePredicates.get(node);
+    }
+
+    /**
+     * Returns the number of relationship end points at the node variable in the given slot.
+     *
+     * @param node node slot
+     * @return the degree of the node variable in the pattern
+     */
+    public int degree(final int node) {
+        return this.degrees[node];
+    }
+
+    /**
+     * Returns the source node slot of the given relationship.
+     *
+     * @param rel relationship slot
+     * @return the source node slot
+     */
+    public int source(final int rel) {
+        return this.sources[rel];
+    }
+
+    /**
+     * Returns the target node slot of the given relationship.
+     *
+     * @param rel relationship slot
+     * @return the target node slot
+     */
+    public int target(final int rel) {
+        return this.targets[rel];
+    }
+
+    /**
+     * Returns whether the given relationship is directed.
+     *
+     * @param rel relationship slot
+     * @return whether the relationship is directed
+     */
+    public boolean isDirected(final int rel) {
+        return this.directed[rel];
+    }
+
+    /**
+     * Returns the allowed type IDs of the given relationship.
+     *
+     * @param rel relationship slot
+     * @return the type IDs, {@code -1} stands for any type
+     */
+    public Set<Integer> types(final int rel) {
+        return this.types.get(rel);
+    }
+
+    /**
+     * Returns the property predicates on the given relationship.
+     *
+     * @param rel relationship slot
+     * @return the predicates keyed by property ID, possibly empty
+     */
+    public Map<Integer, PropSelection> relationshipPredicates(final int rel) {
+        return this.relationshipPredicates.get(rel);
+    }
+
+    /**
+     * Returns the variable of the given relationship in the operator tree.
+     *
+     * @param rel relationship slot
+     * @return the relationship variable
+     */
+    public String relationshipVariable(final int rel) {
+        return this.relationshipVariables[rel];
+    }
+
+    /**
+     * Returns the number of variable IDs of the operator tree, see {@link #relationshipId(int)} and
+     * {@link #temporaryId(int)}.
+     *
+     * @return one more than the largest variable ID
+     */
+    public int numVariables() {
+        return this.nodeNames.length + 2 * this.sources.length;
+    }
+
+    /**
+     * Returns the ID of the variable of the given relationship in the operator tree. Node variables use their slot
+     * as ID, and the relationship variables follow them.
+     *
+     * @param rel relationship slot
+     * @return the ID of the relationship variable
+     */
+    public int relationshipId(final int rel) {
+        return this.nodeNames.length + rel;
+    }
+
+    /**
+     * Returns the ID of the temporary target variable of the given relationship in the operator tree, which comes
+     * after all node and relationship variables. The ID is reserved for every relationship, also if it does not
+     * close a cycle in the expansion order of its component.
+     *
+     * @param rel relationship slot
+     * @return the ID of the temporary variable
+     */
+    public int temporaryId(final int rel) {
+        return this.nodeNames.length + this.sources.length + rel;
+    }
+
+    /**
+     * Returns the temporary target variable used for closing the cycle of the given relationship.
+     *
+     * @param rel relationship slot
+     * @return the temporary variable, or {@code null} if the relationship does not close a cycle
+     */
+    public String temporaryVariable(final int rel) {
+        return this.temporaryVariables[rel];
+    }
+
+    /**
+     * Returns the weakly connected components of the pattern.
+     *
+     * @return the components
+     */
+    public List<Component> components() {
+        return this.components;
+    }
+
+    /**
+     * A weakly connected component of the pattern together with its expansion order.
+     */
+    public static final class Component {
+
+        /** Slot of the node variable the component is built from. */
+        private final int start;
+
+        /** Relationships adding a new node variable, in breadth-first order. */
+        private final int[] steps;
+
+        /** Relationships closing a cycle, in the order they are added after all steps. */
+        private final int[] cycles;
+
+        private Component(final int start, final int[] steps, final int[] cycles) {
+            this.start = start;
+            this.steps = steps;
+            this.cycles = cycles;
+        }
+
+        /**
+         * Returns the node slot the component is built from.
+         *
+         * @return the start node slot
+         */
+        public int start() {
+            return this.start;
+        }
+
+        /**
+         * Returns the relationships adding a new node variable, in breadth-first order.
+         *
+         * @return the relationship slots
+         */
+        public int[] steps() {
+            return this.steps.clone();
+        }
+
+        /**
+         * Returns the relationships closing a cycle.
+         *
+         * @return the relationship slots
+         */
+        public int[] cycles() {
+            return this.cycles.clone();
+        }
+    }
+}
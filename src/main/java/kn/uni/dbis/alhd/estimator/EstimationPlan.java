@@ -0,0 +1,313 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.estimator.operators.ExpandSelect;
+import kn.uni.dbis.alhd.estimator.operators.GALogicalOperator;
+import kn.uni.dbis.alhd.estimator.operators.PropertySelection;
+import kn.uni.dbis.alhd.queries.CypherPattern;
+import kn.uni.dbis.alhd.queries.PropSelection;
+
+import java.util.*;
+
+/**
+ * Reusable estimation plan of a query template whose property predicates are parameters.
+ *
+ * The operator sequence is fixed when the plan is prepared and the logical properties of all operators are
+ * computed once with the predicates of the template. {@link #estimate(Map)} then only re-evaluates the property
+ * selections whose predicates are bound to new values and the operators downstream of them, reusing the
+ * cached results of everything else. For fused expansions, the result of the expansion itself is cached as well,
+ * so that only the selections are applied again.
+ *
+ * Plans are immutable and can be used by several threads at once.
+ */
+public final class EstimationPlan {
+
+    /** The compiled template. */
+    private final CompiledQuery template;
+
+    /** IDs of the property names. */
+    private final Map<String, Integer> propertyIds;
+
+    /** Operators of the plan, every operator comes after its inputs. */
+    private final GALogicalOperator[] operators;
+
+    /** Positions of the inputs of each operator. */
+    private final int[][] inputs;
+
+    /** Logical properties of each operator for the template. */
+    private final GAResultProperties[] results;
+
+    /** Size of the expansion of fused operators with property selections. */
+    private final double[] expandedSizes;
+
+    /**
+     * Label fractions after the expansion of fused operators with property selections, {@code null} otherwise
+     * and if the input is empty.
+     */
+    private final LabelVector[][] expandedFractions;
+
+    /**
+     * Variables of the operator tree for the node variables and relationship names of the template. Parallel
+     * relationships share their name and predicates, so a name stands for all of their variables.
+     */
+    private final Map<String, List<String>> variables;
+
+    /** Positions of the operators with property selections on each variable of the operator tree. */
+    private final Map<String, int[]> selections;
+
+    /**
+     * Creates the plan for the given operator tree.
+     *
+     * @param template the compiled template
+     * @param propertyIds IDs of the property names
+     * @param expression operator tree of the template
+     */
+    EstimationPlan(final CompiledQuery template, final Map<String, Integer> propertyIds,
+                   final Expression expression) {
+        this.template = template;
+        this.propertyIds = propertyIds;
+
+        final List<Expression> flat = new ArrayList<>();
+        final Map<Expression, Integer> positions = new IdentityHashMap<>();
+        flatten(expression, flat, positions);
+        final int n = flat.size();
+        this.operators = new GALogicalOperator[n];
+        this.inputs = new int[n][];
+        this.results = new GAResultProperties[n];
+        this.expandedSizes = new double[n];
+        this.expandedFractions = new LabelVector[n][];
+        final Map<String, List<Integer>> selections = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            final Expression expr = flat.get(i);
+            final GALogicalOperator op = expr.getOperator();
+            this.operators[i] = op;
+            this.inputs[i] = expr.getInputs().stream().mapToInt(positions::get).toArray();
+            this.results[i] = expr.getLogicalProperties();
+            if (op instanceof PropertySelection) {
+                selections.computeIfAbsent(((PropertySelection) op).getVariable(), k -> new ArrayList<>()).add(i);
+            } else if (op instanceof ExpandSelect) {
+                final ExpandSelect es = (ExpandSelect) op;
+                final int pos = i;
+                for (final PropertySelection sel : Arrays.asList(es.getRelationshipSelection(), es.getNodeSelection())) {
+                    if (sel != null) {
+                        selections.computeIfAbsent(sel.getVariable(), k -> new ArrayList<>()).add(pos);
+                    }
+                }
+                if ((es.getRelationshipSelection() != null || es.getNodeSelection() != null)
+                        && this.results[this.inputs[i][0]].getSize() != 0) {
+                    this.expandedFractions[i] = new LabelVector[2];
+                    this.expandedSizes[i] = es.getExpand().expand(this.results[this.inputs[i][0]],
+                            this.expandedFractions[i]);
+                }
+            }
+        }
+        this.selections = new HashMap<>();
+        selections.forEach((k, v) -> this.selections.put(k, v.stream().mapToInt(Integer::intValue).toArray()));
+
+        this.variables = new HashMap<>();
+        for (int i = 0; i < template.numNodes(); i++) {
+            this.variables.put(template.nodeName(i), List.of(template.nodeName(i)));
+        }
+        final List<CypherPattern.Relationship> rels = template.getQuery().getPattern().getRelationships();
+        for (int i = 0; i < rels.size(); i++) {
+            this.variables.computeIfAbsent(rels.get(i).name(), k -> new ArrayList<>())
+                    .add(template.relationshipVariable(i));
+        }
+    }
+
+    private static void flatten(final Expression expr, final List<Expression> out,
+                                final Map<Expression, Integer> positions) {
+        if (positions.containsKey(expr)) {
+            // shared sub-expression
+            return;
+        }
+        for (final Expression in : expr.getInputs()) {
+            flatten(in, out, positions);
+        }
+        positions.put(expr, out.size());
+        out.add(expr);
+    }
+
+    /**
+     * Returns the parameters of the plan, i.e. the properties with predicates in the template.
+     *
+     * @return map from node variables and relationship names to the names of their parameterized properties
+     */
+    public Map<String, Set<String>> parameters() {
+        final Map<String, Set<String>> params = new HashMap<>();
+        for (final Map<String, Map<String, PropSelection>> preds : Arrays.asList(
+                this.template.getQuery().getNodePredicates(), this.template.getQuery().getEdgePredicates())) {
+            preds.forEach((var, p) -> {
+                if (!p.isEmpty()) {
+                    params.computeIfAbsent(var, k -> new TreeSet<>()).addAll(p.keySet());
+                }
+            });
+        }
+        return params;
+    }
+
+    /**
+     * Returns the estimate for the predicates of the template.
+     *
+     * @return the estimated number of matched subgraphs
+     */
+    public double estimate() {
+        return this.results[this.results.length - 1].getSize();
+    }
+
+    /**
+     * Estimates the query with some of the template's predicates replaced.
+     *
+     * @param bindings map from node variables and relationship names to the new predicates of their properties,
+     *                 unbound properties keep the predicates of the template
+     * @return the estimated number of matched subgraphs
+     * @throws IllegalArgumentException if a bound property has no predicate in the template
+     */
+    public double estimate(final Map<String, Map<String, PropSelection>> bindings) {
+        return this.estimateAll(List.of(bindings))[0];
+    }
+
+    /**
+     * Estimates the query for many bindings of the template's predicates at once, see {@link #estimate(Map)}.
+     *
+     * The operators are evaluated one after the other for all bindings. Rebound selections whose input is the
+     * same as in the template are evaluated together, with the label fractions of all bindings in one block.
+     *
+     * @param bindings the bindings
+     * @return the estimated number of matched subgraphs for each binding, in the same order
+     * @throws IllegalArgumentException if a bound property has no predicate in the template
+     */
+    public double[] estimateAll(final List<Map<String, Map<String, PropSelection>>> bindings) {
+        final int rows = bindings.size();
+        final List<Map<Integer, Map<String, Map<Integer, PropSelection>>>> bound = new ArrayList<>(rows);
+        for (final Map<String, Map<String, PropSelection>> b : bindings) {
+            bound.add(this.bind(b));
+        }
+
+        // results of each operator per binding, null where they are the same as for the template
+        final int n = this.operators.length;
+        final GAResultProperties[][] current = new GAResultProperties[n][];
+        final int[] batch = new int[rows];
+        for (int i = 0; i < n; i++) {
+            final GALogicalOperator op = this.operators[i];
+            final boolean batchable = op instanceof PropertySelection || this.expandedFractions[i] != null;
+            int batchSize = 0;
+            for (int r = 0; r < rows; r++) {
+                boolean inputChanged = false;
+                for (final int in : this.inputs[i]) {
+                    inputChanged |= current[in] != null && current[in][r] != null;
+                }
+                final Map<String, Map<Integer, PropSelection>> overrides = bound.get(r).get(i);
+                if (!inputChanged && overrides == null) {
+                    continue;
+                }
+                if (current[i] == null) {
+                    current[i] = new GAResultProperties[rows];
+                }
+                if (!inputChanged && batchable) {
+                    batch[batchSize++] = r;
+                    continue;
+                }
+                final GALogicalOperator rebound = overrides == null ? op : rebind(op, overrides);
+                final List<GAResultProperties> inputProps = new ArrayList<>(this.inputs[i].length);
+                for (final int in : this.inputs[i]) {
+                    inputProps.add(this.result(current, in, r));
+                }
+                current[i][r] = Expression.evaluate(rebound, inputProps);
+            }
+            if (batchSize > 0) {
+                // rebound selections on the unchanged input of the template
+                final GAResultProperties input = this.results[this.inputs[i][0]];
+                final GAResultProperties[] out;
+                if (input.getSize() == 0) {
+                    out = new GAResultProperties[batchSize];
+                    Arrays.fill(out, input);
+                } else if (op instanceof ExpandSelect) {
+                    final ExpandSelect[] ops = new ExpandSelect[batchSize];
+                    for (int k = 0; k < batchSize; k++) {
+                        ops[k] = (ExpandSelect) rebind(op, bound.get(batch[k]).get(i));
+                    }
+                    out = ExpandSelect.select(ops, input, this.expandedSizes[i], this.expandedFractions[i]);
+                } else {
+                    final PropertySelection[] ops = new PropertySelection[batchSize];
+                    for (int k = 0; k < batchSize; k++) {
+                        ops[k] = (PropertySelection) rebind(op, bound.get(batch[k]).get(i));
+                    }
+                    out = PropertySelection.select(ops, input);
+                }
+                for (int k = 0; k < batchSize; k++) {
+                    current[i][batch[k]] = out[k];
+                }
+            }
+        }
+
+        final double[] estimates = new double[rows];
+        for (int r = 0; r < rows; r++) {
+            estimates[r] = this.result(current, n - 1, r).getSize();
+        }
+        return estimates;
+    }
+
+    private GAResultProperties result(final GAResultProperties[][] current, final int pos, final int row) {
+        return current[pos] == null || current[pos][row] == null ? this.results[pos] : current[pos][row];
+    }
+
+    /**
+     * Resolves the given bindings to the new predicates per operator position and selection variable. A binding
+     * of a relationship name applies to all parallel relationships sharing it.
+     */
+    private Map<Integer, Map<String, Map<Integer, PropSelection>>> bind(
+            final Map<String, Map<String, PropSelection>> bindings) {
+        final Map<Integer, Map<String, Map<Integer, PropSelection>>> bound = new HashMap<>();
+        for (final Map.Entry<String, Map<String, PropSelection>> e : bindings.entrySet()) {
+            final List<String> variables = this.variables.getOrDefault(e.getKey(), List.of());
+            for (final Map.Entry<String, PropSelection> p : e.getValue().entrySet()) {
+                final Integer property = this.propertyIds.get(p.getKey());
+                boolean found = false;
+                for (final String variable : property == null ? List.<String>of() : variables) {
+                    for (final int pos : this.selections.getOrDefault(variable, new int[0])) {
+                        if (selection(this.operators[pos], variable).getPredicates().containsKey(property)) {
+                            bound.computeIfAbsent(pos, k -> new HashMap<>())
+                                    .computeIfAbsent(variable, k -> new HashMap<>()).put(property, p.getValue());
+                            found = true;
+                        }
+                    }
+                }
+                if (!found) {
+                    throw new IllegalArgumentException(
+                            "No predicate on " + e.getKey() + "." + p.getKey() + " in the template.");
+                }
+            }
+        }
+        return bound;
+    }
+
+    private static PropertySelection selection(final GALogicalOperator op, final String variable) {
+        if (op instanceof ExpandSelect) {
+            final ExpandSelect es = (ExpandSelect) op;
+            final PropertySelection rel = es.getRelationshipSelection();
+            return rel != null && rel.getVariable().equals(variable) ? rel : es.getNodeSelection();
+        }
+        return (PropertySelection) op;
+    }
+
+    private static GALogicalOperator rebind(final GALogicalOperator op,
+                                            final Map<String, Map<Integer, PropSelection>> overrides) {
+        if (op instanceof ExpandSelect) {
+            final ExpandSelect es = (ExpandSelect) op;
+            return es.withSelections(rebind(es.getRelationshipSelection(), overrides),
+                    rebind(es.getNodeSelection(), overrides));
+        }
+        return rebind((PropertySelection) op, overrides);
+    }
+
+    private static PropertySelection rebind(final PropertySelection sel,
+                                            final Map<String, Map<Integer, PropSelection>> overrides) {
+        final Map<Integer, PropSelection> preds = sel == null ? null : overrides.get(sel.getVariable());
+        if (preds == null) {
+            return sel;
+        }
+        final Map<Integer, PropSelection> merged = new HashMap<>(sel.getPredicates());
+        merged.putAll(preds);
+        return sel.withPredicates(merged);
+    }
+}
@@ -6,21 +6,64 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
+/**
+ * Node of an operator tree.
+ *
+ * The logical properties are computed lazily when they are first requested and then memoized. If an input
+ * is empty, the operator is not evaluated at all, the expression is empty as well and shares the logical
+ * properties of that input.
+ */
 public class Expression {
 
 	private final GALogicalOperator operator;
 	private final Expression[] inputs;
-	private final GAResultProperties logicalProperties;
+	private volatile GAResultProperties logicalProperties;
 
 	public Expression(GALogicalOperator operator, final Expression... inputs) {
 		this.operator = operator;
 		this.inputs = inputs;
-		final List<GAResultProperties> inputProps = Arrays.stream(this.inputs).map(Expression::getLogicalProperties).collect(Collectors.toList());
-		this.logicalProperties = this.operator.computeLogicalProperties(inputProps);
 	}
 
 	public GAResultProperties getLogicalProperties() {
-		return this.logicalProperties;
+		GAResultProperties props = this.logicalProperties;
+		if (props == null) {
+			synchronized (this) {
+				props = this.logicalProperties;
+				if (props == null) {
+					final List<GAResultProperties> inputProps = Arrays.stream(this.inputs).map(Expression::getLogicalProperties).collect(Collectors.toList());
+					props = evaluate(this.operator, inputProps);
+					this.logicalProperties = props;
+				}
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * Computes the logical properties of an operator, short-circuiting empty inputs: as all operators produce
+	 * an empty result for an empty input, the properties of the first empty input are returned unchanged.
+	 * These describe the variables of the input, not of the operator's result, which is only relevant for the
+	 * size.
+	 *
+	 * @param operator the operator
+	 * @param inputProps the logical properties of the operator's inputs
+	 * @return the logical properties of the operator's result
+	 */
+	static GAResultProperties evaluate(final GALogicalOperator operator, final List<GAResultProperties> inputProps) {
+		for (final GAResultProperties in : inputProps) {
+			if (in.getSize() == 0) {
+				return in;
+			}
+		}
+		return operator.computeLogicalProperties(inputProps);
+	}
+
+	public GALogicalOperator getOperator() {
+		return this.operator;
+	}
+
+	public List<Expression> getInputs() {
+		return List.of(this.inputs);
 	}
 
 	@Override
@@ -0,0 +1,129 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.estimator.operators.GALogicalOperator;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash-consing factory for expressions of one database, see {@link GADbProperties#expressions()}.
+ *
+ * Two expressions are identical if their operators are equal by {@link GALogicalOperator#eq} and their inputs
+ * are the same instances. The factory returns the existing expression for identical ones, so that shared
+ * sub-expressions within and across queries are created and evaluated only once. Expressions are only weakly
+ * referenced and disappear from the factory once they are no longer used elsewhere.
+ *
+ * The factory can be used by several threads at once.
+ */
+public final class ExpressionFactory {
+
+    /** The canonical expressions. */
+    private final ConcurrentHashMap<Key, Ref> expressions = new ConcurrentHashMap<>();
+
+    /** Queue of references to collected expressions, whose entries are removed. */
+    private final ReferenceQueue<Expression> collected = new ReferenceQueue<>();
+
+    /**
+     * Returns the expression applying the given operator to the given inputs, creating it if there is none yet.
+     *
+     * @param operator the operator
+     * @param inputs the inputs, which should have been created by this factory as well
+     * @return the canonical expression
+     */
+    public Expression create(final GALogicalOperator operator, final Expression... inputs) {
+        this.expunge();
+        final Key key = new Key(operator, inputs);
+        for (;;) {
+            final Ref ref = this.expressions.get(key);
+            final Expression existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            final Expression created = new Expression(operator, inputs);
+            final Ref newRef = new Ref(created, key, this.collected);
+            if (ref == null ? this.expressions.putIfAbsent(key, newRef) == null
+                    : this.expressions.replace(key, ref, newRef)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of expressions currently held by this factory.
+     *
+     * @return number of live canonical expressions
+     */
+    public int size() {
+        this.expunge();
+        return this.expressions.size();
+    }
+
+    private void expunge() {
+        for (Object ref; (ref = this.collected.poll()) != null;) {
+            this.expressions.remove(((Ref) ref).key, ref);
+        }
+    }
+
+    /**
+     * Weak reference to a canonical expression, remembering its key for removal.
+     */
+    private static final class Ref extends WeakReference<Expression> {
+        /** Key of the expression. */
+        private final Key key;
+
+        Ref(final Expression expression, final Key key, final ReferenceQueue<Expression> queue) {
+            super(expression, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Operator and input instances of an expression.
+     */
+    private static final class Key {
+        /** The operator. */
+        private final GALogicalOperator operator;
+
+        /** The inputs. */
+        private final Expression[] inputs;
+
+        /** Cached hash code. */
+        private final int hash;
+
+        Key(final GALogicalOperator operator, final Expression[] inputs) {
+            this.operator = operator;
+            this.inputs = inputs.clone();
+            int hash = operator.hash();
+            for (final Expression input : this.inputs) {
+                hash = 31 * hash + System.identityHashCode(input);
+            }
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key that = (Key) obj;
+            if (this.hash != that.hash || this.inputs.length != that.inputs.length) {
+                return false;
+            }
+            for (int i = 0; i < this.inputs.length; i++) {
+                if (this.inputs[i] != that.inputs[i]) {
+                    return false;
+                }
+            }
+            return this.operator.getClass() == that.operator.getClass() && this.operator.eq(that.operator);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
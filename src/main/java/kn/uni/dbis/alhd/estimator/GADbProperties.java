@@ -1,31 +1,96 @@
 package kn.uni.dbis.alhd.estimator;
 
 import kn.uni.dbis.alhd.queries.Direction;
+import kn.uni.dbis.alhd.queries.PropSelection;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
 
 /**
  * Represents the global logical properties of the database.
  */
 public abstract class GADbProperties {
+    /**
+     * Maximum number of predicates whose selectivities are cached, each for nodes and for relationships, set by the
+     * system property {@code alhd.selectivityCacheSize}.
+     */
+    public static final int SELECTIVITY_CACHE_SIZE = Integer.getInteger("alhd.selectivityCacheSize", 4096);
+
     /** This set describes the relations between labels. It partitions the set of labels into maximal sets of labels
      * which overlap. This is mandatory and has to include all node labels which exist in the db. */
     private final LabelDistribution labelDistribution;
 
+    /** Whether label fractions of results and precomputed tables are stored in single precision. */
+    private final boolean singlePrecision;
+
     /** The set of labels in the database. */
     private final Set<Integer> labels;
 
+    /** The labels in the database in ascending order. */
+    private final int[] labelIds;
+
+    /** The sets of overlapping labels in a fixed order. */
+    private final List<Set<Integer>> labelPartition;
+
+    /** Index of the set of overlapping labels of each label ID, {@code -1} for IDs without a label. */
+    private final int[] partitionOf;
+
+    /** Aggregated relationship counts for sets of more than one type, keyed by {@link #typeSetKey(Set)}. */
+    private final Map<BitSet, TypeSetCounts> typeSetCounts = new ConcurrentHashMap<>();
+
+    /** Label fractions of the set of all nodes, computed lazily. */
+    private volatile LabelVector initialFractions;
+
+    /** Relative sizes of the label partitions among all nodes, computed lazily. */
+    private volatile double[] initialPartitionSizes;
+
+    /** Selectivities of the most recently used property predicates at nodes per label. */
+    private final SelectivityCache<LabelVector> labelSelectivities = new SelectivityCache<>(SELECTIVITY_CACHE_SIZE);
+
+    /** Selectivities of the most recently used property predicates at relationships per type. */
+    private final SelectivityCache<double[]> typeSelectivities = new SelectivityCache<>(SELECTIVITY_CACHE_SIZE);
+
+    /** Expansions of the set of all nodes, per direction and type set. */
+    private final Map<Direction, Map<BitSet, InitialExpansion>> initialExpansions = new EnumMap<>(Direction.class);
+
+    /** Canonical expressions on this database. */
+    private final ExpressionFactory expressions = new ExpressionFactory();
+
     /**
      * Generates new global logical properties using the given assumption.
      *
      * @param labelDistribution how node labels are distributed in the database
      */
     public GADbProperties(final LabelDistribution labelDistribution) {
+        this(labelDistribution, false);
+    }
+
+    /**
+     * Generates new global logical properties using the given assumption.
+     *
+     * @param labelDistribution how node labels are distributed in the database
+     * @param singlePrecision whether to store label fractions in single precision, see {@link #labelVector(double[])}
+     */
+    public GADbProperties(final LabelDistribution labelDistribution, final boolean singlePrecision) {
         this.labelDistribution = labelDistribution;
+        this.singlePrecision = singlePrecision;
 
         this.labels = new HashSet<>();
         this.labelDistribution.getLabelHierarchy().forEach(this.labels::addAll);
+        this.labelIds = this.labels.stream().mapToInt(Integer::intValue).sorted().toArray();
+        this.labelPartition = Collections.unmodifiableList(new ArrayList<>(this.labelDistribution.getLabelHierarchy()));
+        this.partitionOf = new int[this.numLabelSlots()];
+        Arrays.fill(this.partitionOf, -1);
+        for (int i = 0; i < this.labelPartition.size(); i++) {
+            for (final int l : this.labelPartition.get(i)) {
+                this.partitionOf[l] = i;
+            }
+        }
+        for (final Direction direction : Direction.values()) {
+            this.initialExpansions.put(direction, new ConcurrentHashMap<>());
+        }
     }
 
     /**
@@ -37,6 +102,186 @@ public abstract class GADbProperties {
         return this.labels;
     }
 
+    /**
+     * Returns the IDs of all node labels used in the database in ascending order.
+     * The returned array is shared and must not be modified.
+     *
+     * @return the sorted label IDs
+     */
+    public int[] labelIds() {
+        return this.labelIds;
+    }
+
+    /**
+     * Returns the size of label vectors for this database, which is one more than the highest label ID.
+     *
+     * @return number of label IDs
+     */
+    public int numLabelSlots() {
+        return this.labelIds.length == 0 ? 0 : this.labelIds[this.labelIds.length - 1] + 1;
+    }
+
+    /**
+     * Returns whether the label IDs are exactly {@code 0, ..., numLabelSlots() - 1}, so that loops over all labels
+     * can run over whole label vectors.
+     *
+     * @return whether every label slot is a label
+     */
+    public boolean hasDenseLabelIds() {
+        return this.labelIds.length == this.numLabelSlots();
+    }
+
+    /**
+     * Returns whether label fractions are stored in single precision.
+     *
+     * @return {@code true} if label vectors are narrowed to floats
+     */
+    public boolean isSinglePrecision() {
+        return this.singlePrecision;
+    }
+
+    /**
+     * Creates the label vector storing the given fractions, in single precision if enabled for this database.
+     * Computations on the fractions are still carried out in double precision.
+     *
+     * @param fractions label fractions indexed by label ID, which must not be modified afterwards
+     * @return the label vector
+     */
+    public LabelVector labelVector(final double[] fractions) {
+        return this.singlePrecision ? LabelVector.narrow(fractions) : LabelVector.wrap(fractions);
+    }
+
+    /**
+     * Returns the factory of canonical expressions on this database, which shares identical sub-expressions
+     * between queries.
+     *
+     * @return the expression factory
+     */
+    public ExpressionFactory expressions() {
+        return this.expressions;
+    }
+
+    /**
+     * Returns the sets of overlapping labels from the label hierarchy as an immutable list with a fixed order.
+     *
+     * @return the label partition
+     */
+    public List<Set<Integer>> labelPartition() {
+        return this.labelPartition;
+    }
+
+    /**
+     * Returns the index of the set of overlapping labels containing the given label.
+     *
+     * @param label the label ID
+     * @return index in {@link #labelPartition()}, {@code -1} if the label is not used in the database
+     */
+    public int partitionOf(final int label) {
+        return label >= 0 && label < this.partitionOf.length ? this.partitionOf[label] : -1;
+    }
+
+    /**
+     * Returns the fractions of all nodes in the database having the respective labels.
+     *
+     * @return the label fractions of the set of all nodes
+     */
+    public LabelVector initialFractions() {
+        LabelVector fractions = this.initialFractions;
+        if (fractions == null) {
+            final double[] probabilities = new double[this.numLabelSlots()];
+            for (final int l : this.labelIds) {
+                probabilities[l] = this.nodes(l) / this.nodes(-1);
+            }
+            fractions = this.labelVector(probabilities);
+            this.initialFractions = fractions;
+        }
+        return fractions;
+    }
+
+    /**
+     * Estimates the relative size of a set of overlapping labels among all nodes in the database.
+     *
+     * @param part index of the overlapping set in {@link #labelPartition()}
+     * @return the relative size of the partition
+     */
+    public double initialPartitionSize(final int part) {
+        double[] sizes = this.initialPartitionSizes;
+        if (sizes == null) {
+            sizes = this.computeInitialPartitionSizes();
+            this.initialPartitionSizes = sizes;
+        }
+        return sizes[part];
+    }
+
+    /**
+     * Estimates the relative sizes of the partitions of all nodes.
+     *
+     * @return array of relative sizes
+     */
+    private double[] computeInitialPartitionSizes() {
+        final List<Set<Integer>> parts = this.labelPartition;
+        final double[] sizes = new double[parts.size()];
+        if (parts.size() < 2) {
+            Arrays.fill(sizes, 1);
+            return sizes;
+        }
+
+        final LabelVector fractions = this.initialFractions();
+        double remaining = 1;
+        final Set<Integer> alreadyProcessed = new HashSet<>();
+        for (final Integer next : GAResultProperties.sortLabelsByFractionAndRecall(fractions, this.labels, this)) {
+            if (!alreadyProcessed.contains(next)) {
+                alreadyProcessed.addAll(this.labelDistribution.getAllKnownSublabels(next));
+                final double part = fractions.get(next) * remaining;
+                sizes[this.partitionOf[next]] += part;
+                remaining -= part;
+                if (remaining <= 0) {
+                    break;
+                }
+            }
+        }
+
+        final double sum = Arrays.stream(sizes).sum();
+        if (sum > 0) {
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] /= sum;
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the result of expanding the set of all nodes in the database along relationships
+     * with the given types and direction.
+     *
+     * @param types the allowed types of the relationships
+     * @param direction the direction of the relationships
+     * @return size and label fractions of the expansion
+     */
+    public InitialExpansion initialExpansion(final Set<Integer> types, final Direction direction) {
+        return this.initialExpansions.get(direction).computeIfAbsent(typeSetKey(types), k -> {
+            final LabelVector initial = this.initialFractions();
+            // We know the exact size
+            final double size = this.relationships(-1, types, -1, direction);
+            if (size <= 0.0d) {
+                // If the initial result size is empty (there are no nodes in the db)
+                // we initialize the fractions at the target variable with 0
+                // (logically, any value would be correct, but technically 0 avoids some problems)
+                return new InitialExpansion(size, initial, LabelVector.zeros(initial.size()));
+            }
+            // If the result is not empty, we know the exact probabilities on base and target variable.
+            final double[] atBase = new double[initial.size()];
+            final double[] atTarget = new double[initial.size()];
+            for (final int l : this.labelIds) {
+                atBase[l] = this.relationships(l, types, -1, direction) / size;
+            }
+            for (final int l : this.labelIds) {
+                atTarget[l] = this.relationships(-1, types, l, direction) / size;
+            }
+            return new InitialExpansion(size, this.labelVector(atBase), this.labelVector(atTarget));
+        });
+    }
+
     /**
      * Number of nodes with a particular label.
      *
@@ -78,7 +323,38 @@ public abstract class GADbProperties {
      */
     public double relationships(final int labelAtBase, final Set<Integer> types,
             final int labelAtTarget, final Direction direction) {
-        return types.stream().mapToDouble(t -> this.relationships(labelAtBase, t, labelAtTarget, direction)).sum();
+        if (types.size() == 1) {
+            return this.relationships(labelAtBase, types.iterator().next(), labelAtTarget, direction);
+        } else if (types.isEmpty()) {
+            return 0;
+        }
+        return this.typeSetCounts(types).relationships(labelAtBase, labelAtTarget, direction);
+    }
+
+    /**
+     * Returns the aggregated relationship counts of a set of more than one type. Operators look them up once and
+     * then read the counts for each pair of labels from dense arrays, like those of a single type.
+     *
+     * @param types the allowed types of the relationships
+     * @return the relationship counts of the type set
+     */
+    public TypeSetCounts typeSetCounts(final Set<Integer> types) {
+        return this.typeSetCounts.computeIfAbsent(typeSetKey(types), TypeSetCounts::new);
+    }
+
+    /**
+     * Canonical representation of a set of relationship types, the type {@code t} is represented
+     * by the bit at position {@code t + 1} so that the wildcard type {@code -1} can be included.
+     *
+     * @param types set of relationship types
+     * @return bit set representing the types
+     */
+    static BitSet typeSetKey(final Set<Integer> types) {
+        final BitSet key = new BitSet();
+        for (final int t : types) {
+            key.set(t + 1);
+        }
+        return key;
     }
 
     /**
@@ -118,6 +394,128 @@ public abstract class GADbProperties {
 
     public abstract double rangeSel(int label, int property, double min, double max);
 
+    /**
+     * Selectivity of a property at nodes with a particular label and any of the given values.
+     *
+     * @param label the wanted label
+     * @param property the property in question
+     * @param valueHashes hashes of the distinct values
+     * @return probability that the property equals one of the values at nodes with the given label
+     */
+    public double sel(final int label, final int property, final int[] valueHashes) {
+        double sum = 0;
+        for (final int hash : valueHashes) {
+            sum += this.sel(label, property, hash);
+        }
+        return Math.min(sum, 1);
+    }
+
+    /**
+     * Selectivity of a property at nodes with a particular label and a value in any of the given ranges.
+     *
+     * @param label the wanted label
+     * @param property the property in question
+     * @param ranges disjoint ranges as pairs of lower and upper bound
+     * @return probability that the property lies in one of the ranges at nodes with the given label
+     */
+    public double rangeSel(final int label, final int property, final double[][] ranges) {
+        double sum = 0;
+        for (final double[] range : ranges) {
+            sum += this.rangeSel(label, property, range[0], range[1]);
+        }
+        return Math.min(sum, 1);
+    }
+
+    /**
+     * Number of relationship types in the database, type IDs range from {@code 0} to {@code numTypes() - 1}.
+     *
+     * @return number of relationship types
+     */
+    public abstract int numTypes();
+
+    /**
+     * Selectivity of a property predicate at nodes with a particular label. The values and ranges of
+     * a disjunctive predicate are each handled in one batched pass.
+     *
+     * @param label the wanted label
+     * @param property the property in question
+     * @param pred the predicate on the property
+     * @return probability that the predicate holds at nodes with the given label
+     */
+    public double sel(final int label, final int property, final PropSelection pred) {
+        if (pred.isDisjunction()) {
+            final double eq = pred.valueHashes().length == 0 ? 0 : this.sel(label, property, pred.valueHashes());
+            final double in = pred.intervals().length == 0 ? 0 : this.rangeSel(label, property, pred.intervals());
+            return Math.min(eq + in, 1);
+        } else if (pred.value != null) {
+            return this.sel(label, property, pred.value.hashCode());
+        } else if (pred.range[0] == pred.range[1]) {
+            return this.sel(label, property, Double.hashCode(pred.range[0]));
+        } else {
+            return this.rangeSel(label, property, pred.range[0], pred.range[1]);
+        }
+    }
+
+    /**
+     * Returns the selectivities of a property predicate at nodes for all labels. They are cached for the
+     * {@link #SELECTIVITY_CACHE_SIZE} most recently used properties and predicates.
+     *
+     * @param property the property in question
+     * @param pred the predicate on the property
+     * @return vector of selectivities indexed by label ID
+     */
+    public LabelVector selectivities(final int property, final PropSelection pred) {
+        return this.labelSelectivities.get(property, pred, () -> {
+            final double[] sels = new double[this.numLabelSlots()];
+            for (final int l : this.labelIds) {
+                sels[l] = this.sel(l, property, pred);
+            }
+            return this.labelVector(sels);
+        });
+    }
+
+    /**
+     * Selectivity of a property predicate at relationships with a particular type. The values and ranges of
+     * a disjunctive predicate are each handled in one batched pass.
+     *
+     * @param type the wanted type
+     * @param property the property in question
+     * @param pred the predicate on the property
+     * @return probability that the predicate holds at relationships with the given type
+     */
+    public double relSel(final int type, final int property, final PropSelection pred) {
+        if (pred.isDisjunction()) {
+            final double eq = pred.valueHashes().length == 0 ? 0 : this.relSel(type, property, pred.valueHashes());
+            final double in = pred.intervals().length == 0 ? 0 : this.rangeRelSel(type, property, pred.intervals());
+            return Math.min(eq + in, 1);
+        } else if (pred.value != null) {
+            return this.relSel(type, property, pred.value.hashCode());
+        } else if (pred.range[0] == pred.range[1]) {
+            return this.relSel(type, property, Double.hashCode(pred.range[0]));
+        } else {
+            return this.rangeRelSel(type, property, pred.range[0], pred.range[1]);
+        }
+    }
+
+    /**
+     * Returns the selectivities of a property predicate at relationships for all types including the
+     * wildcard type {@code -1}. They are cached for the {@link #SELECTIVITY_CACHE_SIZE} most recently used
+     * properties and predicates. The returned array is shared and must not be modified.
+     *
+     * @param property the property in question
+     * @param pred the predicate on the property
+     * @return array of selectivities, the selectivity for type {@code t} is stored at position {@code t + 1}
+     */
+    public double[] typeSelectivities(final int property, final PropSelection pred) {
+        return this.typeSelectivities.get(property, pred, () -> {
+            final double[] sels = new double[this.numTypes() + 1];
+            for (int t = -1; t < sels.length - 1; t++) {
+                sels[t + 1] = this.relSel(t, property, pred);
+            }
+            return sels;
+        });
+    }
+
     /**
      * Selectivity of a property at relationships with a particular type.
      *
@@ -139,4 +537,207 @@ public abstract class GADbProperties {
     public abstract double relSel(int type, int property, int valueHash);
 
     public abstract double rangeRelSel(int label, int property, double min, double max);
+
+    /**
+     * Selectivity of a property at relationships with a particular type and any of the given values.
+     *
+     * @param type the wanted type
+     * @param property the property in question
+     * @param valueHashes hashes of the distinct values
+     * @return probability that the property equals one of the values at relationships with the given type
+     */
+    public double relSel(final int type, final int property, final int[] valueHashes) {
+        double sum = 0;
+        for (final int hash : valueHashes) {
+            sum += this.relSel(type, property, hash);
+        }
+        return Math.min(sum, 1);
+    }
+
+    /**
+     * Selectivity of a property at relationships with a particular type and a value in any of the given ranges.
+     *
+     * @param type the wanted type
+     * @param property the property in question
+     * @param ranges disjoint ranges as pairs of lower and upper bound
+     * @return probability that the property lies in one of the ranges at relationships with the given type
+     */
+    public double rangeRelSel(final int type, final int property, final double[][] ranges) {
+        double sum = 0;
+        for (final double[] range : ranges) {
+            sum += this.rangeRelSel(type, property, range[0], range[1]);
+        }
+        return Math.min(sum, 1);
+    }
+
+    /**
+     * Cache of the selectivities of property predicates, which evicts the least recently used entry once it is full.
+     * Selectivities are computed outside of the lock, so concurrent misses for the same predicate may compute them
+     * more than once, but all callers get the same instance.
+     *
+     * @param <V> type of the selectivities
+     */
+    private static final class SelectivityCache<V> {
+        /** Maximum number of entries. */
+        private final int capacity;
+
+        /** The entries in access order, guarded by the map itself. */
+        private final LinkedHashMap<Key, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        SelectivityCache(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        V get(final int property, final PropSelection pred, final Supplier<V> compute) {
+            final Key key = new Key(property, pred);
+            synchronized (this.entries) {
+                final V cached = this.entries.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            final V computed = compute.get();
+            synchronized (this.entries) {
+                final V cached = this.entries.putIfAbsent(key, computed);
+                if (this.entries.size() > this.capacity) {
+                    final Iterator<Key> eldest = this.entries.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+                return cached != null ? cached : computed;
+            }
+        }
+
+        /**
+         * Property and predicate on it.
+         */
+        private static final class Key {
+            private final int property;
+            private final PropSelection pred;
+
+            Key(final int property, final PropSelection pred) {
+                this.property = property;
+                this.pred = pred;
+            }
+
+            @Override
+            public boolean equals(final Object obj) {
+                return this == obj || obj instanceof Key && this.property == ((Key) obj).property
+                        && this.pred.equals(((Key) obj).pred);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * this.property + this.pred.hashCode();
+            }
+        }
+    }
+
+    /**
+     * Relationship counts of a set of types, summed over its types. Only outgoing counts are stored, since the
+     * other directions follow from swapping the labels. The counts are stored in one dense row per label at the
+     * base, which is computed when it is first used.
+     */
+    public final class TypeSetCounts {
+        /** The types, the type {@code t} is represented by the bit at position {@code t + 1}. */
+        private final BitSet types;
+
+        /** Outgoing counts by label at the base and label at the target, both shifted by one for label {@code -1}. */
+        private final AtomicReferenceArray<double[]> rows;
+
+        TypeSetCounts(final BitSet types) {
+            this.types = types;
+            this.rows = new AtomicReferenceArray<>(GADbProperties.this.numLabelSlots() + 1);
+        }
+
+        /**
+         * Number of relationships having one of the types, starting and ending at nodes with particular labels,
+         * going into a particular direction.
+         *
+         * @param labelAtBase the wanted label at the base nodes
+         * @param labelAtTarget the wanted label at the target nodes
+         * @param direction the direction of the edge
+         * @return how many relationships fulfil the specified label and type constraints
+         */
+        public double relationships(final int labelAtBase, final int labelAtTarget, final Direction direction) {
+            switch (direction) {
+                case BOTH:
+                    return this.outgoing(labelAtBase, labelAtTarget) + this.outgoing(labelAtTarget, labelAtBase);
+                case INCOMING:
+                    return this.outgoing(labelAtTarget, labelAtBase);
+                case OUTGOING:
+                    return this.outgoing(labelAtBase, labelAtTarget);
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        private double outgoing(final int labelAtBase, final int labelAtTarget) {
+            double[] row = this.rows.get(labelAtBase + 1);
+            if (row == null) {
+                row = new double[this.rows.length()];
+                for (int l = -1; l < row.length - 1; l++) {
+                    for (int t = this.types.nextSetBit(0); t >= 0; t = this.types.nextSetBit(t + 1)) {
+                        row[l + 1] += GADbProperties.this.relationships(labelAtBase, t - 1, l, Direction.OUTGOING);
+                    }
+                }
+                this.rows.set(labelAtBase + 1, row);
+            }
+            return row[labelAtTarget + 1];
+        }
+    }
+
+    /**
+     * Result of expanding the set of all nodes in the database.
+     */
+    public static final class InitialExpansion {
+        /** Number of relationships found by the expansion. */
+        private final double size;
+
+        /** Label fractions at the base variable. */
+        private final LabelVector atBase;
+
+        /** Label fractions at the target variable. */
+        private final LabelVector atTarget;
+
+        /**
+         * Creates a new expansion result.
+         *
+         * @param size number of relationships
+         * @param atBase label fractions at the base variable
+         * @param atTarget label fractions at the target variable
+         */
+        InitialExpansion(final double size, final LabelVector atBase, final LabelVector atTarget) {
+            this.size = size;
+            this.atBase = atBase;
+            this.atTarget = atTarget;
+        }
+
+        /**
+         * Returns the number of relationships found by the expansion.
+         *
+         * @return number of relationships
+         */
+        public double getSize() {
+            return this.size;
+        }
+
+        /**
+         * Returns the label fractions at the base variable.
+         *
+         * @return label fractions at the base variable
+         */
+        public LabelVector getBaseFractions() {
+            return this.atBase;
+        }
+
+        /**
+         * Returns the label fractions at the target variable.
+         *
+         * @return label fractions at the target variable
+         */
+        public LabelVector getTargetFractions() {
+            return this.atTarget;
+        }
+    }
 }
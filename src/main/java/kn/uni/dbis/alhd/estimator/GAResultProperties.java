@@ -6,17 +6,18 @@ import java.util.stream.Collectors;
 /**
  * Stores important logical properties of a set of matched subgraphs.
  *
- * Be careful: The node label and relationship type maps are supposed to be
- * immutable. Use the helper methods of this class to access them, otherwise
- * you may get in conflict with this assumption.
+ * The node label and relationship type maps are persistent {@link VariableMap}s, so operators
+ * deriving new properties via {@link #derive()} share all unchanged entries with their input
+ * instead of copying the maps. Variables are keyed by the IDs their operators were created with,
+ * which are unique within one operator tree.
  */
 public class GAResultProperties {
 
     /** Map from variables to associated node label fractions. */
-    private final Map<String, Map<Integer, Double>> nodeLabelMap;
+    private final VariableMap<LabelVector> nodeLabelMap;
 
     /** Map from variables to associated relationship types. */
-    private final Map<String, Set<Integer>> relationshipTypeMap;
+    private final VariableMap<Set<Integer>> relationshipTypeMap;
 
     /** Whether this is the set of subgraphs containing all single nodes from the db. */
     private final boolean isInitial;
@@ -26,14 +27,15 @@ public class GAResultProperties {
 
     /**
      * Initialize with all information. Throws an exception if the node and
-     * relationship variables are not disjunct.
+     * relationship variables are not disjunct. Variables of maps which are not
+     * {@link VariableMap}s are numbered consecutively, the node variables first.
      *
      * @param nodeLabelMap map from node variables to node label fractions
      * @param relationshipTypeMap map from relationship variables to an (optional) associated type
      * @param size the number of matched subgraphs
      * @param isInitial whether this is the set of all single node subgraphs
      */
-    public GAResultProperties(final Map<String, Map<Integer, Double>> nodeLabelMap,
+    public GAResultProperties(final Map<String, LabelVector> nodeLabelMap,
                               final Map<String, Set<Integer>> relationshipTypeMap,
                               final double size,
                               final boolean isInitial) {
@@ -44,10 +46,34 @@ public class GAResultProperties {
             throw new IllegalArgumentException("Node and relationship variables must be disjoint.");
         }
 
+        this.nodeLabelMap = VariableMap.copyOf(nodeLabelMap, 0);
+        this.relationshipTypeMap = VariableMap.copyOf(relationshipTypeMap, nodeLabelMap.size());
+        this.relationshipTypeMap.forEachId((types, id) -> {
+            if (this.nodeLabelMap.get(id) != null) {
+                throw new IllegalArgumentException("Node and relationship variables must have distinct IDs.");
+            }
+        });
+        this.matchedSubgraphs = size;
+        this.isInitial = isInitial;
+    }
+
+    private GAResultProperties(final VariableMap<LabelVector> nodeLabelMap,
+                               final VariableMap<Set<Integer>> relationshipTypeMap,
+                               final double size) {
         this.nodeLabelMap = nodeLabelMap;
         this.relationshipTypeMap = relationshipTypeMap;
         this.matchedSubgraphs = size;
-        this.isInitial = isInitial;
+        this.isInitial = false;
+    }
+
+    /**
+     * Returns a builder for non-initial properties that start out with the variables and size
+     * of these properties.
+     *
+     * @return a new builder
+     */
+    public Builder derive() {
+        return new Builder(this);
     }
 
     /**
@@ -55,7 +81,7 @@ public class GAResultProperties {
      *
      * @return the node label map
      */
-    public Map<String, Map<Integer, Double>> getNodeLabelMap() {
+    public VariableMap<LabelVector> getNodeLabelMap() {
         return this.nodeLabelMap;
     }
 
@@ -64,7 +90,7 @@ public class GAResultProperties {
      *
      * @return the relationship type map
      */
-    public Map<String, Set<Integer>> getRelationshipTypeMap() {
+    public VariableMap<Set<Integer>> getRelationshipTypeMap() {
         return this.relationshipTypeMap;
     }
 
@@ -113,7 +139,33 @@ public class GAResultProperties {
      * @return the given labels sorted descendingly by fraction and recall
      */
     public List<Integer> sortLabelsByFractionAndRecall(final String variable, final Set<Integer> labels, final GADbProperties dbProps) {
-        final Map<Integer, Double> fractions = this.nodeLabelMap.get(variable);
+        return sortLabelsByFractionAndRecall(this.nodeLabelMap.get(variable), labels, dbProps);
+    }
+
+    /**
+     * Variant of {@link #sortLabelsByFractionAndRecall(String, Set, GADbProperties)} for variable IDs.
+     *
+     * @param variable ID of the node variable to use for sorting by the label fractions
+     * @param labels the labels to sort
+     * @param dbProps the database properties used for sorting by recall
+     * @return the given labels sorted descendingly by fraction and recall
+     */
+    public List<Integer> sortLabelsByFractionAndRecall(final int variable, final Set<Integer> labels, final GADbProperties dbProps) {
+        return sortLabelsByFractionAndRecall(this.nodeLabelMap.get(variable), labels, dbProps);
+    }
+
+    /**
+     * Returns the given node labels sorted descendingly by the given label fractions.
+     * In case of equal fractions, the label with the lower number of nodes in the
+     * database comes first.
+     *
+     * @param fractions the label fractions to use for sorting
+     * @param labels the labels to sort
+     * @param dbProps the database properties used for sorting by recall
+     * @return the given labels sorted descendingly by fraction and recall
+     */
+    public static List<Integer> sortLabelsByFractionAndRecall(final LabelVector fractions, final Set<Integer> labels,
+                                                              final GADbProperties dbProps) {
         return labels.stream().sorted((Integer l1, Integer l2) -> {
             final int betterFit = Double.compare(fractions.get(l2) / dbProps.nodes(l2), fractions.get(l1) / dbProps.nodes(l1));
             if (betterFit != 0) {
@@ -126,8 +178,15 @@ public class GAResultProperties {
     }
 
     public List<Integer> sortLabelsByFractionAndRecall(final String var1, final String var2, final Set<Integer> labels, final GADbProperties dbProps) {
-        final Map<Integer, Double> fracs1 = this.nodeLabelMap.get(var1);
-        final Map<Integer, Double> fracs2 = this.nodeLabelMap.get(var2);
+        return sortLabelsByFractionAndRecall(this.nodeLabelMap.get(var1), this.nodeLabelMap.get(var2), labels, dbProps);
+    }
+
+    public List<Integer> sortLabelsByFractionAndRecall(final int var1, final int var2, final Set<Integer> labels, final GADbProperties dbProps) {
+        return sortLabelsByFractionAndRecall(this.nodeLabelMap.get(var1), this.nodeLabelMap.get(var2), labels, dbProps);
+    }
+
+    private static List<Integer> sortLabelsByFractionAndRecall(final LabelVector fracs1, final LabelVector fracs2,
+                                                               final Set<Integer> labels, final GADbProperties dbProps) {
         return labels.stream().sorted((Integer l1, Integer l2) -> {
             final int betterFit = Double.compare(Math.max(fracs1.get(l2), fracs2.get(l2)) / dbProps.nodes(l2),
             		Math.max(fracs1.get(l1), fracs2.get(l1)) / dbProps.nodes(l1));
@@ -151,7 +210,34 @@ public class GAResultProperties {
         return this.relationshipTypeMap.get(variable);
     }
 
-    public Map<Integer, Double> getLabels(final String variable) {
+    /**
+     * Returns the allowed relationship types of the relationship variable with the given ID
+     * or null if the variable is not currently matched (immutable).
+     *
+     * @param variable the ID of the relationship variable in question
+     * @return the allowed types of the relationship variable or null
+     */
+    public Set<Integer> getTypes(final int variable) {
+        return this.relationshipTypeMap.get(variable);
+    }
+
+    /**
+     * Returns the label fractions of the nodes matched by the given variable.
+     *
+     * @param variable the node variable in question
+     * @return the label fractions of the variable
+     */
+    public LabelVector getLabels(final String variable) {
+        return Objects.requireNonNull(this.nodeLabelMap.get(variable));
+    }
+
+    /**
+     * Returns the label fractions of the nodes matched by the variable with the given ID.
+     *
+     * @param variable the ID of the node variable in question
+     * @return the label fractions of the variable
+     */
+    public LabelVector getLabels(final int variable) {
         return Objects.requireNonNull(this.nodeLabelMap.get(variable));
     }
 
@@ -165,6 +251,16 @@ public class GAResultProperties {
         return nodeLabelMap.containsKey(variable);
     }
 
+    /**
+     * Returns whether the variable with the given ID matches any node in the result.
+     *
+     * @param variable the ID of the variable in question
+     * @return whether this variable matches nodes in the result
+     */
+    public boolean anyNodeMatchedBy(final int variable) {
+        return nodeLabelMap.get(variable) != null;
+    }
+
     /**
      * Returns whether a given variable matches any relationship in the result.
      *
@@ -175,6 +271,16 @@ public class GAResultProperties {
         return relationshipTypeMap.containsKey(variable);
     }
 
+    /**
+     * Returns whether the variable with the given ID matches any relationship in the result.
+     *
+     * @param variable the ID of the variable in question
+     * @return whether this variable matches relationships in the result
+     */
+    public boolean anyRelationshipMatchedBy(final int variable) {
+        return relationshipTypeMap.get(variable) != null;
+    }
+
     /**
      * Returns the number of matched subgraphs.
      *
@@ -197,4 +303,89 @@ public class GAResultProperties {
     public String toString() {
         return "[size: " + this.matchedSubgraphs + "]";
     }
+
+    /**
+     * Builder deriving new properties from existing ones, only the changed variables are copied.
+     */
+    public static final class Builder {
+
+        /** Node label fractions of the derived properties. */
+        private VariableMap<LabelVector> nodeLabelMap;
+
+        /** Relationship types of the derived properties. */
+        private VariableMap<Set<Integer>> relationshipTypeMap;
+
+        /** Number of matched subgraphs of the derived properties. */
+        private double size;
+
+        private Builder(final GAResultProperties base) {
+            this.nodeLabelMap = base.nodeLabelMap;
+            this.relationshipTypeMap = base.relationshipTypeMap;
+            this.size = base.matchedSubgraphs;
+        }
+
+        /**
+         * Sets the label fractions of the given node variable.
+         *
+         * @param variable the node variable
+         * @param id ID of the node variable
+         * @param labels the new label fractions
+         * @return this builder
+         */
+        public Builder putLabels(final String variable, final int id, final LabelVector labels) {
+            if (this.relationshipTypeMap.get(id) != null) {
+                throw new IllegalArgumentException("Node and relationship variables must be disjoint.");
+            }
+            this.nodeLabelMap = this.nodeLabelMap.with(variable, id, labels);
+            return this;
+        }
+
+        /**
+         * Sets the allowed types of the given relationship variable.
+         *
+         * @param variable the relationship variable
+         * @param id ID of the relationship variable
+         * @param types the new allowed types
+         * @return this builder
+         */
+        public Builder putTypes(final String variable, final int id, final Set<Integer> types) {
+            if (this.nodeLabelMap.get(id) != null) {
+                throw new IllegalArgumentException("Node and relationship variables must be disjoint.");
+            }
+            this.relationshipTypeMap = this.relationshipTypeMap.with(variable, id, types);
+            return this;
+        }
+
+        /**
+         * Removes the node or relationship variable with the given ID.
+         *
+         * @param id ID of the variable to remove
+         * @return this builder
+         */
+        public Builder remove(final int id) {
+            this.nodeLabelMap = this.nodeLabelMap.without(id);
+            this.relationshipTypeMap = this.relationshipTypeMap.without(id);
+            return this;
+        }
+
+        /**
+         * Sets the number of matched subgraphs.
+         *
+         * @param size the new size
+         * @return this builder
+         */
+        public Builder size(final double size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * Creates the derived properties.
+         *
+         * @return the new properties
+         */
+        public GAResultProperties build() {
+            return new GAResultProperties(this.nodeLabelMap, this.relationshipTypeMap, this.size);
+        }
+    }
 }
@@ -2,8 +2,7 @@ package kn.uni.dbis.alhd.estimator;
 
 import kn.uni.dbis.alhd.queries.Direction;
 import kn.uni.dbis.alhd.statistics.GraphStatistics;
-
-import java.util.OptionalDouble;
+import kn.uni.dbis.alhd.statistics.PropertyStatistics;
 
 public final class GraphDBProperties extends GADbProperties {
 
@@ -12,7 +11,12 @@ public final class GraphDBProperties extends GADbProperties {
 
     public GraphDBProperties(final LabelDistribution labelDistribution, final GraphStatistics stats,
                              final boolean simulateNeo4j) {
-        super(labelDistribution);
+        this(labelDistribution, stats, simulateNeo4j, false);
+    }
+
+    public GraphDBProperties(final LabelDistribution labelDistribution, final GraphStatistics stats,
+                             final boolean simulateNeo4j, final boolean singlePrecision) {
+        super(labelDistribution, singlePrecision);
         this.stats = stats;
         this.simulateNeo4j = simulateNeo4j;
     }
@@ -45,10 +49,10 @@ public final class GraphDBProperties extends GADbProperties {
             throw new IllegalStateException("Cannot have " + withProp + "values but " + withPropUnique + " uniques.");
         }
         final double hasProp = withProp / n;
-        final OptionalDouble freq = stats.nodePropIfFrequent(label, property, valueHash);
+        final double freq = stats.nodePropFrequency(label, property, valueHash);
         final double propHasValue;
-        if (freq.isPresent()) {
-            propHasValue = freq.getAsDouble();
+        if (!Double.isNaN(freq)) {
+            propHasValue = freq;
         } else {
             final int heavyHitters = stats.numNodePropFrequent(label, property);
             propHasValue = heavyHitters >= withPropUnique ? 0 : 1 / (withPropUnique - heavyHitters);
@@ -58,20 +62,26 @@ public final class GraphDBProperties extends GADbProperties {
 
     @Override
     public double rangeSel(int label, int property, double min, double max) {
-        final double numProps = stats.nodeWithPropertyNumeric(label, property);
-        if (numProps <= 0) {
-            return 0.0;
-        }
+        final PropertyStatistics props = stats.nodeProperties();
+        return rangeSel(props, props.row(label, property), stats.numNodes(label), min, max);
+    }
+
+    @Override
+    public double sel(final int label, final int property, final int[] valueHashes) {
+        final PropertyStatistics props = stats.nodeProperties();
+        return multiSel(props, props.row(label, property), stats.numNodes(label), valueHashes);
+    }
+
+    @Override
+    public double rangeSel(final int label, final int property, final double[][] ranges) {
+        final PropertyStatistics props = stats.nodeProperties();
+        final int row = props.row(label, property);
         final double n = stats.numNodes(label);
-        if (min == max) {
-            final double withProp = stats.nodeWithProperty(label, property);
-            final double withPropUnique = stats.nodeWithPropertyUnique(label, property);
-            final double hasProp = withProp / n;
-            final double isNumeric = numProps / withProp;
-            final double propHasValue = 1 / (isNumeric * withPropUnique);
-            return hasProp * isNumeric * propHasValue;
+        double sum = 0;
+        for (final double[] range : ranges) {
+            sum += rangeSel(props, row, n, range[0], range[1]);
         }
-        return stats.nodePropertyRange(label, property, min, max).orElse(0.0);
+        return Math.min(sum, 1);
     }
 
     @Override
@@ -102,10 +112,10 @@ public final class GraphDBProperties extends GADbProperties {
             throw new IllegalStateException("Cannot have " + withProp + "values but " + withPropUnique + " uniques.");
         }
         final double hasProp = withProp / n;
-        final OptionalDouble freq = stats.relPropIfFrequent(type, property, valueHash);
+        final double freq = stats.relPropFrequency(type, property, valueHash);
         final double propHasValue;
-        if (freq.isPresent()) {
-            propHasValue = freq.getAsDouble();
+        if (!Double.isNaN(freq)) {
+            propHasValue = freq;
         } else {
             final int heavyHitters = stats.numRelPropFrequent(type, property);
             propHasValue = heavyHitters >= withPropUnique ? 0 : 1 / (withPropUnique - heavyHitters);
@@ -115,20 +125,76 @@ public final class GraphDBProperties extends GADbProperties {
 
     @Override
     public double rangeRelSel(int type, int property, double min, double max) {
-        final double numProps = stats.relWithPropertyNumeric(type, property);
-        if (numProps <= 0) {
+        final PropertyStatistics props = stats.relProperties();
+        return rangeSel(props, props.row(type, property), stats.numRelationships(type), min, max);
+    }
+
+    @Override
+    public double relSel(final int type, final int property, final int[] valueHashes) {
+        final PropertyStatistics props = stats.relProperties();
+        return multiSel(props, props.row(type, property), stats.numRelationships(type), valueHashes);
+    }
+
+    @Override
+    public double rangeRelSel(final int type, final int property, final double[][] ranges) {
+        final PropertyStatistics props = stats.relProperties();
+        final int row = props.row(type, property);
+        final double n = stats.numRelationships(type);
+        double sum = 0;
+        for (final double[] range : ranges) {
+            sum += rangeSel(props, row, n, range[0], range[1]);
+        }
+        return Math.min(sum, 1);
+    }
+
+    private static double rangeSel(final PropertyStatistics props, final int row, final double n,
+                                   final double min, final double max) {
+        if (row < 0 || props.numeric(row) <= 0) {
             return 0.0;
         }
-        final double n = stats.numRelationships(type);
         if (min == max) {
-            final double withProp = stats.relWithProperty(type, property);
-            final double withPropUnique = stats.relWithPropertyUnique(type, property);
+            final double withProp = props.count(row);
+            final double withPropUnique = props.unique(row);
             final double hasProp = withProp / n;
-            final double isNumeric = numProps / withProp;
+            final double isNumeric = props.numeric(row) / withProp;
             final double propHasValue = 1 / (isNumeric * withPropUnique);
             return hasProp * isNumeric * propHasValue;
         }
-        return stats.relPropertyRange(type, property, min, max).orElse(0.0);
+        return props.rangeFraction(row, min, max);
+    }
+
+    /**
+     * Computes the selectivity of several values in one pass over the statistics row, probing the heavy hitters
+     * once per value and estimating all other values by a single remainder term.
+     */
+    private static double multiSel(final PropertyStatistics props, final int row, final double n,
+                                   final int[] valueHashes) {
+        if (row < 0 || valueHashes.length == 0) {
+            return 0;
+        }
+        final double withProp = props.count(row);
+        if (withProp == 0) {
+            return 0;
+        }
+        final double withPropUnique = props.unique(row);
+        if (withPropUnique == 0) {
+            throw new IllegalStateException("Cannot have " + withProp + "values but " + withPropUnique + " uniques.");
+        }
+        double frequent = 0;
+        int nonFrequent = 0;
+        for (final int hash : valueHashes) {
+            final double freq = props.frequency(row, hash);
+            if (Double.isNaN(freq)) {
+                nonFrequent++;
+            } else {
+                frequent += freq;
+            }
+        }
+        final int heavyHitters = props.numFrequent(row);
+        final double remainder = nonFrequent == 0 || heavyHitters >= withPropUnique ? 0
+                : nonFrequent / (withPropUnique - heavyHitters);
+        final double hasProp = withProp / n;
+        return hasProp * Math.min(frequent + remainder, 1);
     }
 
     private double relCount(int labelAtBase, int type, int labelAtTarget) {
@@ -152,6 +218,11 @@ public final class GraphDBProperties extends GADbProperties {
         }
     }
 
+    @Override
+    public int numTypes() {
+        return stats.numTypes();
+    }
+
     @Override
     public double nodes(int label) {
         return stats.numNodes(label);
@@ -0,0 +1,268 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.estimator.operators.*;
+import kn.uni.dbis.alhd.queries.CypherQuery;
+import kn.uni.dbis.alhd.queries.Direction;
+import kn.uni.dbis.alhd.queries.PropSelection;
+import kn.uni.dbis.alhd.statistics.GraphStatistics;
+
+import java.util.*;
+
+/**
+ * Estimate of a pattern that can be extended one relationship at a time.
+ *
+ * Each extension adds a constant number of operators on top of the operator tree of this estimate: an
+ * {@link Expand} to a new node variable, fused with the selections on the relationship and the new node, or an
+ * expansion to a temporary variable followed by {@link MergeOn} (or {@link SelfJoin}) if both end points are
+ * already bound. The logical properties of the existing tree are memoized, so only the new operators are evaluated.
+ * All variables are kept in the logical properties, as later relationships may attach to any of them.
+ *
+ * Handles are immutable, extending one returns a new handle and leaves the original one usable. They are created by
+ * {@link CardinalityEstimator#startPattern} and {@link CardinalityEstimator#incremental(CypherQuery)}.
+ */
+public final class IncrementalEstimate {
+
+    /** Statistics used to resolve label, type and property names. */
+    private final GraphStatistics stats;
+
+    /** Database properties. */
+    private final GADbProperties dbProps;
+
+    /** Whether cycles are closed with {@link MergeOn} instead of {@link SelfJoin}. */
+    private final boolean useNewJoin;
+
+    /** Static selectivity of property predicates, or {@code null} to use the statistics. */
+    private final Double staticSelectivity;
+
+    /** Operator tree of the pattern so far. */
+    private final Expression expression;
+
+    /** The bound node variables with their IDs in the operator tree. */
+    private final Map<String, Integer> nodes;
+
+    /** Number of the next generated relationship or temporary variable. */
+    private final int varGen;
+
+    /** Next unused variable ID in the operator tree. */
+    private final int nextId;
+
+    private IncrementalEstimate(final GraphStatistics stats, final GADbProperties dbProps, final boolean useNewJoin,
+                                final Double staticSelectivity, final Expression expression,
+                                final Map<String, Integer> nodes, final int varGen, final int nextId) {
+        this.stats = stats;
+        this.dbProps = dbProps;
+        this.useNewJoin = useNewJoin;
+        this.staticSelectivity = staticSelectivity;
+        this.expression = expression;
+        this.nodes = nodes;
+        this.varGen = varGen;
+        this.nextId = nextId;
+    }
+
+    /**
+     * Creates the estimate of a single node variable.
+     *
+     * @param stats graph statistics
+     * @param dbProps database properties
+     * @param useNewJoin whether cycles are closed with {@link MergeOn} instead of {@link SelfJoin}
+     * @param staticSelectivity static selectivity of property predicates, or {@code null} to use the statistics
+     * @param var the node variable
+     * @param labels labels required at the node
+     * @param predicates property predicates on the node, keyed by property name
+     * @return the estimate
+     * @throws NoSuchElementException if a label or property is unknown
+     */
+    static IncrementalEstimate start(final GraphStatistics stats, final GADbProperties dbProps,
+                                     final boolean useNewJoin, final Double staticSelectivity, final String var,
+                                     final Collection<String> labels, final Map<String, PropSelection> predicates) {
+        final IncrementalEstimate empty = new IncrementalEstimate(stats, dbProps, useNewJoin, staticSelectivity, null,
+                Map.of(), 0, 0);
+        Expression expr = dbProps.expressions().create(new GetNodes(dbProps, var, 0));
+        for (final NodeLabelSelection sel : empty.labelSelections(var, 0, labels)) {
+            expr = dbProps.expressions().create(sel, expr);
+        }
+        final Map<Integer, PropSelection> preds = empty.resolve(predicates);
+        if (!preds.isEmpty()) {
+            expr = dbProps.expressions().create(new PropertySelection(dbProps, var, 0, preds, staticSelectivity), expr);
+        }
+        return new IncrementalEstimate(stats, dbProps, useNewJoin, staticSelectivity, expr, Map.of(var, 0), 0, 1);
+    }
+
+    /**
+     * Wraps the operator tree of a compiled query, built without pruning any variables.
+     *
+     * @param stats graph statistics
+     * @param dbProps database properties
+     * @param query the compiled query
+     * @param useNewJoin whether cycles are closed with {@link MergeOn} instead of {@link SelfJoin}
+     * @param staticSelectivity static selectivity of property predicates, or {@code null} to use the statistics
+     * @return the estimate
+     */
+    static IncrementalEstimate of(final GraphStatistics stats, final GADbProperties dbProps,
+                                  final CompiledQuery query, final boolean useNewJoin,
+                                  final Double staticSelectivity) {
+        final Expression expr = PatternToTreeConverter.mapToAlgebraExpression(dbProps, query, useNewJoin,
+                staticSelectivity, false);
+        final Map<String, Integer> nodes = new HashMap<>();
+        for (int i = 0; i < query.numNodes(); i++) {
+            nodes.put(query.nodeName(i), i);
+        }
+        // the compiled query generates at most two variables per relationship
+        return new IncrementalEstimate(stats, dbProps, useNewJoin, staticSelectivity, expr,
+                Collections.unmodifiableMap(nodes), 2 * query.numRelationships(), query.numVariables());
+    }
+
+    /**
+     * Extends the pattern by a relationship without further restrictions.
+     *
+     * @param source source node variable
+     * @param type type of the relationship, {@code null} for any type
+     * @param direction {@link Direction#OUTGOING} or {@link Direction#INCOMING} as seen from the source,
+     *                  {@link Direction#BOTH} for an undirected relationship
+     * @param target target node variable
+     * @return the extended estimate
+     * @see #extend(String, Collection, Direction, String, Map, Collection, Map)
+     */
+    public IncrementalEstimate extend(final String source, final String type, final Direction direction,
+                                      final String target) {
+        return this.extend(source, type == null ? List.of() : List.of(type), direction, target, Map.of(), List.of(),
+                Map.of());
+    }
+
+    /**
+     * Extends the pattern by a relationship. At least one of its end points must be bound already. If only one is,
+     * the other one is a new node variable, on which labels and property predicates may be given.
+     *
+     * @param source source node variable
+     * @param types allowed types of the relationship, empty for any type
+     * @param direction {@link Direction#OUTGOING} or {@link Direction#INCOMING} as seen from the source,
+     *                  {@link Direction#BOTH} for an undirected relationship
+     * @param target target node variable
+     * @param relationshipPredicates property predicates on the relationship, keyed by property name
+     * @param newLabels labels required at the new node variable
+     * @param newPredicates property predicates on the new node variable, keyed by property name
+     * @return the extended estimate
+     * @throws IllegalArgumentException if neither end point is bound, or labels or predicates are given although
+     *         both are
+     * @throws NoSuchElementException if a label, type or property is unknown
+     */
+    public IncrementalEstimate extend(final String source, final Collection<String> types, final Direction direction,
+                                      final String target, final Map<String, PropSelection> relationshipPredicates,
+                                      final Collection<String> newLabels,
+                                      final Map<String, PropSelection> newPredicates) {
+        final boolean sourceBound = this.nodes.containsKey(source);
+        final boolean targetBound = this.nodes.containsKey(target);
+        if (!sourceBound && !targetBound) {
+            throw new IllegalArgumentException("Neither " + source + " nor " + target + " is bound in the pattern.");
+        }
+        final Set<Integer> typeIds = types.isEmpty() ? Collections.singleton(-1) : new HashSet<>();
+        for (final String type : types) {
+            typeIds.add(this.stats.getTypeID(type).orElseThrow());
+        }
+        final Map<Integer, PropSelection> relPreds = this.resolve(relationshipPredicates);
+        final Map<Integer, PropSelection> nodePreds = this.resolve(newPredicates);
+        final String relVar = "$e" + this.varGen;
+        final int relId = this.nextId;
+        final ExpressionFactory factory = this.dbProps.expressions();
+
+        if (sourceBound && targetBound) {
+            if (!newLabels.isEmpty() || !nodePreds.isEmpty()) {
+                throw new IllegalArgumentException("Labels and predicates can only be given for a new node variable.");
+            }
+            // expand to a temporary variable and merge it with the target
+            final String temp = "$v" + (this.varGen + 1);
+            final int tempId = this.nextId + 1;
+            final Expand expand = new Expand(this.dbProps, source, this.nodes.get(source), direction, relVar, relId,
+                    typeIds, temp, tempId);
+            Expression expr = factory.create(relPreds.isEmpty() ? expand : new ExpandSelect(expand,
+                    new PropertySelection(this.dbProps, relVar, relId, relPreds, this.staticSelectivity), List.of(),
+                    null), this.expression);
+            final int targetId = this.nodes.get(target);
+            expr = factory.create(this.useNewJoin ? new MergeOn(this.dbProps, target, targetId, temp, tempId)
+                    : new SelfJoin(this.dbProps, target, targetId, temp, tempId), expr);
+            return this.with(expr, this.nodes, this.varGen + 2, this.nextId + 2);
+        }
+
+        final String base = sourceBound ? source : target;
+        final String newVar = sourceBound ? target : source;
+        final Direction dir = sourceBound ? direction
+                : direction == Direction.OUTGOING ? Direction.INCOMING
+                : direction == Direction.INCOMING ? Direction.OUTGOING : Direction.BOTH;
+        final int newId = this.nextId + 1;
+        final Expand expand = new Expand(this.dbProps, base, this.nodes.get(base), dir, relVar, relId, typeIds, newVar,
+                newId);
+        final List<NodeLabelSelection> labelSelections = this.labelSelections(newVar, newId, newLabels);
+        final Expression expr;
+        if (relPreds.isEmpty() && labelSelections.isEmpty() && nodePreds.isEmpty()) {
+            expr = factory.create(expand, this.expression);
+        } else {
+            expr = factory.create(new ExpandSelect(expand,
+                    relPreds.isEmpty() ? null
+                            : new PropertySelection(this.dbProps, relVar, relId, relPreds, this.staticSelectivity),
+                    labelSelections,
+                    nodePreds.isEmpty() ? null
+                            : new PropertySelection(this.dbProps, newVar, newId, nodePreds, this.staticSelectivity)),
+                    this.expression);
+        }
+        final Map<String, Integer> nodes = new HashMap<>(this.nodes);
+        nodes.put(newVar, newId);
+        return this.with(expr, Collections.unmodifiableMap(nodes), this.varGen + 1, this.nextId + 2);
+    }
+
+    /**
+     * Returns the estimated number of matches of the pattern.
+     *
+     * @return the estimated cardinality
+     */
+    public double getSize() {
+        return this.expression.getLogicalProperties().getSize();
+    }
+
+    /**
+     * Returns the operator tree of the pattern.
+     *
+     * @return the expression
+     */
+    public Expression getExpression() {
+        return this.expression;
+    }
+
+    /**
+     * Returns the bound node variables.
+     *
+     * @return the node variables of the pattern
+     */
+    public Set<String> getNodeVariables() {
+        return this.nodes.keySet();
+    }
+
+    private IncrementalEstimate with(final Expression expr, final Map<String, Integer> nodes, final int varGen,
+                                     final int nextId) {
+        return new IncrementalEstimate(this.stats, this.dbProps, this.useNewJoin, this.staticSelectivity, expr, nodes,
+                varGen, nextId);
+    }
+
+    private List<NodeLabelSelection> labelSelections(final String var, final int id, final Collection<String> labels) {
+        final List<NodeLabelSelection> selections = new ArrayList<>(labels.size());
+        for (final String label : labels) {
+            selections.add(new NodeLabelSelection(this.dbProps, var, id, this.stats.getLabelID(label).orElseThrow()));
+        }
+        return selections;
+    }
+
+    private Map<Integer, PropSelection> resolve(final Map<String, PropSelection> predicates) {
+        if (predicates.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> propIds = this.stats.getPropertyIDs();
+        final Map<Integer, PropSelection> resolved = new HashMap<>();
+        for (final Map.Entry<String, PropSelection> e : predicates.entrySet()) {
+            final Integer id = propIds.get(e.getKey());
+            if (id == null) {
+                throw new NoSuchElementException("Unknown property: " + e.getKey());
+            }
+            resolved.put(id, e.getValue());
+        }
+        return resolved;
+    }
+}
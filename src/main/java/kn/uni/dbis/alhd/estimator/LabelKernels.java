@@ -0,0 +1,147 @@
+package kn.uni.dbis.alhd.estimator;
+
+/**
+ * Element-wise arithmetic over whole label vectors used by the operators.
+ *
+ * The default implementation uses the {@code jdk.incubator.vector} API if it was compiled with the Maven profile
+ * {@code vector} and the module is available at runtime (e.g. started with {@code --add-modules
+ * jdk.incubator.vector}), and falls back to plain loops otherwise.
+ * Both implementations only use lane-wise IEEE operations and produce bit-identical results. Setting the system
+ * property {@code alhd.kernels} to {@code scalar} disables the vector implementation.
+ */
+public abstract class LabelKernels {
+
+    /** Implementation chosen at class initialization. */
+    private static final LabelKernels DEFAULT = load();
+
+    /** Scalar implementation. */
+    private static final LabelKernels SCALAR = new ScalarLabelKernels();
+
+    /**
+     * Returns the implementation used by the operators.
+     *
+     * @return the vector implementation if available, the scalar one otherwise
+     */
+    public static LabelKernels get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the scalar implementation.
+     *
+     * @return the scalar implementation
+     */
+    public static LabelKernels scalar() {
+        return SCALAR;
+    }
+
+    private static LabelKernels load() {
+        if (!"scalar".equals(System.getProperty("alhd.kernels"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // only load the class if the module is present, it cannot be linked otherwise
+                return (LabelKernels) Class.forName("kn.uni.dbis.alhd.estimator.VectorLabelKernels")
+                        .getDeclaredConstructor().newInstance();
+            } catch (final ReflectiveOperationException | LinkageError e) {
+                // fall through to the scalar implementation
+            }
+        }
+        return new ScalarLabelKernels();
+    }
+
+    /**
+     * Returns the name of this implementation.
+     *
+     * @return a short name
+     */
+    public abstract String name();
+
+    /**
+     * Unites the label fractions of a node variable matched on both sides of a join,
+     * {@code l * r + (1 - l) * r + l * (1 - r)} for every label.
+     *
+     * @param left fractions of the left input
+     * @param right fractions of the right input
+     * @return the united fractions
+     */
+    public double[] union(final LabelVector left, final LabelVector right) {
+        final double[] out = new double[left.size()];
+        this.union(left.array(), right.array(), out, out.length);
+        return out;
+    }
+
+    /**
+     * Computes the label fractions of the retained variable of a merge,
+     * {@code clamp(min(s, l) / factor, 0, 1)} for every label, {@code 0} if the minimum or factor is {@code 0}.
+     *
+     * @param staying fractions at the retained variable
+     * @param leaving fractions at the removed variable
+     * @param factor the selectivity of the merge
+     * @return the new fractions at the retained variable
+     */
+    public double[] merge(final LabelVector staying, final LabelVector leaving, final double factor) {
+        final double[] out = new double[staying.size()];
+        this.merge(staying.array(), leaving.array(), factor, out, out.length);
+        return out;
+    }
+
+    /**
+     * Unites the first {@code n} label fractions, see {@link #union(LabelVector, LabelVector)}.
+     */
+    public abstract void union(double[] left, double[] right, double[] out, int n);
+
+    /**
+     * Merges the first {@code n} label fractions, see {@link #merge(LabelVector, LabelVector, double)}.
+     */
+    public abstract void merge(double[] staying, double[] leaving, double factor, double[] out, int n);
+
+    /**
+     * Rescales the label fractions {@code fractions[off, off + n)} after a selection with the given selectivity
+     * in place, {@code min(f / selectivity, 1)} for selected labels and {@code 0} for all others.
+     *
+     * @param fractions the label fractions
+     * @param off offset of the first fraction
+     * @param n number of fractions
+     * @param selected which labels can satisfy the selection, at the same offset
+     * @param selectivity the selectivity, must not be {@code 0}
+     */
+    public abstract void rescale(double[] fractions, int off, int n, boolean[] selected, double selectivity);
+
+    /**
+     * Plain loops, used if the vector API is not available.
+     */
+    static final class ScalarLabelKernels extends LabelKernels {
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+
+        @Override
+        public void union(final double[] left, final double[] right, final double[] out, final int n) {
+            for (int i = 0; i < n; i++) {
+                final double leftP = left[i];
+                final double rightP = right[i];
+                out[i] = leftP * rightP + (1.0d - leftP) * rightP + leftP * (1.0d - rightP);
+            }
+        }
+
+        @Override
+        public void merge(final double[] staying, final double[] leaving, final double factor, final double[] out,
+                          final int n) {
+            for (int i = 0; i < n; i++) {
+                final double minFrac = Math.min(staying[i], leaving[i]);
+                final double res = minFrac == 0 || factor == 0 ? 0 : minFrac / factor;
+                out[i] = Math.max(0, Math.min(res, 1));
+            }
+        }
+
+        @Override
+        public void rescale(final double[] fractions, final int off, final int n, final boolean[] selected,
+                            final double selectivity) {
+            for (int i = off; i < off + n; i++) {
+                fractions[i] = selected[i] ? Math.min(fractions[i] / selectivity, 1.0d) : 0.0d;
+            }
+        }
+    }
+}
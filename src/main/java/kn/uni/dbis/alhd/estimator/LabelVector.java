@@ -0,0 +1,141 @@
+package kn.uni.dbis.alhd.estimator;
+
+import java.util.Arrays;
+
+/**
+ * Immutable vector of node label fractions, indexed by label ID.
+ *
+ * Labels which are not used in the database simply have a fraction of {@code 0}.
+ * The fractions are stored either in double or in single precision, see {@link #narrow(double[])},
+ * but are always read as doubles.
+ */
+public final class LabelVector {
+
+    /** The fractions, indexed by label ID, {@code null} if stored in single precision. */
+    private final double[] fractions;
+
+    /** The fractions in single precision, {@code null} if stored in double precision. */
+    private final float[] singles;
+
+    /**
+     * Creates a vector backed by the given arrays, exactly one of which is not {@code null}.
+     *
+     * @param fractions the label fractions
+     * @param singles the label fractions in single precision
+     */
+    private LabelVector(final double[] fractions, final float[] singles) {
+        this.fractions = fractions;
+        this.singles = singles;
+    }
+
+    /**
+     * Creates a label vector backed by the given array, which must not be modified afterwards.
+     *
+     * @param fractions label fractions indexed by label ID
+     * @return the label vector
+     */
+    public static LabelVector wrap(final double[] fractions) {
+        return new LabelVector(fractions, null);
+    }
+
+    /**
+     * Creates a label vector storing the given fractions in single precision, which halves its memory footprint.
+     *
+     * @param fractions label fractions indexed by label ID, which are copied
+     * @return the label vector
+     */
+    public static LabelVector narrow(final double[] fractions) {
+        final float[] singles = new float[fractions.length];
+        for (int i = 0; i < singles.length; i++) {
+            singles[i] = (float) fractions[i];
+        }
+        return new LabelVector(null, singles);
+    }
+
+    /**
+     * Creates a label vector in which all fractions are {@code 0}.
+     *
+     * @param size number of label IDs
+     * @return the label vector
+     */
+    public static LabelVector zeros(final int size) {
+        return new LabelVector(new double[size], null);
+    }
+
+    /**
+     * Returns the fraction of nodes having the given label.
+     *
+     * @param label the label ID
+     * @return the label's fraction
+     */
+    public double get(final int label) {
+        return this.fractions != null ? this.fractions[label] : this.singles[label];
+    }
+
+    /**
+     * Returns the number of label IDs in this vector.
+     *
+     * @return number of label IDs
+     */
+    public int size() {
+        return this.fractions != null ? this.fractions.length : this.singles.length;
+    }
+
+    /**
+     * Returns whether the fractions are stored in single precision.
+     *
+     * @return {@code true} if created by {@link #narrow(double[])}
+     */
+    public boolean isSinglePrecision() {
+        return this.singles != null;
+    }
+
+    /**
+     * Returns the number of bytes used by the stored fractions.
+     *
+     * @return size of the backing array's payload
+     */
+    public long payloadBytes() {
+        return this.fractions != null ? 8L * this.fractions.length : 4L * this.singles.length;
+    }
+
+    /**
+     * Returns the fractions as doubles without copying them if possible, the result must not be modified.
+     *
+     * @return array of fractions indexed by label ID
+     */
+    double[] array() {
+        return this.fractions != null ? this.fractions : this.toArray();
+    }
+
+    /**
+     * Creates a mutable copy of the fractions in this vector.
+     *
+     * @return array of fractions indexed by label ID
+     */
+    public double[] toArray() {
+        if (this.fractions != null) {
+            return this.fractions.clone();
+        }
+        final double[] copy = new double[this.singles.length];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = this.singles[i];
+        }
+        return copy;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return this == obj || obj instanceof LabelVector && Arrays.equals(this.array(), ((LabelVector) obj).array());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.array());
+    }
+
+    @Override
+    public String toString() {
+        return "LabelVector" + Arrays.toString(this.array());
+    }
+}
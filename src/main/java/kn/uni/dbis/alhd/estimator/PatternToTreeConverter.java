@@ -6,16 +6,18 @@ import kn.uni.dbis.alhd.queries.CypherQuery;
 import kn.uni.dbis.alhd.queries.Direction;
 import kn.uni.dbis.alhd.queries.PropSelection;
 import kn.uni.dbis.alhd.statistics.GraphStatistics;
-import kn.uni.dbis.alhd.util.UnionFind;
 
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class PatternToTreeConverter {
+	/**
+	 * Minimum number of relationships of a component for it to be estimated in its own fork-join task when the
+	 * pattern has several components, set by the system property {@code alhd.parallelComponentSize}.
+	 */
+	static final int PARALLEL_COMPONENT_SIZE = Integer.getInteger("alhd.parallelComponentSize", 8);
+
 	/**
 	 * Maps the AST to an algebra expression that is the input of Cascades.
 	 */
@@ -32,177 +34,195 @@ public class PatternToTreeConverter {
 	public static Expression mapToAlgebraExpression(final GraphStatistics stats, final GADbProperties dbProps,
 													final CypherQuery query, final boolean useNewJoin,
 													final Double staticSelectivity) {
-		final CypherPattern pattern = query.getPattern();
-		final Map<String, Set<String>> nodeVars = pattern.getNodeVars();
-		final List<CypherPattern.Relationship> rels = pattern.getRelationships();
-
-		final Map<String, Integer> propIDs = stats.getPropertyIDs();
-		final Map<String, Map<String, PropSelection>> allNodePreds = query.getNodePredicates();
-		final Map<String, Map<String, PropSelection>> allRelPreds = query.getEdgePredicates();
-
-		// lookup function for both node (`true`) and relationship (`false`) property predicates
-		final BiFunction<String, Boolean, Map<Integer, PropSelection>> propertyPreds = (key, nodeVar) -> {
-			final Map<String, PropSelection> preds = (nodeVar ? allNodePreds : allRelPreds).get(key);
-			return preds == null ? Collections.emptyMap() : preds.entrySet().stream()
-					.collect(Collectors.toMap(et -> propIDs.get(et.getKey()), Entry::getValue));
-		};
-
-		final AtomicInteger varGen = new AtomicInteger();
-
-		// efficient lookup from variable name to position in the array
-		final Map<String, Integer> varToPos = new HashMap<>();
-		final String[] nodesArr = nodeVars.keySet().toArray(String[]::new);
-		for (int i = 0; i < nodesArr.length; i++) {
-			varToPos.put(nodesArr[i], i);
-		}
+		return mapToAlgebraExpression(stats, dbProps, query, useNewJoin, staticSelectivity, true);
+	}
 
-		// compute weakly connected components of the pattern
-		final BitSet[] expandLookup = IntStream.range(0, nodesArr.length)
-				.mapToObj(i -> new BitSet(rels.size())).toArray(BitSet[]::new);
-		final int[] unionFind = IntStream.range(0, nodesArr.length).map(i -> -1).toArray();
-		for (int i = 0; i < rels.size(); i++) {
-			final CypherPattern.Relationship expand = rels.get(i);
-			for (final String v : Arrays.asList(expand.getSource(), expand.getTarget())) {
-				expandLookup[varToPos.get(v)].set(i);
-			}
-			UnionFind.union(unionFind, varToPos.get(expand.getSource()), varToPos.get(expand.getTarget()));
-		}
+	/**
+	 * Maps the AST to an algebra expression that is the input of Cascades.
+	 * If {@code pruneDeadVariables} is set, node and relationship variables are dropped from the logical properties
+	 * as soon as no remaining relationship of the pattern refers to them, so that only the frontier of the
+	 * expansion is carried along. The estimated size is the same either way.
+	 */
+	public static Expression mapToAlgebraExpression(final GraphStatistics stats, final GADbProperties dbProps,
+													final CypherQuery query, final boolean useNewJoin,
+													final Double staticSelectivity, final boolean pruneDeadVariables) {
+		return mapToAlgebraExpression(dbProps, CompiledQuery.compile(stats, query), useNewJoin, staticSelectivity,
+				pruneDeadVariables);
+	}
 
-		// gather nodes and relationships contained in each component
-		final Map<Integer, Set<String>> comps = new HashMap<>();
-		for (int i = 0; i < unionFind.length; i++) {
-			final int compID = UnionFind.find(unionFind, i);
-			comps.computeIfAbsent(compID, k -> new HashSet<>()).add(nodesArr[i]);
-		}
-		final Map<Integer, BitSet> compToRel = new HashMap<>();
-		for (int i = 0; i < rels.size(); i++) {
-			final CypherPattern.Relationship rel = rels.get(i);
-			final int compID = UnionFind.find(unionFind, varToPos.get(rel.getSource()));
-			compToRel.computeIfAbsent(compID, k -> new BitSet()).set(i);
-		}
+	/**
+	 * Maps a compiled query to an algebra expression, following the component and expansion order fixed
+	 * during compilation.
+	 */
+	public static Expression mapToAlgebraExpression(final GADbProperties dbProps, final CompiledQuery query,
+													final boolean useNewJoin, final Double staticSelectivity,
+													final boolean pruneDeadVariables) {
+		// number of relationship end points at each node that have not been added to the expression yet
+		final int[] pendingEnds = new int[query.numNodes()];
+		Arrays.setAll(pendingEnds, query::degree);
 
 		// go through all connected components and build up the operator trees
 		final List<Expression> components = new ArrayList<>();
-		for (final Entry<Integer, Set<String>> e : comps.entrySet()) {
-			final int compID = e.getKey();
-			final Set<String> compNodeVars = e.getValue();
+		for (final CompiledQuery.Component comp : query.components()) {
 			final BitSet nodesSeen = new BitSet();
-
-			// initial node in the component, chosen as the one with the most neighbors
-			final int startNode = compNodeVars.stream().map(varToPos::get)
-					.max(Comparator.comparing(vid -> expandLookup[vid].cardinality())).orElseThrow();
+			final int startNode = comp.start();
 			nodesSeen.set(startNode);
 
 			// expression that is extended
-			final String firstNodeName = nodesArr[startNode];
-			Expression compExpr = addNodeSelections(stats, nodeVars, propertyPreds.apply(firstNodeName, true), dbProps,
-					firstNodeName, new Expression(new GetNodes(dbProps, firstNodeName)), staticSelectivity);
-
-			final BitSet relSet = compToRel.get(compID);
-			if (relSet == null) {
-				// no relationships in this pattern
-				components.add(compExpr);
-				continue;
-			}
-
-			final Deque<CypherPattern.Relationship> relDeque = new ArrayDeque<>();
-			final List<CypherPattern.Relationship> deferred = new ArrayList<>();
-			final BitSet firstEdges = expandLookup[startNode];
-			final BitSet edgesPending = (BitSet) relSet.clone();
-			edgesPending.andNot(firstEdges);
-			firstEdges.stream().mapToObj(rels::get).forEach(relDeque::addLast);
+			final String firstNodeName = query.nodeName(startNode);
+			Expression compExpr = addNodeSelections(query, startNode, dbProps,
+					dbProps.expressions().create(new GetNodes(dbProps, firstNodeName, startNode)), staticSelectivity);
 
 			// add one relationship and adjacent node variable at a time
-			while (!relDeque.isEmpty()) {
-				final CypherPattern.Relationship next = relDeque.pollFirst();
-				final String eName = next.name();
-				final int fromID = varToPos.get(next.getSource());
-				final int toID = varToPos.get(next.getTarget());
-
-				String newVar = null;
-				if (nodesSeen.get(fromID)) {
-					if (nodesSeen.get(toID)) {
-						// relationship closes a cycle
-						deferred.add(next);
-					} else {
-						// relationship is outgoing
-						final Expand expand = toExpand(stats, dbProps, next, true, varGen);
-						final Map<Integer, PropSelection> preds = propertyPreds.apply(eName, false);
-						final Expression input = new Expression(expand, compExpr);
-						compExpr = preds.isEmpty() ? input : new Expression(
-								new PropertySelection(dbProps, expand.getRelationshipVariable(), preds, staticSelectivity), input);
-						newVar = next.getTarget();
+			for (final int next : comp.steps()) {
+				final int fromID = query.source(next);
+				final int toID = query.target(next);
+
+				// relationship is outgoing if its source has been seen before
+				final boolean out = nodesSeen.get(fromID);
+				final Expand expand = toExpand(dbProps, query, next, out);
+				final int newID = out ? toID : fromID;
+				final int baseID = out ? fromID : toID;
+				final String newVar = query.nodeName(newID);
+
+				// expand and add the relationship's and new variable's restrictions in one fused operator
+				final Map<Integer, PropSelection> relPreds = query.relationshipPredicates(next);
+				final Map<Integer, PropSelection> nodePreds = query.nodePredicates(newID);
+				final List<NodeLabelSelection> labelSelections = nodeLabelSelections(query, dbProps, newID);
+				pendingEnds[fromID]--;
+				pendingEnds[toID]--;
+				final Map<String, Integer> dead = new HashMap<>();
+				if (pruneDeadVariables) {
+					dead.put(expand.getRelationshipVariable(), query.relationshipId(next));
+					if (pendingEnds[baseID] == 0) {
+						dead.put(query.nodeName(baseID), baseID);
+					}
+					if (pendingEnds[newID] == 0) {
+						dead.put(newVar, newID);
 					}
-				} else if (nodesSeen.get(toID)) {
-					// relationship is incoming
-					final Expand expand = toExpand(stats, dbProps, next, false, varGen);
-					final Map<Integer, PropSelection> preds = propertyPreds.apply(eName, false);
-					final Expression input = new Expression(expand, compExpr);
-					compExpr = preds.isEmpty() ? input : new Expression(
-							new PropertySelection(dbProps, expand.getRelationshipVariable(), preds, staticSelectivity), input);
-					newVar = next.getSource();
+				}
+				if (relPreds.isEmpty() && labelSelections.isEmpty() && nodePreds.isEmpty() && dead.isEmpty()) {
+					compExpr = dbProps.expressions().create(expand, compExpr);
+				} else {
+					compExpr = dbProps.expressions().create(new ExpandSelect(expand,
+							relPreds.isEmpty() ? null : new PropertySelection(dbProps, expand.getRelationshipVariable(),
+									query.relationshipId(next), relPreds, staticSelectivity),
+							labelSelections,
+							nodePreds.isEmpty() ? null : new PropertySelection(dbProps, newVar, newID, nodePreds,
+									staticSelectivity), dead), compExpr);
+				}
+				nodesSeen.set(newID);
+			}
+			for (final int next : comp.cycles()) {
+				final int fromID = query.source(next);
+				final int toID = query.target(next);
+				final String temp = query.temporaryVariable(next);
+				final int tempID = query.temporaryId(next);
+				final Expand expand = new Expand(dbProps, query.nodeName(fromID), fromID,
+						query.isDirected(next) ? Direction.OUTGOING : Direction.BOTH,
+						query.relationshipVariable(next), query.relationshipId(next), query.types(next), temp, tempID);
+				final Map<Integer, PropSelection> preds = query.relationshipPredicates(next);
+				pendingEnds[fromID]--;
+				pendingEnds[toID]--;
+				final Map<String, Integer> dead = new HashMap<>();
+				if (pruneDeadVariables) {
+					// the target is still needed for the join with the temporary variable
+					dead.put(expand.getRelationshipVariable(), query.relationshipId(next));
+					if (pendingEnds[fromID] == 0 && fromID != toID) {
+						dead.put(query.nodeName(fromID), fromID);
+					}
+				}
+				if (preds.isEmpty() && dead.isEmpty()) {
+					compExpr = dbProps.expressions().create(expand, compExpr);
 				} else {
-					throw new AssertionError();
+					final PropertySelection sel = preds.isEmpty() ? null
+							: new PropertySelection(dbProps, expand.getRelationshipVariable(), query.relationshipId(next),
+									preds, staticSelectivity);
+					compExpr = dbProps.expressions().create(new ExpandSelect(expand, sel, List.of(), null, dead), compExpr);
 				}
+				final String target = query.nodeName(toID);
+				compExpr = dbProps.expressions().create(useNewJoin ? new MergeOn(dbProps, target, toID, temp, tempID)
+						: new SelfJoin(dbProps, target, toID, temp, tempID), compExpr);
+			}
+			components.add(compExpr);
+		}
 
-				if (newVar != null) {
-					// add new variable's label restrictions
-					final int nvID = varToPos.get(newVar);
-					compExpr = addNodeSelections(stats, nodeVars, propertyPreds.apply(newVar, true),
-							dbProps, newVar, compExpr, staticSelectivity);
-					expandLookup[nvID].stream().filter(edgesPending::get).forEach(vid -> {
-						edgesPending.clear(vid);
-						relDeque.addLast(rels.get(vid));
+		// estimate large components concurrently, the join tree below only depends on the order of the components
+		if (components.size() > 1) {
+			final List<RecursiveAction> tasks = new ArrayList<>();
+			for (int i = 0; i < components.size(); i++) {
+				final CompiledQuery.Component comp = query.components().get(i);
+				if (comp.steps().length + comp.cycles().length >= PARALLEL_COMPONENT_SIZE) {
+					final Expression e = components.get(i);
+					tasks.add(new RecursiveAction() {
+						@Override
+						protected void compute() {
+							e.getLogicalProperties();
+						}
 					});
-					nodesSeen.set(nvID);
 				}
 			}
-			for (final CypherPattern.Relationship next : deferred) {
-				final String temp = "$v" + varGen.getAndIncrement();
-				final Expand expand = toExpand(stats, dbProps, next.redirect(temp), true, varGen);
-				compExpr = new Expression(expand, compExpr);
-				final Map<Integer, PropSelection> preds = propertyPreds.apply(next.name(), false);
-				if (!preds.isEmpty()) {
-					final PropertySelection sel = new PropertySelection(dbProps, expand.getRelationshipVariable(), preds, staticSelectivity);
-					compExpr = new Expression(sel, compExpr);
-				}
-				compExpr = new Expression(useNewJoin ? new MergeOn(dbProps, next.getTarget(), temp)
-						: new SelfJoin(dbProps, next.getTarget(), temp), compExpr);
+			if (!tasks.isEmpty()) {
+				ForkJoinTask.invokeAll(tasks);
 			}
-			components.add(compExpr);
 		}
 
 		//	We have to join all of the found components.
-		Expression joinedExp = null;
-		for (final Expression e : components) {
-			final GALogicalOperator op = new NodeJoin(dbProps);
-			joinedExp = joinedExp == null ? e : new Expression(op, joinedExp, e);
-		}
+		final Expression joinedExp = components.isEmpty() ? null : join(dbProps, components, 0, components.size());
 
 //		System.out.println(joinedExp);
 		return joinedExp;
 	}
 
-	private static Expand toExpand(GraphStatistics stats, GADbProperties dbProps, CypherPattern.Relationship edge,
-								   final boolean out, AtomicInteger varGen) {
-		final Optional<String> tp = edge.getType();
-		final Set<Integer> types = Collections.singleton(tp.map(stats::getTypeID).map(OptionalInt::orElseThrow).orElse(-1));
-		final String relVar = "$e" + varGen.getAndIncrement();
+	/**
+	 * Joins the given range of components with a balanced tree of {@link NodeJoin}s.
+	 */
+	private static Expression join(final GADbProperties dbProps, final List<Expression> components, final int from,
+								   final int to) {
+		if (to - from == 1) {
+			return components.get(from);
+		}
+		final int mid = (from + to) >>> 1;
+		return dbProps.expressions().create(new NodeJoin(dbProps), join(dbProps, components, from, mid),
+				join(dbProps, components, mid, to));
+	}
+
+	static Expand toExpand(final GADbProperties dbProps, final CompiledQuery query, final int rel,
+						   final boolean out) {
+		final int sourceID = query.source(rel);
+		final int targetID = query.target(rel);
+		final String source = query.nodeName(sourceID);
+		final String target = query.nodeName(targetID);
+		final Set<Integer> types = query.types(rel);
+		final String relVar = query.relationshipVariable(rel);
+		final int relID = query.relationshipId(rel);
 		if (out) {
-			return new Expand(dbProps, edge.getSource(), edge.isDirected() ? Direction.OUTGOING : Direction.BOTH, relVar, types, edge.getTarget());
+			return new Expand(dbProps, source, sourceID, query.isDirected(rel) ? Direction.OUTGOING : Direction.BOTH,
+					relVar, relID, types, target, targetID);
 		} else {
-			return new Expand(dbProps, edge.getTarget(), edge.isDirected() ? Direction.INCOMING : Direction.BOTH, relVar, types, edge.getSource());
+			return new Expand(dbProps, target, targetID, query.isDirected(rel) ? Direction.INCOMING : Direction.BOTH,
+					relVar, relID, types, source, sourceID);
+		}
+	}
+
+	static List<NodeLabelSelection> nodeLabelSelections(final CompiledQuery query,
+			final GADbProperties dbProps, final int node) {
+		final String var = query.nodeName(node);
+		final List<NodeLabelSelection> selections = new ArrayList<>();
+		for (final int lbl : query.nodeLabels(node)) {
+			selections.add(new NodeLabelSelection(dbProps, var, node, lbl));
 		}
+		return selections;
 	}
 
-	private static Expression addNodeSelections(final GraphStatistics stats, final Map<String, Set<String>> nodeVars,
-			final Map<Integer, PropSelection> preds, final GADbProperties dbProps, final String var, final Expression input,
-												final Double staticSelectivity) {
+	private static Expression addNodeSelections(final CompiledQuery query, final int node,
+			final GADbProperties dbProps, final Expression input, final Double staticSelectivity) {
 		Expression expr = input;
-		for (final String lbl : nodeVars.get(var)) {
-			final GALogicalOperator op = new NodeLabelSelection(dbProps, var, stats.getLabelID(lbl).orElseThrow());
-			expr = new Expression(op, expr);
+		for (final NodeLabelSelection op : nodeLabelSelections(query, dbProps, node)) {
+			expr = dbProps.expressions().create(op, expr);
 		}
-		return preds.isEmpty() ? expr : new Expression(new PropertySelection(dbProps, var, preds, staticSelectivity), expr);
+		final Map<Integer, PropSelection> preds = query.nodePredicates(node);
+		return preds.isEmpty() ? expr : dbProps.expressions().create(new PropertySelection(dbProps, query.nodeName(node),
+				node, preds, staticSelectivity), expr);
 	}
 }
@@ -0,0 +1,325 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.estimator.operators.*;
+import kn.uni.dbis.alhd.queries.Direction;
+import kn.uni.dbis.alhd.queries.PropSelection;
+
+import java.util.*;
+
+/**
+ * Estimation of a compiled query over all connected expansion orders instead of the single one fixed during
+ * compilation.
+ *
+ * The enumerator works bottom-up over the connected sub-patterns of each component, identified by the bit set of
+ * their node slots. A sub-pattern of a single node is built from {@link GetNodes} and the node's selections. A
+ * larger sub-pattern is derived from each of its connected sub-patterns with one node less by expanding along one
+ * of the relationships to the missing node, applying the node's selections, and closing all further relationships
+ * between the missing node and the sub-pattern as cycles with {@link MergeOn} or {@link SelfJoin}. The candidates
+ * obtained from all these derivations are combined by an {@link Aggregate}, and only the combined logical
+ * properties are memoized, so that every sub-pattern is evaluated once per derivation instead of once per
+ * expansion order. All variables are kept in the logical properties, as a sub-pattern may be extended at any of
+ * its nodes.
+ *
+ * The number of connected sub-patterns grows exponentially with the size of a component, so this is meant for
+ * the small patterns of typical queries. Enumerators are not thread-safe.
+ */
+public final class SubPatternEnumerator {
+
+    /**
+     * How the candidate estimates of the derivations of a sub-pattern are combined.
+     */
+    public enum Aggregate {
+        /**
+         * Only the first derivation, from the lowest node slot whose removal leaves a connected sub-pattern, along
+         * its first relationship. Every sub-pattern is then derived exactly once.
+         */
+        FIRST,
+        /** The smallest candidate. */
+        MIN,
+        /** The lower median of the candidates. */
+        MEDIAN,
+        /**
+         * The geometric mean of the candidate sizes, with the label fractions of the candidate closest to it.
+         */
+        GEOMETRIC_MEAN
+    }
+
+    /** Database properties. */
+    private final GADbProperties dbProps;
+
+    /** The compiled query. */
+    private final CompiledQuery query;
+
+    /** Whether cycles are closed with {@link MergeOn} instead of {@link SelfJoin}. */
+    private final boolean useNewJoin;
+
+    /** Static selectivity of property predicates, or {@code null} to use the statistics. */
+    private final Double staticSelectivity;
+
+    /** How candidates are combined. */
+    private final Aggregate aggregate;
+
+    /** Relationships incident to each node slot. */
+    private final int[][] incident;
+
+    /** Temporary target variable of each relationship when it closes a cycle. */
+    private final String[] temporaryVariables;
+
+    /** Logical properties of all connected sub-patterns evaluated so far. */
+    private final Map<BitSet, GAResultProperties> memo = new HashMap<>();
+
+    /**
+     * Creates an enumerator for the given query.
+     *
+     * @param dbProps database properties
+     * @param query the compiled query
+     * @param useNewJoin whether cycles are closed with {@link MergeOn} instead of {@link SelfJoin}
+     * @param staticSelectivity static selectivity of property predicates, or {@code null} to use the statistics
+     * @param aggregate how the candidates of the derivations of each sub-pattern are combined
+     */
+    public SubPatternEnumerator(final GADbProperties dbProps, final CompiledQuery query, final boolean useNewJoin,
+                                final Double staticSelectivity, final Aggregate aggregate) {
+        this.dbProps = dbProps;
+        this.query = query;
+        this.useNewJoin = useNewJoin;
+        this.staticSelectivity = staticSelectivity;
+        this.aggregate = aggregate;
+
+        final int numRels = query.numRelationships();
+        final List<List<Integer>> incident = new ArrayList<>();
+        for (int i = 0; i < query.numNodes(); i++) {
+            incident.add(new ArrayList<>());
+        }
+        this.temporaryVariables = new String[numRels];
+        for (int r = 0; r < numRels; r++) {
+            incident.get(query.source(r)).add(r);
+            if (query.target(r) != query.source(r)) {
+                incident.get(query.target(r)).add(r);
+            }
+            final String temp = query.temporaryVariable(r);
+            this.temporaryVariables[r] = temp != null ? temp : "$t" + r;
+        }
+        this.incident = incident.stream().map(l -> l.stream().mapToInt(Integer::intValue).toArray())
+                .toArray(int[][]::new);
+    }
+
+    /**
+     * Estimates the whole query, joining the estimates of its components with {@link NodeJoin}.
+     *
+     * @return the logical properties of the query
+     */
+    public GAResultProperties estimate() {
+        GAResultProperties joined = null;
+        for (final CompiledQuery.Component comp : this.query.components()) {
+            final GAResultProperties props = this.properties(this.componentNodes(comp));
+            joined = joined == null ? props
+                    : Expression.evaluate(new NodeJoin(this.dbProps), List.of(joined, props));
+        }
+        return joined;
+    }
+
+    /**
+     * Returns the logical properties of the sub-pattern induced by the given node slots, evaluating it and all of
+     * its connected sub-patterns if that has not happened yet.
+     *
+     * @param nodes the node slots, which must be non-empty and connected
+     * @return the memoized logical properties
+     * @throws IllegalArgumentException if the node slots are empty or not connected
+     */
+    public GAResultProperties properties(final BitSet nodes) {
+        if (nodes.isEmpty() || !this.isConnected(nodes)) {
+            throw new IllegalArgumentException("Not a connected sub-pattern: " + nodes);
+        }
+        return this.evaluate(nodes);
+    }
+
+    /**
+     * Returns the number of sub-patterns memoized so far.
+     *
+     * @return number of evaluated connected sub-patterns
+     */
+    public int memoSize() {
+        return this.memo.size();
+    }
+
+    /**
+     * Returns the node slots of the given component.
+     *
+     * @param comp a component of the query
+     * @return the node slots reachable from the component's start node
+     */
+    BitSet componentNodes(final CompiledQuery.Component comp) {
+        final BitSet nodes = new BitSet();
+        nodes.set(0, this.query.numNodes());
+        return this.reachable(nodes, comp.start());
+    }
+
+    private GAResultProperties evaluate(final BitSet nodes) {
+        final GAResultProperties known = this.memo.get(nodes);
+        if (known != null) {
+            return known;
+        }
+        final GAResultProperties result;
+        if (nodes.cardinality() == 1) {
+            result = this.single(nodes.nextSetBit(0));
+        } else {
+            final List<GAResultProperties> candidates = new ArrayList<>();
+            final BitSet rest = (BitSet) nodes.clone();
+            for (int v = nodes.nextSetBit(0); v >= 0; v = nodes.nextSetBit(v + 1)) {
+                rest.clear(v);
+                if (this.isConnected(rest)) {
+                    final GAResultProperties base = this.evaluate(rest);
+                    for (final int r : this.incident[v]) {
+                        final int other = this.otherEnd(r, v);
+                        if (other != v && rest.get(other)) {
+                            candidates.add(this.extend(base, rest, v, r));
+                            if (this.aggregate == Aggregate.FIRST) {
+                                break;
+                            }
+                        }
+                    }
+                }
+                rest.set(v);
+                if (this.aggregate == Aggregate.FIRST && !candidates.isEmpty()) {
+                    break;
+                }
+            }
+            result = this.combine(candidates);
+        }
+        this.memo.put((BitSet) nodes.clone(), result);
+        return result;
+    }
+
+    /** Scans a single node and closes the relationships from the node to itself. */
+    private GAResultProperties single(final int node) {
+        GAResultProperties props = this.apply(new GetNodes(this.dbProps, this.query.nodeName(node), node));
+        for (final NodeLabelSelection sel : PatternToTreeConverter.nodeLabelSelections(this.query, this.dbProps, node)) {
+            props = this.apply(sel, props);
+        }
+        final Map<Integer, PropSelection> preds = this.query.nodePredicates(node);
+        if (!preds.isEmpty()) {
+            props = this.apply(new PropertySelection(this.dbProps, this.query.nodeName(node), node, preds,
+                    this.staticSelectivity), props);
+        }
+        for (final int r : this.incident[node]) {
+            if (this.otherEnd(r, node) == node) {
+                props = this.closeCycle(props, r);
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Extends the given sub-pattern by a node along a relationship and closes the node's other relationships into
+     * the sub-pattern.
+     */
+    private GAResultProperties extend(final GAResultProperties base, final BitSet baseNodes, final int node,
+                                      final int rel) {
+        final boolean out = this.query.target(rel) == node;
+        final Expand expand = PatternToTreeConverter.toExpand(this.dbProps, this.query, rel, out);
+        final String newVar = this.query.nodeName(node);
+        final Map<Integer, PropSelection> relPreds = this.query.relationshipPredicates(rel);
+        final Map<Integer, PropSelection> nodePreds = this.query.nodePredicates(node);
+        final List<NodeLabelSelection> labelSelections =
+                PatternToTreeConverter.nodeLabelSelections(this.query, this.dbProps, node);
+        GAResultProperties props;
+        if (relPreds.isEmpty() && labelSelections.isEmpty() && nodePreds.isEmpty()) {
+            props = this.apply(expand, base);
+        } else {
+            props = this.apply(new ExpandSelect(expand,
+                    relPreds.isEmpty() ? null : new PropertySelection(this.dbProps, expand.getRelationshipVariable(),
+                            this.query.relationshipId(rel), relPreds, this.staticSelectivity),
+                    labelSelections,
+                    nodePreds.isEmpty() ? null : new PropertySelection(this.dbProps, newVar, node, nodePreds,
+                            this.staticSelectivity)), base);
+        }
+        for (final int r : this.incident[node]) {
+            if (r != rel && (this.otherEnd(r, node) == node || baseNodes.get(this.otherEnd(r, node)))) {
+                props = this.closeCycle(props, r);
+            }
+        }
+        return props;
+    }
+
+    /** Adds a relationship between two node variables that are both bound already. */
+    private GAResultProperties closeCycle(final GAResultProperties input, final int rel) {
+        final String temp = this.temporaryVariables[rel];
+        final int tempId = this.query.temporaryId(rel);
+        final int source = this.query.source(rel);
+        final int target = this.query.target(rel);
+        final Expand expand = new Expand(this.dbProps, this.query.nodeName(source), source,
+                this.query.isDirected(rel) ? Direction.OUTGOING : Direction.BOTH, this.query.relationshipVariable(rel),
+                this.query.relationshipId(rel), this.query.types(rel), temp, tempId);
+        final Map<Integer, PropSelection> preds = this.query.relationshipPredicates(rel);
+        final GAResultProperties expanded = preds.isEmpty() ? this.apply(expand, input)
+                : this.apply(new ExpandSelect(expand, new PropertySelection(this.dbProps,
+                        expand.getRelationshipVariable(), this.query.relationshipId(rel), preds,
+                        this.staticSelectivity), List.of(), null), input);
+        final String targetVar = this.query.nodeName(target);
+        return this.apply(this.useNewJoin ? new MergeOn(this.dbProps, targetVar, target, temp, tempId)
+                : new SelfJoin(this.dbProps, targetVar, target, temp, tempId), expanded);
+    }
+
+    private GAResultProperties combine(final List<GAResultProperties> candidates) {
+        final List<GAResultProperties> bySize = new ArrayList<>(candidates);
+        // stable, so that ties are broken by the order of derivation
+        bySize.sort(Comparator.comparingDouble(GAResultProperties::getSize));
+        switch (this.aggregate) {
+            case FIRST:
+                return candidates.get(0);
+            case MIN:
+                return bySize.get(0);
+            case MEDIAN:
+                return bySize.get((bySize.size() - 1) / 2);
+            case GEOMETRIC_MEAN:
+                if (bySize.get(0).getSize() == 0) {
+                    return bySize.get(0);
+                }
+                double logSum = 0;
+                for (final GAResultProperties c : bySize) {
+                    logSum += Math.log(c.getSize());
+                }
+                final double logMean = logSum / bySize.size();
+                GAResultProperties closest = bySize.get(0);
+                for (final GAResultProperties c : bySize) {
+                    if (Math.abs(Math.log(c.getSize()) - logMean) < Math.abs(Math.log(closest.getSize()) - logMean)) {
+                        closest = c;
+                    }
+                }
+                return closest.derive().size(Math.exp(logMean)).build();
+            default:
+                throw new AssertionError(this.aggregate);
+        }
+    }
+
+    private GAResultProperties apply(final GALogicalOperator op, final GAResultProperties... inputs) {
+        return Expression.evaluate(op, List.of(inputs));
+    }
+
+    private int otherEnd(final int rel, final int node) {
+        return this.query.source(rel) == node ? this.query.target(rel) : this.query.source(rel);
+    }
+
+    private boolean isConnected(final BitSet nodes) {
+        return nodes.isEmpty() || this.reachable(nodes, nodes.nextSetBit(0)).equals(nodes);
+    }
+
+    /** Returns the node slots reachable from the start node within the given ones. */
+    private BitSet reachable(final BitSet within, final int start) {
+        final BitSet seen = new BitSet();
+        seen.set(start);
+        final Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            final int v = stack.pop();
+            for (final int r : this.incident[v]) {
+                final int w = this.otherEnd(r, v);
+                if (within.get(w) && !seen.get(w)) {
+                    seen.set(w);
+                    stack.push(w);
+                }
+            }
+        }
+        return seen;
+    }
+}
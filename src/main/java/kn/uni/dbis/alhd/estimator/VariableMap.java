@@ -0,0 +1,324 @@
+package kn.uni.dbis.alhd.estimator;
+
+import java.util.*;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Persistent map from variable names to values, backed by a bitmapped trie over dense variable IDs.
+ *
+ * The IDs are assigned by whoever creates the operator tree, like the slots of a {@link CompiledQuery}, and the
+ * leaves of the trie hold the name of each variable together with its value. Lookups by ID follow the trie, while
+ * lookups by name scan the entries, which is cheap for the few variables of a pattern.
+ *
+ * The map cannot be modified, {@link #with(String, int, Object)} and {@link #without(int)} return new maps
+ * sharing all untouched nodes with this one, so deriving a map costs {@code O(log_32 n)} per changed variable.
+ *
+ * @param <V> type of the values
+ */
+public final class VariableMap<V> extends AbstractMap<String, V> {
+
+    /** Number of ID bits handled per trie level. */
+    private static final int BITS = 5;
+
+    /** The empty map. */
+    private static final VariableMap<?> EMPTY = new VariableMap<>(null, 0, 0);
+
+    /** Root node, {@code null} for the empty map. */
+    private final Node root;
+
+    /** Shift of the ID bits handled by the root node, the leaves have shift {@code 0}. */
+    private final int shift;
+
+    /** Number of entries. */
+    private final int size;
+
+    /** Lazily created entry set view. */
+    private Set<Entry<String, V>> entries;
+
+    private VariableMap(final Node root, final int shift, final int size) {
+        this.root = root;
+        this.shift = shift;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty map.
+     *
+     * @param <V> type of the values
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> VariableMap<V> empty() {
+        return (VariableMap<V>) EMPTY;
+    }
+
+    /**
+     * Returns a persistent map with the same entries as the given map. If the map is not persistent yet, its
+     * variables are numbered consecutively in iteration order.
+     *
+     * @param map the map to copy
+     * @param firstId ID of the first variable of a copied map
+     * @param <V> type of the values
+     * @return the given map if it is already persistent, a copy otherwise
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> VariableMap<V> copyOf(final Map<String, ? extends V> map, final int firstId) {
+        if (map instanceof VariableMap) {
+            return (VariableMap<V>) map;
+        }
+        VariableMap<V> result = empty();
+        int id = firstId;
+        for (final Entry<String, ? extends V> e : map.entrySet()) {
+            result = result.with(e.getKey(), id++, e.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return this.id(key) >= 0;
+    }
+
+    @Override
+    public V get(final Object key) {
+        final int id = this.id(key);
+        return id < 0 ? null : this.get(id);
+    }
+
+    /**
+     * Returns the ID of the variable with the given name.
+     *
+     * @param name name of the variable
+     * @return the ID, or {@code -1} if the variable is not contained
+     */
+    public int id(final Object name) {
+        return name instanceof String ? search(this.root, this.shift, 0, name) : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int search(final Node node, final int level, final int prefix, final Object name) {
+        if (node == null) {
+            return -1;
+        }
+        int pos = 0;
+        for (int i = 0; i < 32; i++) {
+            if ((node.bitmap & 1 << i) != 0) {
+                final int id = prefix | i << level;
+                final int found = level != 0 ? search((Node) node.slots[pos], level - BITS, id, name)
+                        : ((Entry<String, ?>) node.slots[pos]).getKey().equals(name) ? id : -1;
+                if (found >= 0) {
+                    return found;
+                }
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the variable with the given ID.
+     *
+     * @param id ID of the variable
+     * @return the value, or {@code null} if the variable is not contained
+     */
+    public V get(final int id) {
+        final Entry<String, V> entry = this.find(id);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Returns the name of the variable with the given ID.
+     *
+     * @param id ID of the variable
+     * @return the name, or {@code null} if the variable is not contained
+     */
+    public String name(final int id) {
+        final Entry<String, V> entry = this.find(id);
+        return entry == null ? null : entry.getKey();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<String, V> find(final int id) {
+        if (id < 0 || this.root == null || this.shift + BITS < Integer.SIZE && id >>> (this.shift + BITS) != 0) {
+            return null;
+        }
+        Node node = this.root;
+        for (int level = this.shift;; level -= BITS) {
+            final int bit = 1 << (id >>> level & 31);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (level == 0) {
+                return (Entry<String, V>) slot;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    /**
+     * Returns a map in which the variable with the given name and ID is mapped to the given value.
+     *
+     * @param name name of the variable
+     * @param id ID of the variable
+     * @param value the new value, must not be {@code null}
+     * @return the new map
+     * @throws IllegalArgumentException if the ID already belongs to a variable with a different name
+     */
+    public VariableMap<V> with(final String name, final int id, final V value) {
+        Objects.requireNonNull(value);
+        final Entry<String, V> existing = this.find(id);
+        if (existing != null && !existing.getKey().equals(name)) {
+            throw new IllegalArgumentException("Variable ID " + id + " is used by " + existing.getKey()
+                    + " and " + name + ".");
+        }
+        Node root = this.root;
+        int shift = this.shift;
+        if (root == null) {
+            shift = 0;
+            while (shift + BITS < Integer.SIZE && id >>> (shift + BITS) != 0) {
+                shift += BITS;
+            }
+        } else {
+            // add levels on top until the ID fits into the trie
+            while (shift + BITS < Integer.SIZE && id >>> (shift + BITS) != 0) {
+                root = new Node(1, new Object[] { root });
+                shift += BITS;
+            }
+        }
+        final boolean[] added = new boolean[1];
+        final Node newRoot = insert(root, shift, id, new SimpleImmutableEntry<>(name, value), added);
+        return new VariableMap<>(newRoot, shift, added[0] ? this.size + 1 : this.size);
+    }
+
+    private static Node insert(final Node node, final int level, final int id, final Object value,
+                               final boolean[] added) {
+        final int bit = 1 << (id >>> level & 31);
+        if (node == null) {
+            added[0] = true;
+            return new Node(bit, new Object[] { level == 0 ? value : insert(null, level - BITS, id, value, added) });
+        }
+        final int pos = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) != 0) {
+            final Object[] slots = node.slots.clone();
+            slots[pos] = level == 0 ? value : insert((Node) slots[pos], level - BITS, id, value, added);
+            return new Node(node.bitmap, slots);
+        }
+        final Object[] slots = new Object[node.slots.length + 1];
+        System.arraycopy(node.slots, 0, slots, 0, pos);
+        System.arraycopy(node.slots, pos, slots, pos + 1, node.slots.length - pos);
+        slots[pos] = level == 0 ? value : insert(null, level - BITS, id, value, added);
+        added[0] |= level == 0;
+        return new Node(node.bitmap | bit, slots);
+    }
+
+    /**
+     * Returns a map without the variable with the given ID.
+     *
+     * @param id ID of the variable
+     * @return the new map, or this map if the variable is not contained
+     */
+    public VariableMap<V> without(final int id) {
+        if (this.find(id) == null) {
+            return this;
+        }
+        final Node newRoot = remove(this.root, this.shift, id);
+        return newRoot == null ? empty() : new VariableMap<>(newRoot, this.shift, this.size - 1);
+    }
+
+    private static Node remove(final Node node, final int level, final int id) {
+        final int bit = 1 << (id >>> level & 31);
+        final int pos = Integer.bitCount(node.bitmap & (bit - 1));
+        final Node child = level == 0 ? null : remove((Node) node.slots[pos], level - BITS, id);
+        if (child != null) {
+            final Object[] slots = node.slots.clone();
+            slots[pos] = child;
+            return new Node(node.bitmap, slots);
+        }
+        if (node.slots.length == 1) {
+            return null;
+        }
+        final Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, pos);
+        System.arraycopy(node.slots, pos + 1, slots, pos, slots.length - pos);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        Set<Entry<String, V>> es = this.entries;
+        if (es == null) {
+            es = new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, V>> iterator() {
+                    final List<Entry<String, V>> list = new ArrayList<>(VariableMap.this.size);
+                    VariableMap.<V>forEachLeaf(VariableMap.this.root, VariableMap.this.shift, 0,
+                            (entry, id) -> list.add(entry));
+                    return Collections.unmodifiableList(list).iterator();
+                }
+
+                @Override
+                public int size() {
+                    return VariableMap.this.size;
+                }
+            };
+            this.entries = es;
+        }
+        return es;
+    }
+
+    /**
+     * Calls the given action for each value and the ID of its variable, in ascending ID order.
+     *
+     * @param action the action
+     */
+    public void forEachId(final ObjIntConsumer<? super V> action) {
+        VariableMap.<V>forEachLeaf(this.root, this.shift, 0, (entry, id) -> action.accept(entry.getValue(), id));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void forEachLeaf(final Node node, final int level, final int prefix,
+                                        final ObjIntConsumer<Entry<String, V>> action) {
+        if (node == null) {
+            return;
+        }
+        int pos = 0;
+        for (int i = 0; i < 32; i++) {
+            if ((node.bitmap & 1 << i) != 0) {
+                final int id = prefix | i << level;
+                if (level == 0) {
+                    action.accept((Entry<String, V>) node.slots[pos], id);
+                } else {
+                    forEachLeaf((Node) node.slots[pos], level - BITS, id, action);
+                }
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Inner node of the trie, the slots of all set bits of the bitmap are stored consecutively.
+     */
+    private static final class Node {
+        /** Set bits mark the present children. */
+        private final int bitmap;
+
+        /** Children (or entries of name and value at the leaf level) of the present bits in ascending order. */
+        private final Object[] slots;
+
+        Node(final int bitmap, final Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package kn.uni.dbis.alhd.estimator;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of the label kernels using the {@code jdk.incubator.vector} API.
+ *
+ * This class is only compiled with the Maven profile {@code vector} and only loaded by {@link LabelKernels} if
+ * the module is present at runtime.
+ */
+final class VectorLabelKernels extends LabelKernels {
+
+    /** Preferred vector shape of the platform. */
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public String name() {
+        return "vector" + SPECIES.length();
+    }
+
+    @Override
+    public void union(final double[] left, final double[] right, final double[] out, final int n) {
+        final int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final DoubleVector l = DoubleVector.fromArray(SPECIES, left, i);
+            final DoubleVector r = DoubleVector.fromArray(SPECIES, right, i);
+            final DoubleVector notL = l.neg().add(1.0d);
+            final DoubleVector notR = r.neg().add(1.0d);
+            l.mul(r).add(notL.mul(r)).add(l.mul(notR)).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            final double leftP = left[i];
+            final double rightP = right[i];
+            out[i] = leftP * rightP + (1.0d - leftP) * rightP + leftP * (1.0d - rightP);
+        }
+    }
+
+    @Override
+    public void merge(final double[] staying, final double[] leaving, final double factor, final double[] out,
+                      final int n) {
+        if (factor == 0) {
+            // every fraction becomes 0
+            Arrays.fill(out, 0, n, 0.0d);
+            return;
+        }
+        final int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final DoubleVector minFrac = DoubleVector.fromArray(SPECIES, staying, i)
+                    .min(DoubleVector.fromArray(SPECIES, leaving, i));
+            final VectorMask<Double> zero = minFrac.compare(VectorOperators.EQ, 0.0d);
+            minFrac.div(factor).blend(0.0d, zero).min(1.0d).max(0.0d).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            final double minFrac = Math.min(staying[i], leaving[i]);
+            final double res = minFrac == 0 ? 0 : minFrac / factor;
+            out[i] = Math.max(0, Math.min(res, 1));
+        }
+    }
+
+    @Override
+    public void rescale(final double[] fractions, final int off, final int n, final boolean[] selected,
+                        final double selectivity) {
+        final int bound = SPECIES.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            final VectorMask<Double> sel = VectorMask.fromArray(SPECIES, selected, off + i);
+            DoubleVector.fromArray(SPECIES, fractions, off + i).div(selectivity).min(1.0d)
+                    .blend(0.0d, sel.not()).intoArray(fractions, off + i);
+        }
+        for (; i < n; i++) {
+            fractions[off + i] = selected[off + i] ? Math.min(fractions[off + i] / selectivity, 1.0d) : 0.0d;
+        }
+    }
+}
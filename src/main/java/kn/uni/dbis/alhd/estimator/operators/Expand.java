@@ -1,9 +1,11 @@
 package kn.uni.dbis.alhd.estimator.operators;
 
 import kn.uni.dbis.alhd.queries.Direction;
+import kn.uni.dbis.alhd.estimator.ClusterTasks;
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
 import kn.uni.dbis.alhd.estimator.LabelDistribution;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 
 import java.util.*;
 
@@ -23,36 +25,52 @@ public class Expand implements GALogicalOperator {
     /** Types of the relationship variable. */
     private final Set<Integer> relationshipTypes;
 
+    /** Aggregated counts of the relationship types if there is more than one, {@code null} otherwise. */
+    private final GADbProperties.TypeSetCounts typeSetCounts;
+
     /** Variable that matches the new nodes found by this expansion. */
     private final String targetVariable;
 
     /** Direction of the expansion. */
     private final Direction direction;
 
+    /** IDs of the base, relationship and target variable. */
+    private final int baseId, relationshipId, targetId;
+
     /**
      * Constructs a new Expand-operator.
      *
      * @param dbProps database properties
      * @param baseVariable which nodes should be expanded from the input
+     * @param baseId ID of the base variable in the operator tree
      * @param direction whether the expansion uses outgoing or incoming edges
      * @param relationshipVariable how to match the relationships found by this expansion
+     * @param relationshipId ID of the relationship variable in the operator tree
      * @param relationshipTypes the types of relationships found by this expansion
      *                          (the empty set represents all types)
      * @param targetVariable how to match the new nodes found by this expansion
+     * @param targetId ID of the target variable in the operator tree
      */
     public Expand(
             final GADbProperties dbProps,
             final String baseVariable,
+            final int baseId,
             final Direction direction,
             final String relationshipVariable,
+            final int relationshipId,
             final Set<Integer> relationshipTypes,
-            final String targetVariable) {
+            final String targetVariable,
+            final int targetId) {
         this.dbProps = dbProps;
         this.baseVariable = baseVariable;
         this.direction = direction;
         this.relationshipVariable = relationshipVariable;
         this.relationshipTypes = relationshipTypes;
+        this.typeSetCounts = relationshipTypes.size() > 1 ? dbProps.typeSetCounts(relationshipTypes) : null;
         this.targetVariable = targetVariable;
+        this.baseId = baseId;
+        this.relationshipId = relationshipId;
+        this.targetId = targetId;
     }
 
     /**
@@ -60,19 +78,26 @@ public class Expand implements GALogicalOperator {
      *
      * @param dbProps database properties
      * @param baseVariable which nodes should be expanded from the input
+     * @param baseId ID of the base variable in the operator tree
      * @param relationshipVariable how to match the relationships found by this expansion
+     * @param relationshipId ID of the relationship variable in the operator tree
      * @param relationshipTypes the types of relationships found by this expansion
      *                          (the empty set represents all types)
      * @param newVariable how to match the new nodes found by this expansion
+     * @param newId ID of the new variable in the operator tree
      * @return the new expand operator
      */
     public static Expand both(
             final GADbProperties dbProps,
             final String baseVariable,
+            final int baseId,
             final String relationshipVariable,
+            final int relationshipId,
             final Set<Integer> relationshipTypes,
-            final String newVariable) {
-        return new Expand(dbProps, baseVariable, Direction.BOTH, relationshipVariable, relationshipTypes, newVariable);
+            final String newVariable,
+            final int newId) {
+        return new Expand(dbProps, baseVariable, baseId, Direction.BOTH, relationshipVariable, relationshipId,
+                relationshipTypes, newVariable, newId);
     }
 
     /**
@@ -80,19 +105,26 @@ public class Expand implements GALogicalOperator {
      *
      * @param dbProps database properties
      * @param baseVariable which nodes should be expanded from the input
+     * @param baseId ID of the base variable in the operator tree
      * @param relationshipVariable how to match the relationships found by this expansion
+     * @param relationshipId ID of the relationship variable in the operator tree
      * @param relationshipTypes the types of relationships found by this expansion
      *                          (the empty set represents all types)
      * @param newVariable how to match the new nodes found by this expansion
+     * @param newId ID of the new variable in the operator tree
      * @return the new expand operator
      */
     public static Expand out(
             final GADbProperties dbProps,
             final String baseVariable,
+            final int baseId,
             final String relationshipVariable,
+            final int relationshipId,
             final Set<Integer> relationshipTypes,
-            final String newVariable) {
-        return new Expand(dbProps, baseVariable, Direction.OUTGOING, relationshipVariable, relationshipTypes, newVariable);
+            final String newVariable,
+            final int newId) {
+        return new Expand(dbProps, baseVariable, baseId, Direction.OUTGOING, relationshipVariable, relationshipId,
+                relationshipTypes, newVariable, newId);
     }
 
     /**
@@ -100,19 +132,26 @@ public class Expand implements GALogicalOperator {
      *
      * @param dbProps database properties
      * @param baseVariable which nodes should be expanded from the input
+     * @param baseId ID of the base variable in the operator tree
      * @param relationshipVariable how to match the relationships found by this expansion
+     * @param relationshipId ID of the relationship variable in the operator tree
      * @param relationshipTypes the types of relationships found by this expansion
      *                          (the empty set represents all types)
      * @param newVariable how to match the new nodes found by this expansion
+     * @param newId ID of the new variable in the operator tree
      * @return the new expand operator
      */
     public static Expand in(
             final GADbProperties dbProps,
             final String baseVariable,
+            final int baseId,
             final String relationshipVariable,
+            final int relationshipId,
             final Set<Integer> relationshipTypes,
-            final String newVariable) {
-        return new Expand(dbProps, baseVariable, Direction.INCOMING, relationshipVariable, relationshipTypes, newVariable);
+            final String newVariable,
+            final int newId) {
+        return new Expand(dbProps, baseVariable, baseId, Direction.INCOMING, relationshipVariable, relationshipId,
+                relationshipTypes, newVariable, newId);
     }
 
     /**
@@ -125,10 +164,10 @@ public class Expand implements GALogicalOperator {
      * @return how many relationships are expected to be found by this expand to the given label
      */
     private double estimateDegree(final GAResultProperties input, final int labelAtTarget) {
-        final Map<Integer, Double> fractionsAtBase = input.getNodeLabelMap().get(this.baseVariable);
+        final LabelVector fractionsAtBase = input.getNodeLabelMap().get(this.baseId);
         final LabelDistribution labelDist = this.dbProps.getLabelDistribution();
         // We estimate the expansion degree using the label hierarchy provided by the database properties.
-        final Iterator<Set<Integer>> disjoint = labelDist.getLabelHierarchy().iterator();
+        final Iterator<Set<Integer>> disjoint = this.dbProps.labelPartition().iterator();
 
         // The degree of the expand according to the already processed labels.
         double estimatedDegree = 0.0d;
@@ -140,7 +179,7 @@ public class Expand implements GALogicalOperator {
         while (disjoint.hasNext() && remaining > 0.0d) {
             // Sort the overlapping labels by fraction and recall in order to get the labels which are the best
             // statistical samples of the nodes at the base variable before the others.
-            final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.baseVariable, disjoint.next(), this.dbProps).iterator();
+            final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.baseId, disjoint.next(), this.dbProps).iterator();
 
             // The fraction of nodes not explained by labels from other partition member sets.
             final double oldRemaining = remaining;
@@ -179,18 +218,33 @@ public class Expand implements GALogicalOperator {
                     // Compute the fraction of nodes represented by the current label.
                     final double fractionOfL = remaining - newRemaining;
 
-                    estimatedDegree += dbProps.averageDegree(l, this.relationshipTypes, labelAtTarget, this.direction) * fractionOfL;
+                    estimatedDegree += this.averageDegree(l, labelAtTarget) * fractionOfL;
                     remaining = newRemaining;
                 }
                 coveredLabels.addAll(labelDist.getAllKnownSublabels(l));
             }
         }
         // Use the average degree in the database for nodes having no label.
-        estimatedDegree += dbProps.averageDegree(-1, this.relationshipTypes, labelAtTarget, direction) * remaining;
+        estimatedDegree += this.averageDegree(-1, labelAtTarget) * remaining;
 
         return estimatedDegree;
     }
 
+    /**
+     * Average number of relationships found by this expand per node with the given label.
+     *
+     * @param labelAtBase the label at the base nodes
+     * @param labelAtTarget the label at the target nodes
+     * @return the average degree
+     */
+    private double averageDegree(final int labelAtBase, final int labelAtTarget) {
+        if (this.typeSetCounts == null) {
+            return this.dbProps.averageDegree(labelAtBase, this.relationshipTypes, labelAtTarget, this.direction);
+        }
+        return this.typeSetCounts.relationships(labelAtBase, labelAtTarget, this.direction)
+                / this.dbProps.nodes(labelAtBase);
+    }
+
     /**
      * Computes an estimate for the amount of relationships per input node found by this expand.
      *
@@ -199,13 +253,13 @@ public class Expand implements GALogicalOperator {
      */
     private double estimateDegree(final GAResultProperties input) {
         // do we estimate the number of relationships to a fresh variable?
-        if (!input.anyNodeMatchedBy(this.targetVariable)) {
+        if (!input.anyNodeMatchedBy(this.targetId)) {
             return this.estimateDegree(input, -1);
         }
 
-        final Map<Integer, Double> fractionsAtTarget = input.getNodeLabelMap().get(this.targetVariable);
+        final LabelVector fractionsAtTarget = input.getNodeLabelMap().get(this.targetId);
         final LabelDistribution labelDist = this.dbProps.getLabelDistribution();
-        final Iterator<Set<Integer>> disjoint = labelDist.getLabelHierarchy().iterator();
+        final Iterator<Set<Integer>> disjoint = this.dbProps.labelPartition().iterator();
 
         // We estimate the expansion degree using the label hierarchy provided by the database properties.
         double estimatedDegree = 0.0d;
@@ -215,7 +269,7 @@ public class Expand implements GALogicalOperator {
         while (disjoint.hasNext() && remaining > 0.0d) {
             // Sort the overlapping labels by fraction and recall in order to get the labels which are the best
             // statistical samples of the nodes at the target variable before the others.
-            final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.targetVariable, disjoint.next(), this.dbProps).iterator();
+            final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.targetId, disjoint.next(), this.dbProps).iterator();
 
             // Update the fraction of input nodes explained by the labels in this overlapping set.
             double coveredFraction = 0.0d;
@@ -241,100 +295,102 @@ public class Expand implements GALogicalOperator {
     @Override
     public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
         final GAResultProperties input = inputProperties.get(0);
-        final Map<String, Set<Integer>> relationshipTypeMap = new HashMap<>(input.getRelationshipTypeMap());
+        final LabelVector[] fractions = new LabelVector[2];
+        final double size = this.expand(input, fractions);
+
+        return input.derive()
+                // Set the allowed relationship types.
+                .putTypes(this.relationshipVariable, this.relationshipId, this.relationshipTypes)
+                .putLabels(this.baseVariable, this.baseId, fractions[0])
+                .putLabels(this.targetVariable, this.targetId, fractions[1])
+                .size(size)
+                .build();
+    }
 
-        if (!input.anyNodeMatchedBy(this.baseVariable)) {
+    /**
+     * Estimates the size of this expansion and the label fractions at its base and target variable.
+     *
+     * @param input the logical properties of the input of this expand
+     * @param fractions array receiving the fractions at the base (index 0) and target variable (index 1)
+     * @return number of subgraphs found by this expansion
+     */
+    public double expand(final GAResultProperties input, final LabelVector[] fractions) {
+        if (!input.anyNodeMatchedBy(this.baseId)) {
             throw new IllegalArgumentException("Base variable of expansion must be matched in the input.");
-        } else if (input.anyRelationshipMatchedBy(this.relationshipVariable)) {
+        } else if (input.anyRelationshipMatchedBy(this.relationshipId)) {
             throw new IllegalArgumentException("Relationship variable of expansion must not be matched in the input.");
         }
-        
-        // Set the allowed relationship types.
-        relationshipTypeMap.put(this.relationshipVariable, this.relationshipTypes);
 
-        final Map<Integer, Double> fractionsAtBase = new HashMap<>(input.getNodeLabelMap().get(this.baseVariable));
+        final LabelVector oldFractionsAtBase = input.getNodeLabelMap().get(this.baseId);
 
         final double size;
-        final Map<Integer, Double> fractionsAtTarget = new HashMap<>(fractionsAtBase.size());
+        final LabelVector fractionsAtBase;
+        final LabelVector fractionsAtTarget;
         if (input.isInitial()) {
-            // We know the exact size
-            size = this.dbProps.relationships(-1, this.relationshipTypes, -1, this.direction);
-            // If the result is not empty, we know the exact probabilities on base and target variable.
-            if (size > 0.0d) {
-                for (int l : this.dbProps.labels()) {
-                    fractionsAtBase.put(l, this.dbProps.relationships(l, this.relationshipTypes, -1, this.direction) / size);
-                }
-                for (int l : this.dbProps.labels()) {
-                    fractionsAtTarget.put(l, this.dbProps.relationships(-1, this.relationshipTypes, l, this.direction) / size);
-                }
-            } else {
-                // If the initial result size is empty (there are no nodes in the db)
-                // we initialize the fractions at the target variable with 0
-            	// (logically, any value would be correct, but technically 0 avoids some problems)
-                for (int l : this.dbProps.labels()) {
-                    fractionsAtTarget.put(l, 0.0d);
-                }
-            }
+            // The expansion of all nodes only depends on the relationship types and direction, so it is shared.
+            final GADbProperties.InitialExpansion initial = this.dbProps.initialExpansion(this.relationshipTypes, this.direction);
+            size = initial.getSize();
+            fractionsAtBase = size > 0.0d ? initial.getBaseFractions() : oldFractionsAtBase;
+            fractionsAtTarget = initial.getTargetFractions();
         } else {
             final double estimatedTotalDegree = this.estimateDegree(input);
+            final double[] newAtBase = oldFractionsAtBase.toArray();
+            final double[] newAtTarget = new double[newAtBase.length];
 
             // if the estimated degree is zero it makes no sense to update the node label maps
             if (estimatedTotalDegree > 0.0d) {
-                if (input.anyNodeMatchedBy(this.targetVariable)) {
+                if (input.anyNodeMatchedBy(this.targetId)) {
                     // Compute new label fractions at the existing variable
-                    // if no node has label l it makes no sense to try to update its node label fraction
-                    this.dbProps.labels().stream().filter(l -> this.dbProps.nodes(l) > 0.0d).forEach(l -> {
-                        final Map<Integer, Double> oldFractionsAtTarget = input.getNodeLabelMap().get(this.targetVariable);
-                        final double estimatedDegreeToL = this.estimateDegree(input, l) * oldFractionsAtTarget.get(l) / this.dbProps.nodes(l);
-                        // Logically it always holds that estimatedDegreeToL <= estimatedTotalDegree, but this may fail due to rounding errors.
-                        fractionsAtTarget.put(l, Math.min(1.0d, estimatedDegreeToL / estimatedTotalDegree));
+                    final LabelVector oldFractionsAtTarget = input.getNodeLabelMap().get(this.targetId);
+                    ClusterTasks.forEachLabel(this.dbProps, l -> {
+                        // if no node has label l it makes no sense to try to update its node label fraction
+                        if (this.dbProps.nodes(l) > 0.0d) {
+                            final double estimatedDegreeToL = this.estimateDegree(input, l) * oldFractionsAtTarget.get(l) / this.dbProps.nodes(l);
+                            // Logically it always holds that estimatedDegreeToL <= estimatedTotalDegree, but this may fail due to rounding errors.
+                            newAtTarget[l] = Math.min(1.0d, estimatedDegreeToL / estimatedTotalDegree);
+                        }
                     });
                 } else {
                     // Compute label fractions at the new variable
-                    for (int l : this.dbProps.labels()) {
+                    ClusterTasks.forEachLabel(this.dbProps, l -> {
                         // Neo4j estimates R(l1, T, l2) as min{ R(l1, T, *), R(*, T, l2) }
                         // However this is only an upper bound and often too high. It causes too many labels to have
                         // fraction 1 at the target variable in the node label map.
-                        fractionsAtTarget.put(l, this.estimateDegree(input, l) / estimatedTotalDegree);
-                    }
+                        newAtTarget[l] = this.estimateDegree(input, l) / estimatedTotalDegree;
+                    });
                 }
 
                 // To calculate the new fractions at the base variable we install a node label selection on the input
                 // for every label and then reestimate the expansion degree.
-                for (int l : this.dbProps.labels()) {
+                ClusterTasks.forEachLabel(this.dbProps, l -> {
                     final GAResultProperties inputPropsWithSelection =
-                            new NodeLabelSelection(this.dbProps, this.baseVariable, l).computeLogicalProperties(Collections.singletonList(input));
+                            new NodeLabelSelection(this.dbProps, this.baseVariable, this.baseId, l).computeLogicalProperties(Collections.singletonList(input));
                     if (inputPropsWithSelection.getSize() > 0.0d) {
                         // if the selection result is empty, the node label map has no meaning and can therefore not be
                         // used to estimate the degree (would compute wrong values for the new fractions)
-                        fractionsAtBase.put(l,
-                                Math.min(1.0d, this.estimateDegree(inputPropsWithSelection, -1) * input.getNodeLabelMap().get(this.baseVariable).get(l) / estimatedTotalDegree));
+                        newAtBase[l] = Math.min(1.0d, this.estimateDegree(inputPropsWithSelection, -1) * oldFractionsAtBase.get(l) / estimatedTotalDegree);
                     } else {
-                        fractionsAtBase.put(l, 0.0d);
+                        newAtBase[l] = 0.0d;
                     }
-                }
-            } else {
-                // If the estimated degree is 0 (= empty result) we initialize the fractions at the
-                // target variable with 0 (logically, any value would be correct, but technically 0 avoids
-                // some problems
-                for (int l : this.dbProps.labels()) {
-                    fractionsAtTarget.put(l, 0.0d);
-                }
+                });
             }
+            // If the estimated degree is 0 (= empty result) the fractions at the target variable stay 0
+            // (logically, any value would be correct, but technically 0 avoids some problems)
 
+            fractionsAtBase = this.dbProps.labelVector(newAtBase);
+            fractionsAtTarget = this.dbProps.labelVector(newAtTarget);
             size = input.getSize() * estimatedTotalDegree;
         }
 
-        final Map<String, Map<Integer, Double>> nodeLabelMap = new HashMap<>(input.getNodeLabelMap());
-        nodeLabelMap.put(this.baseVariable, fractionsAtBase);
-        nodeLabelMap.put(this.targetVariable, fractionsAtTarget);
-
-        return new GAResultProperties(nodeLabelMap, relationshipTypeMap, size, false);
+        fractions[0] = fractionsAtBase;
+        fractions[1] = fractionsAtTarget;
+        return size;
     }
 
     @Override
     public int hash() {
-        return Objects.hash(this.baseVariable, this.relationshipVariable, this.targetVariable);
+        return Objects.hash(this.baseVariable, this.relationshipVariable, this.relationshipTypes, this.targetVariable,
+                this.direction, this.baseId, this.relationshipId, this.targetId);
     }
 
     @Override
@@ -348,7 +404,12 @@ public class Expand implements GALogicalOperator {
         final Expand otherExpand = (Expand) other;
         return otherExpand.getBaseVariable().equals(this.baseVariable)
                 && otherExpand.getRelationshipVariable().equals(this.relationshipVariable)
-                && otherExpand.getTargetVariable().equals(this.targetVariable);
+                && otherExpand.getRelationshipTypes().equals(this.relationshipTypes)
+                && otherExpand.getTargetVariable().equals(this.targetVariable)
+                && otherExpand.direction == this.direction
+                && otherExpand.baseId == this.baseId
+                && otherExpand.relationshipId == this.relationshipId
+                && otherExpand.targetId == this.targetId;
     }
 
     /**
@@ -388,6 +449,15 @@ public class Expand implements GALogicalOperator {
         return targetVariable;
     }
 
+    /**
+     * Returns the IDs of the base, relationship and target variable.
+     *
+     * @return array containing the base, relationship and target variable ID
+     */
+    int[] getVariableIds() {
+        return new int[] { this.baseId, this.relationshipId, this.targetId };
+    }
+
     /**
      * Returns the relationship direction this expansion uses.
      *
@@ -0,0 +1,320 @@
+package kn.uni.dbis.alhd.estimator.operators;
+
+import kn.uni.dbis.alhd.estimator.GADbProperties;
+import kn.uni.dbis.alhd.estimator.GAResultProperties;
+import kn.uni.dbis.alhd.estimator.LabelVector;
+
+import java.util.*;
+
+/**
+ * Fused operator applying an expansion together with the selections on the newly found relationships
+ * and target nodes.
+ *
+ * The estimate is the same as the one of the {@link Expand}, followed by the property selection on the
+ * relationship variable, the node label selections and the property selection on the target variable,
+ * but the label fractions are only updated in place and only a single result is created.
+ * Variables which are not needed by any later operator can be dropped from the result.
+ */
+public class ExpandSelect implements GALogicalOperator {
+
+    /** The expansion. */
+    private final Expand expand;
+
+    /** Property selection on the relationship variable, may be {@code null}. */
+    private final PropertySelection relationshipSelection;
+
+    /** Node label selections on the target variable, applied in order. */
+    private final List<NodeLabelSelection> labelSelections;
+
+    /** Property selection on the target variable, may be {@code null}. */
+    private final PropertySelection nodeSelection;
+
+    /** Node and relationship variables removed from the result, with their IDs. */
+    private final Map<String, Integer> droppedVariables;
+
+    /** IDs of the base, relationship and target variable of the expansion. */
+    private final int[] variableIds;
+
+    /** IDs of the dropped variables. */
+    private final int[] droppedIds;
+
+    /**
+     * Constructs a new fused expansion and selection operator.
+     *
+     * @param expand the expansion
+     * @param relationshipSelection property selection on the relationship variable of the expansion or {@code null}
+     * @param labelSelections node label selections on the target variable of the expansion
+     * @param nodeSelection property selection on the target variable of the expansion or {@code null}
+     */
+    public ExpandSelect(final Expand expand, final PropertySelection relationshipSelection,
+                        final List<NodeLabelSelection> labelSelections, final PropertySelection nodeSelection) {
+        this(expand, relationshipSelection, labelSelections, nodeSelection, Collections.emptyMap());
+    }
+
+    /**
+     * Constructs a new fused expansion and selection operator which drops the given variables from its result.
+     *
+     * @param expand the expansion
+     * @param relationshipSelection property selection on the relationship variable of the expansion or {@code null}
+     * @param labelSelections node label selections on the target variable of the expansion
+     * @param nodeSelection property selection on the target variable of the expansion or {@code null}
+     * @param droppedVariables node and relationship variables no longer needed after this operator, with their IDs
+     */
+    public ExpandSelect(final Expand expand, final PropertySelection relationshipSelection,
+                        final List<NodeLabelSelection> labelSelections, final PropertySelection nodeSelection,
+                        final Map<String, Integer> droppedVariables) {
+        final int[] ids = expand.getVariableIds();
+        if (relationshipSelection != null
+                && (!relationshipSelection.getVariable().equals(expand.getRelationshipVariable())
+                || relationshipSelection.getVariableId() != ids[1])) {
+            throw new IllegalArgumentException("Relationship selection must use the expanded relationship variable.");
+        }
+        for (final NodeLabelSelection sel : labelSelections) {
+            if (!sel.getVariable().equals(expand.getTargetVariable()) || sel.getVariableId() != ids[2]) {
+                throw new IllegalArgumentException("Label selections must use the target variable of the expansion.");
+            }
+        }
+        if (nodeSelection != null && (!nodeSelection.getVariable().equals(expand.getTargetVariable())
+                || nodeSelection.getVariableId() != ids[2])) {
+            throw new IllegalArgumentException("Node selection must use the target variable of the expansion.");
+        }
+        this.expand = expand;
+        this.relationshipSelection = relationshipSelection;
+        this.labelSelections = List.copyOf(labelSelections);
+        this.nodeSelection = nodeSelection;
+        this.droppedVariables = Map.copyOf(droppedVariables);
+        this.variableIds = ids;
+        this.droppedIds = this.droppedVariables.values().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
+        final GAResultProperties input = inputProperties.get(0);
+        final LabelVector[] fractions = new LabelVector[2];
+        final double size = this.expand.expand(input, fractions);
+        return this.select(input, size, fractions);
+    }
+
+    /**
+     * Applies the selections of this operator to the result of its expansion, see {@link Expand#expand}.
+     *
+     * @param input the logical properties of the input of this operator
+     * @param expandedSize the number of subgraphs found by the expansion
+     * @param fractions the fractions at the base (index 0) and target variable (index 1) after the expansion
+     * @return the logical properties of the result of this operator
+     */
+    public GAResultProperties select(final GAResultProperties input, final double expandedSize,
+                                     final LabelVector[] fractions) {
+        double size = expandedSize;
+        Set<Integer> types = this.expand.getRelationshipTypes();
+        if (this.relationshipSelection != null) {
+            final Set<Integer> remainingTypes = new HashSet<>();
+            size *= this.relationshipSelection.selectRelationships(types, remainingTypes);
+            types = remainingTypes;
+        }
+
+        LabelVector atTarget = fractions[1];
+        if (!this.labelSelections.isEmpty() || this.nodeSelection != null) {
+            final double[] newAtTarget = atTarget.toArray();
+            for (final NodeLabelSelection sel : this.labelSelections) {
+                final double reduction =
+                        NodeLabelSelection.select(sel.getDBProperties(), sel.getWantedLabel(), newAtTarget);
+                size = reduction == 0.0d ? 0 : size * reduction;
+            }
+            if (this.nodeSelection != null) {
+                final double selectivity = this.nodeSelection.selectNodes(newAtTarget);
+                size = selectivity == 0 ? 0 : selectivity * size;
+            }
+            atTarget = this.expand.getDBProperties().labelVector(newAtTarget);
+        }
+
+        final GAResultProperties.Builder result = input.derive()
+                .putTypes(this.expand.getRelationshipVariable(), this.variableIds[1], types)
+                .putLabels(this.expand.getBaseVariable(), this.variableIds[0], fractions[0])
+                .putLabels(this.expand.getTargetVariable(), this.variableIds[2], atTarget)
+                .size(size);
+        for (final int variable : this.droppedIds) {
+            result.remove(variable);
+        }
+        return result.build();
+    }
+
+    /**
+     * Batch variant of {@link #select(GAResultProperties, double, LabelVector[])} for copies of one operator
+     * that only differ in their property selections, see {@link #withSelections}. The label selections are
+     * applied once for all operators and the node selections run over one block holding the label fractions
+     * of all operators.
+     *
+     * @param ops the operators, all sharing the same expansion and label selections
+     * @param input the logical properties of the common input
+     * @param expandedSize the number of subgraphs found by the expansion
+     * @param fractions the fractions at the base (index 0) and target variable (index 1) after the expansion
+     * @return the logical properties of the results of the operators, in the same order
+     */
+    public static GAResultProperties[] select(final ExpandSelect[] ops, final GAResultProperties input,
+                                              final double expandedSize, final LabelVector[] fractions) {
+        final ExpandSelect first = ops[0];
+        final int rows = ops.length;
+        for (final ExpandSelect op : ops) {
+            if (op.expand != first.expand || op.labelSelections != first.labelSelections
+                    || (op.nodeSelection == null) != (first.nodeSelection == null)) {
+                throw new IllegalArgumentException("Operators must only differ in their property selections.");
+            }
+        }
+
+        final double[] sizes = new double[rows];
+        final List<Set<Integer>> types = new ArrayList<>(rows);
+        for (int r = 0; r < rows; r++) {
+            double size = expandedSize;
+            Set<Integer> t = first.expand.getRelationshipTypes();
+            if (ops[r].relationshipSelection != null) {
+                final Set<Integer> remainingTypes = new HashSet<>();
+                size *= ops[r].relationshipSelection.selectRelationships(t, remainingTypes);
+                t = remainingTypes;
+            }
+            sizes[r] = size;
+            types.add(t);
+        }
+
+        final GADbProperties dbProps = first.expand.getDBProperties();
+        final LabelVector[] atTarget = new LabelVector[rows];
+        Arrays.fill(atTarget, fractions[1]);
+        if (!first.labelSelections.isEmpty() || first.nodeSelection != null) {
+            final double[] shared = fractions[1].toArray();
+            for (final NodeLabelSelection sel : first.labelSelections) {
+                final double reduction =
+                        NodeLabelSelection.select(sel.getDBProperties(), sel.getWantedLabel(), shared);
+                for (int r = 0; r < rows; r++) {
+                    sizes[r] = reduction == 0.0d ? 0 : sizes[r] * reduction;
+                }
+            }
+            if (first.nodeSelection != null) {
+                final int stride = shared.length;
+                final double[] block = new double[rows * stride];
+                final PropertySelection[] selections = new PropertySelection[rows];
+                for (int r = 0; r < rows; r++) {
+                    System.arraycopy(shared, 0, block, r * stride, stride);
+                    selections[r] = ops[r].nodeSelection;
+                }
+                final double[] selectivities = new double[rows];
+                PropertySelection.selectNodes(selections, block, stride, selectivities);
+                for (int r = 0; r < rows; r++) {
+                    sizes[r] = selectivities[r] == 0 ? 0 : selectivities[r] * sizes[r];
+                    atTarget[r] = dbProps.labelVector(Arrays.copyOfRange(block, r * stride, (r + 1) * stride));
+                }
+            } else {
+                Arrays.fill(atTarget, dbProps.labelVector(shared));
+            }
+        }
+
+        final GAResultProperties[] results = new GAResultProperties[rows];
+        for (int r = 0; r < rows; r++) {
+            final GAResultProperties.Builder result = input.derive()
+                    .putTypes(first.expand.getRelationshipVariable(), first.variableIds[1], types.get(r))
+                    .putLabels(first.expand.getBaseVariable(), first.variableIds[0], fractions[0])
+                    .putLabels(first.expand.getTargetVariable(), first.variableIds[2], atTarget[r])
+                    .size(sizes[r]);
+            for (final int variable : first.droppedIds) {
+                result.remove(variable);
+            }
+            results[r] = result.build();
+        }
+        return results;
+    }
+
+    /**
+     * Returns the expansion of this operator.
+     *
+     * @return the expansion
+     */
+    public Expand getExpand() {
+        return this.expand;
+    }
+
+    /**
+     * Returns the property selection on the relationship variable.
+     *
+     * @return the relationship selection or {@code null}
+     */
+    public PropertySelection getRelationshipSelection() {
+        return this.relationshipSelection;
+    }
+
+    /**
+     * Returns the property selection on the target variable.
+     *
+     * @return the node selection or {@code null}
+     */
+    public PropertySelection getNodeSelection() {
+        return this.nodeSelection;
+    }
+
+    /**
+     * Returns a copy of this operator with different property selections.
+     *
+     * @param relationshipSelection property selection on the relationship variable or {@code null}
+     * @param nodeSelection property selection on the target variable or {@code null}
+     * @return the new operator
+     */
+    public ExpandSelect withSelections(final PropertySelection relationshipSelection,
+                                       final PropertySelection nodeSelection) {
+        return new ExpandSelect(this.expand, relationshipSelection, this.labelSelections, nodeSelection,
+                this.droppedVariables);
+    }
+
+    @Override
+    public int hash() {
+        int hash = this.expand.hash();
+        hash = 31 * hash + (this.relationshipSelection == null ? 0 : this.relationshipSelection.hash());
+        for (final NodeLabelSelection sel : this.labelSelections) {
+            hash = 31 * hash + sel.hash();
+        }
+        hash = 31 * hash + (this.nodeSelection == null ? 0 : this.nodeSelection.hash());
+        return 31 * hash + this.droppedVariables.hashCode();
+    }
+
+    @Override
+    public boolean eq(final GALogicalOperator other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ExpandSelect)) {
+            return false;
+        }
+        final ExpandSelect that = (ExpandSelect) other;
+        if (!this.expand.eq(that.expand) || !eq(this.relationshipSelection, that.relationshipSelection)
+                || !eq(this.nodeSelection, that.nodeSelection)
+                || !this.droppedVariables.equals(that.droppedVariables)
+                || this.labelSelections.size() != that.labelSelections.size()) {
+            return false;
+        }
+        for (int i = 0; i < this.labelSelections.size(); i++) {
+            if (!this.labelSelections.get(i).eq(that.labelSelections.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean eq(final GALogicalOperator a, final GALogicalOperator b) {
+        return a == null ? b == null : b != null && a.eq(b);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ExpandSelect[").append(this.expand);
+        if (this.relationshipSelection != null) {
+            sb.append(", ").append(this.relationshipSelection);
+        }
+        for (final NodeLabelSelection sel : this.labelSelections) {
+            sb.append(", ").append(sel);
+        }
+        if (this.nodeSelection != null) {
+            sb.append(", ").append(this.nodeSelection);
+        }
+        if (!this.droppedVariables.isEmpty()) {
+            sb.append(", drop ").append(new TreeSet<>(this.droppedVariables.keySet()));
+        }
+        return sb.append(']').toString();
+    }
+}
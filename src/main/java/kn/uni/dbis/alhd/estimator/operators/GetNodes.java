@@ -2,6 +2,8 @@ package kn.uni.dbis.alhd.estimator.operators;
 
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
+import kn.uni.dbis.alhd.estimator.LabelVector;
+import kn.uni.dbis.alhd.estimator.VariableMap;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -18,6 +20,9 @@ public class GetNodes implements GALogicalOperator {
     /** Variable that matches the nodes in the result of this operator. */
     private final String variable;
 
+    /** ID of the variable. */
+    private final int variableId;
+
     /**
      * Constructs a new GetNodes-operator.
      *
@@ -26,34 +31,33 @@ public class GetNodes implements GALogicalOperator {
      *
      * @param dbProps database properties
      * @param variable the variable that matches the nodes
+     * @param variableId ID of the variable in the operator tree
      */
-    public GetNodes(final GADbProperties dbProps, final String variable) {
+    public GetNodes(final GADbProperties dbProps, final String variable, final int variableId) {
         this.dbProps = dbProps;
         this.variable = variable;
+        this.variableId = variableId;
     }
 
     @Override
     public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
-        final Map<String, Map<Integer, Double>> nodeLabelMap = new HashMap<>(1);
-        final Map<Integer, Double> probabilities = new HashMap<>(this.dbProps.labels().size());
-        for (int l : this.dbProps.labels()) {
-            probabilities.put(l, this.dbProps.nodes(l) / this.dbProps.nodes(-1));
-        }
-        nodeLabelMap.put(this.variable, probabilities);
-        return new GAResultProperties(nodeLabelMap,
-                Collections.emptyMap(), // no relationships are matched yet
+        // the label fractions of all nodes are shared between all results
+        return new GAResultProperties(VariableMap.<LabelVector>empty().with(this.variable, this.variableId,
+                this.dbProps.initialFractions()),
+                VariableMap.empty(), // no relationships are matched yet
                 this.dbProps.nodes(-1), // number of matched subgraphs == number of all nodes
                 true); // empty label set yields this result
     }
 
     @Override
     public int hash() {
-        return this.variable.hashCode();
+        return 31 * this.variable.hashCode() + this.variableId;
     }
 
     @Override
     public boolean eq(final GALogicalOperator other) {
-        return this == other || other instanceof GetNodes && ((GetNodes) other).variable.equals(this.variable);
+        return this == other || other instanceof GetNodes && ((GetNodes) other).variable.equals(this.variable)
+                && ((GetNodes) other).variableId == this.variableId;
     }
 
     /**
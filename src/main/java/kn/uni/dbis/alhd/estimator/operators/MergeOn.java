@@ -1,45 +1,47 @@
 package kn.uni.dbis.alhd.estimator.operators;
 
+import kn.uni.dbis.alhd.estimator.ClusterTasks;
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
 import kn.uni.dbis.alhd.estimator.LabelDistribution;
+import kn.uni.dbis.alhd.estimator.LabelKernels;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 public final class MergeOn implements GALogicalOperator {
 
 	private final GADbProperties dbProps;
 	private final String stayingVar;
 	private final String leavingVar;
+	private final int stayingId;
+	private final int leavingId;
 
 	public MergeOn(
 			final GADbProperties dbProps,
 			final String retainedVariable,
-			final String removedVariable
+			final int retainedId,
+			final String removedVariable,
+			final int removedId
 			) {
-		if (retainedVariable.equals(removedVariable)) {
+		if (retainedVariable.equals(removedVariable) || retainedId == removedId) {
 			throw new IllegalArgumentException("The two node variables to be joined must be distinct.");
 		}
 		this.dbProps = dbProps;
 		this.stayingVar = retainedVariable;
 		this.leavingVar = removedVariable;
+		this.stayingId = retainedId;
+		this.leavingId = removedId;
 	}
 
 	@Override
 	public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
 		final GAResultProperties input = inputProperties.get(0);
 		final LabelDistribution labelDist = this.dbProps.getLabelDistribution();
-		final List<Set<Integer>> disjoints = new ArrayList<>(labelDist.getLabelHierarchy());
-		final Map<Integer, Integer> labelToCluster = new HashMap<>();
-		for (int i = 0; i < disjoints.size(); i++) {
-			for (final Integer label : disjoints.get(i)) {
-				labelToCluster.put(label, i);
-			}
-		}
+		final List<Set<Integer>> disjoints = this.dbProps.labelPartition();
 
-		final Map<Integer, Double> fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingVar);
-		final Map<Integer, Double> fractionsAtStaying = input.getNodeLabelMap().get(this.stayingVar);
+		final LabelVector fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingId);
+		final LabelVector fractionsAtStaying = input.getNodeLabelMap().get(this.stayingId);
 		
 		// We estimate the expansion degree using the label hierarchy provided by the database properties.
 		double estimatedSelectivity = 0.0d;
@@ -48,13 +50,18 @@ public final class MergeOn implements GALogicalOperator {
 
 		final Map<Integer, Double> oldPartFrac = new HashMap<>();
 		final Map<Integer, Double> newPartFrac = new HashMap<>();
+		// With many labels, the sets are sorted concurrently up front, even though the loop may stop early.
+		final List<List<Integer>> presorted = ClusterTasks.isParallel(this.dbProps)
+				? ClusterTasks.mapClusters(this.dbProps, i -> input.sortLabelsByFractionAndRecall(this.stayingId,
+						this.leavingId, disjoints.get(i), this.dbProps))
+				: null;
         // Iterate over the sets of overlapping labels.
         for (int i = 0; i < disjoints.size() && Math.min(remainingSt, remainingLv) > 0.0d; i++) {
             // Sort the overlapping labels by fraction and recall in order to get the labels which are the best
             // statistical samples of the nodes at the base variable before the others.
         	final Set<Integer> dI = disjoints.get(i);
-    		final Iterator<Integer> overlapping =
-    				input.sortLabelsByFractionAndRecall(this.stayingVar, this.leavingVar, dI, this.dbProps).iterator();
+    		final Iterator<Integer> overlapping = (presorted != null ? presorted.get(i)
+    				: input.sortLabelsByFractionAndRecall(this.stayingId, this.leavingId, dI, this.dbProps)).iterator();
 
             // The fraction of nodes not explained by labels from other partition member sets.
             final double oldRemainingSt = remainingSt;
@@ -124,84 +131,42 @@ public final class MergeOn implements GALogicalOperator {
 		final double factor = estimatedSelectivity;
 
 //		System.out.println(oldPartFrac + " vs. " + newPartFrac);
-		final Map<String, Map<Integer, Double>> newNLM = new HashMap<>(input.getNodeLabelMap());
-		newNLM.remove(this.leavingVar);
-		final Map<Integer, Double> newStaying = new HashMap<>(newNLM.get(this.stayingVar));
-		for (final Entry<Integer, Double> e : fractionsAtLeaving.entrySet()) {
-			final Integer label = e.getKey();
-			final Integer cluster = labelToCluster.get(label);
-			final Double fracLv = e.getValue();
-			final Double fracSt = newStaying.get(label);
+		if (this.dbProps.hasDenseLabelIds()) {
+			return input.derive()
+					.remove(this.leavingId)
+					.putLabels(this.stayingVar, this.stayingId, this.dbProps.labelVector(
+							LabelKernels.get().merge(fractionsAtStaying, fractionsAtLeaving, factor)))
+					.size(input.getSize() * factor)
+					.build();
+		}
+		final double[] newStaying = fractionsAtStaying.toArray();
+		ClusterTasks.forEachLabel(this.dbProps, label -> {
+			final int cluster = this.dbProps.partitionOf(label);
+			final double fracLv = fractionsAtLeaving.get(label);
+			final double fracSt = newStaying[label];
 			final double minFrac = Math.min(fracSt, fracLv);
 			final double inClFrac = oldPartFrac.getOrDefault(cluster, 0.0);
 			final double outClFrac = newPartFrac.getOrDefault(cluster, 0.0);
 			final double res = minFrac == 0 || factor == 0 ? 0 : minFrac / factor;
-			newStaying.put(label, Math.max(0, Math.min(res, 1)));
+			newStaying[label] = Math.max(0, Math.min(res, 1));
 //			System.out.println(minFrac + " vs. " + (minFrac == 0 ? 0 : outClFrac / inClFrac));
 			//System.out.println(factor);
-		}
-		newNLM.put(this.stayingVar, newStaying);
-		return new GAResultProperties(newNLM, input.getRelationshipTypeMap(), input.getSize() * factor, false);
-	}
-
-	/**
-	 * Estimates the relative sizes of the partitions of nodes at a specific node variable.
-	 *
-	 * @param input input properties
-	 * @param parts list of disjoint sets of labels
-	 * @param var variable to look at
-	 * @return array of relative
-	 */
-	private double[] disjointSizes(final GAResultProperties input, final List<Set<Integer>> parts, final String var) {
-		final double[] sizes = new double[parts.size()];
-		if (parts.size() < 2) {
-			Arrays.fill(sizes, 1);
-			return sizes;
-		}
-
-		final Map<Integer, Integer> lblToPart = new HashMap<>();
-		for (int i = 0; i < parts.size(); i++) {
-			for (final Integer lbl : parts.get(i)) {
-				lblToPart.put(lbl, i);
-			}
-		}
-		final Map<Integer, Double> labelDist = input.getNodeLabelMap().get(var);
-		double remaining = 1;
-		final Set<Integer> alreadyProcessed = new HashSet<>();
-		final LabelDistribution labels = this.dbProps.getLabelDistribution();
-		final List<Integer> sortedLabels = input.sortLabelsByFractionAndRecall(var, this.dbProps.labels(), this.dbProps);
-		for (final Integer next : sortedLabels) {
-			if (!alreadyProcessed.contains(next)) {
-				alreadyProcessed.addAll(labels.getAllKnownSublabels(next));
-				final double part = labelDist.getOrDefault(next, 0.0) * remaining;
-				sizes[lblToPart.get(next)] += part;
-				remaining -= part;
-				if (remaining <= 0) {
-					break;
-				}
-			}
-		}
-
-		final double sum = Arrays.stream(sizes).sum();
-		if (sum > 0) {
-			for (int i = 0; i < sizes.length; i++) {
-				sizes[i] /= sum;
-			}
-		}
-		return sizes;
+		});
+		return input.derive()
+				.remove(this.leavingId)
+				.putLabels(this.stayingVar, this.stayingId, this.dbProps.labelVector(newStaying))
+				.size(input.getSize() * factor)
+				.build();
 	}
 
 	private double estimateOverlap(final GAResultProperties input) {
 		final LabelDistribution labelDist = this.dbProps.getLabelDistribution();
-		final List<Set<Integer>> disjoints = new ArrayList<>(labelDist.getLabelHierarchy());
+		final List<Set<Integer>> disjoints = this.dbProps.labelPartition();
 
-		final String tempVar = "$temp";
-		final GAResultProperties initial = new GetNodes(this.dbProps, tempVar).computeLogicalProperties(Collections.emptyList());
 		final double numAll = this.dbProps.nodes(-1);
-		final double[] partSizes = disjointSizes(initial, disjoints, tempVar);
 
-		final Map<Integer, Double> fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingVar);
-		final Map<Integer, Double> fractionsAtStaying = input.getNodeLabelMap().get(this.stayingVar);
+		final LabelVector fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingId);
+		final LabelVector fractionsAtStaying = input.getNodeLabelMap().get(this.stayingId);
 
 		// We estimate the expansion degree using the label hierarchy provided by the database properties.
 		double estimatedDegree = 0.0d;
@@ -212,7 +177,7 @@ public final class MergeOn implements GALogicalOperator {
 			// Sort the overlapping labels by fraction and recall in order to get the labels which are the best
 			// statistical samples of the nodes at the target variable before the others.
 			final Set<Integer> part = disjoints.get(i);
-			final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.stayingVar, part, this.dbProps).iterator();
+			final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.stayingId, part, this.dbProps).iterator();
 
 			// Update the fraction of input nodes explained by the labels in this overlapping set.
 			double coveredFractionSt = 0.0d;
@@ -223,12 +188,12 @@ public final class MergeOn implements GALogicalOperator {
 				final Set<Integer> subL = labelDist.getAllKnownSublabels(l);
 				// Avoid adding degrees multiple times by tracking which labels are already covered by previous ones.
 				if (uncoveredLabels.contains(l)) {
-					final double fracSt = fractionsAtStaying.getOrDefault(l, 0.0);
+					final double fracSt = fractionsAtStaying.get(l);
 					if (fracSt > 0) {
 						// add the amount of overlap between nodes with label `l` bound to the remaining variable
 						// with nodes in the same partition bound to the leaving variable
 						for (final int l2 : uncoveredLabels) {
-							final double fracLv = fractionsAtLeaving.getOrDefault(l2, 0.0);
+							final double fracLv = fractionsAtLeaving.get(l2);
 							if (fracLv > 0) {
 								final double numL2 = this.dbProps.nodes(l2);
 								final Set<Integer> subL2 = labelDist.getAllKnownSublabels(l2);
@@ -242,7 +207,7 @@ public final class MergeOn implements GALogicalOperator {
 								} else {
 									// assume independence, probability is P[n:L2 | n \in part ] = N(L2) / |part|
 									final double pL2 = numL2 / numAll;
-									final double pL2InPart = partSizes[i] <= 0 ? pL2 : pL2 / partSizes[i];
+									final double pL2InPart = this.dbProps.initialPartitionSize(i) <= 0 ? pL2 : pL2 / this.dbProps.initialPartitionSize(i);
 									pL2CondL = Math.min(pL2InPart, 1);
 								}
 								final double fracStL2 = pL2CondL * fracSt;
@@ -265,7 +230,7 @@ public final class MergeOn implements GALogicalOperator {
 
 	@Override
 	public int hash() {
-		return 31 * stayingVar.hashCode() + leavingVar.hashCode();
+		return 31 * (31 * stayingVar.hashCode() + leavingVar.hashCode()) + 31 * stayingId + leavingId;
 	}
 
 	@Override
@@ -277,7 +242,8 @@ public final class MergeOn implements GALogicalOperator {
 			return false;
 		}
 		final MergeOn that = (MergeOn) other;
-		return this.stayingVar.equals(that.stayingVar) && this.leavingVar.equals(that.leavingVar);
+		return this.stayingVar.equals(that.stayingVar) && this.leavingVar.equals(that.leavingVar)
+				&& this.stayingId == that.stayingId && this.leavingId == that.leavingId;
 	}
 
 	@Override
@@ -2,6 +2,8 @@ package kn.uni.dbis.alhd.estimator.operators;
 
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
+import kn.uni.dbis.alhd.estimator.LabelKernels;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 
 import java.util.*;
 
@@ -31,35 +33,42 @@ public class NodeJoin implements GALogicalOperator {
     public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
         final GAResultProperties leftInput = inputProperties.get(0);
         final GAResultProperties rightInput = inputProperties.get(1);
-        final Map<String, Map<Integer, Double>> nodeLabelMap = new HashMap<>(leftInput.getNodeLabelMap());
-        final Map<String, Set<Integer>> relationshipTypeMap = new HashMap<>(leftInput.getRelationshipTypeMap());
+        final GAResultProperties.Builder result = leftInput.derive();
 
         // Unite the left and right node label maps (unite the label sets in case of colliding variables).
-        rightInput.getNodeLabelMap().entrySet().forEach(e1 -> nodeLabelMap.merge(e1.getKey(), e1.getValue(),
-            (leftFractions, rightFractions) -> {
-                final Map<Integer, Double> fractions = new HashMap<>(this.dbProps.labels().size());
-                for (int l : this.dbProps.labels()) {
+        final int[] commonVars = { 0 };
+        rightInput.getNodeLabelMap().forEachId((rightFractions, id) -> {
+            final LabelVector leftFractions = leftInput.getNodeLabelMap().get(id);
+            final String var = rightInput.getNodeLabelMap().name(id);
+            if (leftFractions == null) {
+                result.putLabels(var, id, rightFractions);
+                return;
+            }
+            commonVars[0]++;
+            if (this.dbProps.hasDenseLabelIds()) {
+                result.putLabels(var, id, this.dbProps.labelVector(LabelKernels.get().union(leftFractions, rightFractions)));
+            } else {
+                final double[] fractions = new double[leftFractions.size()];
+                for (final int l : this.dbProps.labelIds()) {
                     final double leftP = leftFractions.get(l);
                     final double rightP = rightFractions.get(l);
-                    fractions.put(l, leftP * rightP + (1.0d - leftP) * rightP + leftP * (1.0d - rightP));
+                    fractions[l] = leftP * rightP + (1.0d - leftP) * rightP + leftP * (1.0d - rightP);
                 }
-                return fractions;
-            })
-        );
+                result.putLabels(var, id, this.dbProps.labelVector(fractions));
+            }
+        });
 
         // The relationship variables are guaranteed to be disjunct, so simply insert one of the maps into the other.
-        relationshipTypeMap.putAll(rightInput.getRelationshipTypeMap());
+        rightInput.getRelationshipTypeMap().forEachId((types, id) ->
+                result.putTypes(rightInput.getRelationshipTypeMap().name(id), id, types));
 
         // Calculate join cardinality estimate.
         final double totalNodes = this.dbProps.nodes(-1);
         final double leftInputSize = leftInput.getSize();
         final double rightInputSize = rightInput.getSize();
-        final Set<String> commonVars = new HashSet<>(leftInput.getNodeVariables());
-        commonVars.retainAll(rightInput.getNodeVariables());
-        final double matchProbability = commonVars.isEmpty() ? 1D : commonVars.size() / totalNodes;
+        final double matchProbability = commonVars[0] == 0 ? 1D : commonVars[0] / totalNodes;
 
-        return new GAResultProperties(nodeLabelMap, relationshipTypeMap,
-                leftInputSize * rightInputSize * matchProbability, false);
+        return result.size(leftInputSize * rightInputSize * matchProbability).build();
     }
 
     @Override
@@ -3,6 +3,7 @@ package kn.uni.dbis.alhd.estimator.operators;
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
 import kn.uni.dbis.alhd.estimator.LabelDistribution;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 
 import java.util.*;
 
@@ -17,6 +18,9 @@ public class NodeLabelSelection extends Selection {
     /** The selection variable. */
     private final String variable;
 
+    /** ID of the selection variable. */
+    private final int variableId;
+
     /** The node label nodes matched by the selection variable must have. */
     private final int wantedLabel;
 
@@ -25,11 +29,14 @@ public class NodeLabelSelection extends Selection {
      *
      * @param dbProps database properties
      * @param variable the nodes to select from
+     * @param variableId ID of the variable in the operator tree
      * @param wantedLabel which label these nodes must have
      */
-    public NodeLabelSelection(final GADbProperties dbProps, final String variable, final int wantedLabel) {
+    public NodeLabelSelection(final GADbProperties dbProps, final String variable, final int variableId,
+                              final int wantedLabel) {
         super(dbProps);
         this.variable = variable;
+        this.variableId = variableId;
         this.wantedLabel = wantedLabel;
     }
 
@@ -42,6 +49,15 @@ public class NodeLabelSelection extends Selection {
         return variable;
     }
 
+    /**
+     * Returns the ID of the selection variable.
+     *
+     * @return the ID of the variable used for the selection
+     */
+    public int getVariableId() {
+        return this.variableId;
+    }
+
     /**
      * Returns the label that nodes matched by the selection variable must have,
      * in order to be part of the result.
@@ -59,50 +75,66 @@ public class NodeLabelSelection extends Selection {
 
     @Override
     public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
-        final GADbProperties dbProps = this.getDBProperties();
         final GAResultProperties input = inputProperties.get(0);
-        final LabelDistribution labelDist = dbProps.getLabelDistribution();
 
         // The reduction is given by the node label map.
-        final Map<String, Map<Integer, Double>> nodeLabelMap = new HashMap<>(input.getNodeLabelMap());
-        final Map<Integer, Double> oldFractions = nodeLabelMap.get(this.variable);
-        final double reduction = oldFractions.getOrDefault(this.wantedLabel, 0.0);
+        final LabelVector oldFractions = input.getLabels(this.variableId);
+        final double reduction = this.wantedLabel < oldFractions.size() ? oldFractions.get(this.wantedLabel) : 0.0;
 
         if (reduction == 0.0d) {
-            return new GAResultProperties(nodeLabelMap, input.getRelationshipTypeMap(), 0, false);
+            return input.derive().size(0).build();
         } else {
-            final Map<Integer, Double> newFractions = new HashMap<>(oldFractions);
-            for (Set<Integer> overlapping : labelDist.getLabelHierarchy()) {
-                if (overlapping.contains(this.wantedLabel)) {
-                    for (int l : overlapping) {
-                        if (l == this.wantedLabel || labelDist.getAllKnownSublabels(l).contains(this.wantedLabel)) {
-                            // update fractions of all superlabels
-                            newFractions.put(l, 1.0d);
-                        } else if (labelDist.getAllKnownSublabels(this.wantedLabel).contains(l)) {
-                            // update fractions of sublabels
-                            newFractions.put(l, Math.min(oldFractions.get(l) / reduction, 1.0d));
-                        }
-                    }
-                    // assumption: the fractions for all labels which overlap with the new certain label but are not
-                    // known to be sub- or superlabels remain the same.
-                } else {
-                    // nodes with labels from the current set of overlapping labels are disjunct from the selected
-                    // nodes.
-                    for (int l : overlapping) {
-                        newFractions.put(l, 0.0d);
+            final double[] newFractions = oldFractions.toArray();
+            select(this.getDBProperties(), this.wantedLabel, newFractions);
+            return input.derive()
+                    .putLabels(this.variable, this.variableId, this.getDBProperties().labelVector(newFractions))
+                    .size(input.getSize() * reduction)
+                    .build();
+        }
+    }
+
+    /**
+     * Applies the selection of a label to the given label fractions in place.
+     * If no node has the label, the fractions are left unchanged.
+     *
+     * @param dbProps database properties
+     * @param wantedLabel which label the nodes must have
+     * @param fractions the label fractions to update
+     * @return the fraction of nodes having the label
+     */
+    static double select(final GADbProperties dbProps, final int wantedLabel, final double[] fractions) {
+        final LabelDistribution labelDist = dbProps.getLabelDistribution();
+        final double reduction = wantedLabel < fractions.length ? fractions[wantedLabel] : 0.0;
+        if (reduction == 0.0d) {
+            return 0.0d;
+        }
+        for (Set<Integer> overlapping : labelDist.getLabelHierarchy()) {
+            if (overlapping.contains(wantedLabel)) {
+                for (int l : overlapping) {
+                    if (l == wantedLabel || labelDist.getAllKnownSublabels(l).contains(wantedLabel)) {
+                        // update fractions of all superlabels
+                        fractions[l] = 1.0d;
+                    } else if (labelDist.getAllKnownSublabels(wantedLabel).contains(l)) {
+                        // update fractions of sublabels
+                        fractions[l] = Math.min(fractions[l] / reduction, 1.0d);
                     }
                 }
+                // assumption: the fractions for all labels which overlap with the new certain label but are not
+                // known to be sub- or superlabels remain the same.
+            } else {
+                // nodes with labels from the current set of overlapping labels are disjunct from the selected
+                // nodes.
+                for (int l : overlapping) {
+                    fractions[l] = 0.0d;
+                }
             }
-            nodeLabelMap.put(this.variable, newFractions);
-
-            return new GAResultProperties(nodeLabelMap, input.getRelationshipTypeMap(),
-                    input.getSize() * reduction, false);
         }
+        return reduction;
     }
 
     @Override
     public int hash() {
-        return Objects.hash(this.variable, this.wantedLabel);
+        return Objects.hash(this.variable, this.variableId, this.wantedLabel);
     }
 
     @Override
@@ -115,6 +147,7 @@ public class NodeLabelSelection extends Selection {
         }
         final NodeLabelSelection otherLabelSelection = (NodeLabelSelection) other;
         return otherLabelSelection.getVariable().equals(this.variable)
+                && otherLabelSelection.variableId == this.variableId
                 && otherLabelSelection.getWantedLabel() == this.wantedLabel;
     }
 
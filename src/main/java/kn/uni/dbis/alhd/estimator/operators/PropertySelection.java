@@ -2,6 +2,8 @@ package kn.uni.dbis.alhd.estimator.operators;
 
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
+import kn.uni.dbis.alhd.estimator.LabelKernels;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 import kn.uni.dbis.alhd.queries.PropSelection;
 
 import java.util.*;
@@ -10,13 +12,17 @@ import java.util.*;
  * Implementation of the PropertySelection-operator.
  *
  * The property selection keeps all subgraphs where the node or relationship matched by
- * the given selection variable has the given property with the given value.
+ * the given selection variable has the given property with the given value, or one of the
+ * given values for IN-lists and disjunctive ranges.
  */
 public class PropertySelection extends Selection {
 
     /** The selection variable. */
     private final String variable;
 
+    /** ID of the selection variable. */
+    private final int variableId;
+
     /** The predicates. */
     private final Map<Integer, PropSelection> predicates;
 
@@ -27,13 +33,15 @@ public class PropertySelection extends Selection {
      *
      * @param dbProps database properties
      * @param variable the nodes or relationships to select from
+     * @param variableId ID of the variable in the operator tree
      * @param predicates selection predicates
      */
-    public PropertySelection(final GADbProperties dbProps, final String variable,
+    public PropertySelection(final GADbProperties dbProps, final String variable, final int variableId,
                              final Map<Integer, PropSelection> predicates,
                              final Double staticSelectivity) {
         super(dbProps);
         this.variable = variable;
+        this.variableId = variableId;
         if (predicates.isEmpty()) {
             throw new IllegalArgumentException();
         }
@@ -50,10 +58,30 @@ public class PropertySelection extends Selection {
         return this.variable;
     }
 
+    /**
+     * Returns the ID of the selection variable.
+     *
+     * @return the ID of the variable used for the selection
+     */
+    public int getVariableId() {
+        return this.variableId;
+    }
+
     public Map<Integer, PropSelection> getPredicates() {
         return this.predicates;
     }
 
+    /**
+     * Returns a copy of this selection with different predicates on the same variable.
+     *
+     * @param predicates the new selection predicates
+     * @return the new selection
+     */
+    public PropertySelection withPredicates(final Map<Integer, PropSelection> predicates) {
+        return new PropertySelection(this.getDBProperties(), this.variable, this.variableId, predicates,
+                this.staticSelectivity);
+    }
+
     @Override
     public Set<String> getIncludedVariables() {
         return Collections.singleton(this.variable);
@@ -62,9 +90,9 @@ public class PropertySelection extends Selection {
     @Override
     public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
         final GAResultProperties input = inputProperties.get(0);
-        if (input.anyNodeMatchedBy(this.variable)) {
+        if (input.anyNodeMatchedBy(this.variableId)) {
             return nodeSelectivity(input);
-        } else if (input.anyRelationshipMatchedBy(this.variable)) {
+        } else if (input.anyRelationshipMatchedBy(this.variableId)) {
             return relationshipSelectivity(input);
         } else {
             throw new IllegalStateException("Selection variable is not matched.");
@@ -72,14 +100,66 @@ public class PropertySelection extends Selection {
     }
 
     private GAResultProperties relationshipSelectivity(final GAResultProperties input) {
+        final Set<Integer> remainingTypes = new HashSet<>();
+        final double selectivity =
+                this.selectRelationships(input.getTypes(this.variableId), remainingTypes);
+        return input.derive().putTypes(this.variable, this.variableId, remainingTypes).size(input.getSize() * selectivity).build();
+    }
+
+    /**
+     * Batch variant of {@link #computeLogicalProperties} for several selections on the same variable of one
+     * common input, e.g. the same selection of a query template with different predicate values. Selections
+     * on nodes run over one block holding the label fractions of all selections.
+     *
+     * @param selections the selections, all on the same variable
+     * @param input the logical properties of the common input
+     * @return the logical properties of the results of the selections, in the same order
+     */
+    public static GAResultProperties[] select(final PropertySelection[] selections, final GAResultProperties input) {
+        final int rows = selections.length;
+        final String variable = selections[0].variable;
+        final int variableId = selections[0].variableId;
+        final GAResultProperties[] results = new GAResultProperties[rows];
+        if (!input.anyNodeMatchedBy(variableId)) {
+            for (int r = 0; r < rows; r++) {
+                results[r] = selections[r].computeLogicalProperties(Collections.singletonList(input));
+            }
+            return results;
+        }
+        final double[] fractions = input.getLabels(variableId).toArray();
+        final int stride = fractions.length;
+        final double[] block = new double[rows * stride];
+        for (int r = 0; r < rows; r++) {
+            if (selections[r].variableId != variableId) {
+                throw new IllegalArgumentException("Selections must use the same variable.");
+            }
+            System.arraycopy(fractions, 0, block, r * stride, stride);
+        }
+        final double[] selectivities = new double[rows];
+        selectNodes(selections, block, stride, selectivities);
+        for (int r = 0; r < rows; r++) {
+            results[r] = selectivities[r] == 0 ? input.derive().size(0).build() : input.derive()
+                    .putLabels(variable, variableId, selections[0].getDBProperties().labelVector(Arrays.copyOfRange(block, r * stride, (r + 1) * stride)))
+                    .size(selectivities[r] * input.getSize())
+                    .build();
+        }
+        return results;
+    }
+
+    /**
+     * Computes the selectivity of the predicates at relationships with the given types.
+     *
+     * @param types the allowed types of the relationships
+     * @param remainingTypes set receiving the types of the relationships that can satisfy the predicates
+     * @return the selectivity
+     */
+    double selectRelationships(final Set<Integer> types, final Set<Integer> remainingTypes) {
         final GADbProperties dbProps = this.getDBProperties();
-        final Set<Integer> types = input.getRelationshipTypeMap().get(this.variable);
         if (types.isEmpty()) {
             throw new IllegalStateException("No relationship types allowed.");
         }
 
         final double selectivity;
-        final Set<Integer> remainingTypes = new HashSet<>();
         if (staticSelectivity != null) {
             selectivity = Math.pow(staticSelectivity, this.predicates.size());
             remainingTypes.addAll(types);
@@ -89,16 +169,9 @@ public class PropertySelection extends Selection {
                 double selSum = 0.0;
                 final int property = e.getKey();
                 final PropSelection pred = e.getValue();
+                final double[] sels = dbProps.typeSelectivities(property, pred);
                 for (final Integer t : types) {
-                    final double s;
-                    if (pred.value != null) {
-                        s = dbProps.relSel(t, property, pred.value.hashCode());
-                    } else if (pred.range[0] == pred.range[1]) {
-                        s = dbProps.relSel(t, property, Double.hashCode(pred.range[0]));
-                    } else {
-                        final double[] range = pred.range;
-                        s = dbProps.rangeRelSel(t, property, range[0], range[1]);
-                    }
+                    final double s = t + 1 < sels.length ? sels[t + 1] : dbProps.relSel(t, property, pred);
                     if (s > 0) {
                         remainingTypes.add(t);
                     }
@@ -108,68 +181,104 @@ public class PropertySelection extends Selection {
             }
             selectivity = sel;
         }
-        final Map<String, Set<Integer>> relTypeMap = new HashMap<>(input.getRelationshipTypeMap());
-        relTypeMap.put(this.variable, remainingTypes);
-        return new GAResultProperties(input.getNodeLabelMap(), relTypeMap,input.getSize() * selectivity, false);
+        return selectivity;
     }
 
     private GAResultProperties nodeSelectivity(final GAResultProperties input) {
-        final int[] nodeLabels = input.getLabels(this.variable).entrySet().stream()
-                .filter(e -> e.getValue() > 0).mapToInt(Map.Entry::getKey).toArray();
+        final double[] newFractions = input.getLabels(this.variableId).toArray();
+        final double selectivity = this.selectNodes(newFractions);
+        if (selectivity == 0) {
+            return input.derive().size(0).build();
+        }
+        return input.derive()
+                .putLabels(this.variable, this.variableId, this.getDBProperties().labelVector(newFractions))
+                .size(selectivity * input.getSize())
+                .build();
+    }
+
+    /**
+     * Computes the selectivity of the predicates at nodes with the given label fractions and updates
+     * the fractions in place. If the selectivity is {@code 0}, the fractions are left unchanged.
+     *
+     * @param fractions the label fractions of the selection variable
+     * @return the selectivity
+     */
+    double selectNodes(final double[] fractions) {
+        final boolean[] selected = new boolean[fractions.length];
+        final double selectivity = this.nodeSelectivity(fractions, 0, selected, 0);
+        if (selectivity != 0) {
+            LabelKernels.get().rescale(fractions, 0, fractions.length, selected, selectivity);
+        }
+        return selectivity;
+    }
+
+    /**
+     * Batch variant of {@link #selectNodes(double[])} for several selections on nodes, e.g. the same selection
+     * of a query template with different predicate values. The label fractions of all selections are stored
+     * row by row in one contiguous block, which is updated in place. Rows with selectivity {@code 0} are left
+     * unchanged.
+     *
+     * @param selections the selections, one per row
+     * @param block the label fractions, row {@code r} starts at index {@code r * stride}
+     * @param stride length of each row
+     * @param selectivities array receiving the selectivity of each row
+     */
+    public static void selectNodes(final PropertySelection[] selections, final double[] block, final int stride,
+                                   final double[] selectivities) {
+        final int rows = selections.length;
+        final boolean[] selected = new boolean[rows * stride];
+        for (int r = 0; r < rows; r++) {
+            selectivities[r] = selections[r].nodeSelectivity(block, r * stride, selected, r * stride);
+        }
+        final LabelKernels kernels = LabelKernels.get();
+        for (int r = 0; r < rows; r++) {
+            if (selectivities[r] != 0) {
+                kernels.rescale(block, r * stride, stride, selected, selectivities[r]);
+            }
+        }
+    }
+
+    /**
+     * Computes the selectivity of the predicates at nodes with the label fractions starting at the given offset
+     * and marks the labels which can satisfy them.
+     */
+    private double nodeSelectivity(final double[] fractions, final int off, final boolean[] selected,
+                                   final int selOff) {
         final GADbProperties dbProps = this.getDBProperties();
-        final double selectivity;
-        final Set<Integer> labels = new HashSet<>();
-        if (nodeLabels.length == 0) {
-            selectivity = Math.pow(0.1, this.predicates.size());
+        final int[] labelIds = dbProps.labelIds();
+        int numLabels = 0;
+        for (final int l : labelIds) {
+            if (fractions[off + l] > 0) {
+                numLabels++;
+            }
+        }
+        if (numLabels == 0) {
+            return Math.pow(0.1, this.predicates.size());
         } else if (staticSelectivity != null) {
-            selectivity = Math.pow(this.staticSelectivity, this.predicates.size());
-        } else {
-            double sel = 1.0;
-            for (final Map.Entry<Integer, PropSelection> e : this.predicates.entrySet()) {
-                final int property = e.getKey();
-                final PropSelection pred = e.getValue();
-                double selSum = 0.0;
-                for (final Integer l : nodeLabels) {
-                    final double s;
-                    if (pred.value != null) {
-                        s = dbProps.sel(l, property, pred.value.hashCode());
-                    } else if (pred.range[0] == pred.range[1]) {
-                        s = dbProps.sel(l, property, Double.hashCode(pred.range[0]));
-                    } else {
-                        final double[] range = pred.range;
-                        s = dbProps.rangeSel(l, property, range[0], range[1]);
-                    }
+            return Math.pow(this.staticSelectivity, this.predicates.size());
+        }
+        double sel = 1.0;
+        for (final Map.Entry<Integer, PropSelection> e : this.predicates.entrySet()) {
+            // the average selectivity over all labels present at the variable
+            final LabelVector sels = dbProps.selectivities(e.getKey(), e.getValue());
+            double selSum = 0.0;
+            for (final int l : labelIds) {
+                if (fractions[off + l] > 0) {
+                    final double s = sels.get(l);
                     selSum += s;
                     if (s > 0) {
-                        labels.add(l);
+                        selected[selOff + l] = true;
                     }
                 }
-                sel = Math.min(sel, selSum / nodeLabels.length);
-            }
-            selectivity = sel;
-        }
-
-        final Map<String, Map<Integer, Double>> nodeLabelMap = new HashMap<>(input.getNodeLabelMap());
-        final Map<Integer, Double> oldFractions = nodeLabelMap.get(this.variable);
-        if (selectivity == 0) {
-            return new GAResultProperties(nodeLabelMap, input.getRelationshipTypeMap(), 0, false);
-        }
-        final Map<Integer, Double> newFractions = new HashMap<>(oldFractions);
-        for (final var e : newFractions.entrySet()) {
-            if (labels.contains(e.getKey())) {
-                e.setValue(Math.min(e.getValue() / selectivity, 1.0d));
-            } else {
-                e.setValue(0.0);
             }
+            sel = Math.min(sel, selSum / numLabels);
         }
-        nodeLabelMap.put(this.variable, newFractions);
-        return new GAResultProperties(nodeLabelMap, input.getRelationshipTypeMap(),
-                selectivity * input.getSize(), false);
+        return sel;
     }
 
     @Override
     public int hash() {
-        return Objects.hash(this.variable, this.predicates);
+        return Objects.hash(this.variable, this.variableId, this.predicates, this.staticSelectivity);
     }
 
     @Override
@@ -182,7 +291,9 @@ public class PropertySelection extends Selection {
         }
         final PropertySelection otherLabelSelection = (PropertySelection) other;
         return otherLabelSelection.getVariable().equals(this.variable)
-                && otherLabelSelection.getPredicates().equals(this.predicates);
+                && otherLabelSelection.variableId == this.variableId
+                && otherLabelSelection.getPredicates().equals(this.predicates)
+                && Objects.equals(otherLabelSelection.staticSelectivity, this.staticSelectivity);
     }
 
     @Override
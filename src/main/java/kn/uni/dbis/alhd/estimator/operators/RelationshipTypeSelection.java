@@ -17,6 +17,9 @@ public class RelationshipTypeSelection extends Selection {
     /** The selection variable. */
     private final String variable;
 
+    /** ID of the selection variable. */
+    private final int variableId;
+
     /** The relationship types allowed for relationships matched by the selection variable. */
     private final Set<Integer> allowedTypes;
 
@@ -25,12 +28,14 @@ public class RelationshipTypeSelection extends Selection {
      *
      * @param dbProps database properties
      * @param variable the relationships to select from
+     * @param variableId ID of the variable in the operator tree
      * @param allowedTypes which types of these relationships will be included in the result
      */
-    public RelationshipTypeSelection(final GADbProperties dbProps, final String variable,
+    public RelationshipTypeSelection(final GADbProperties dbProps, final String variable, final int variableId,
                                      final Set<Integer> allowedTypes) {
         super(dbProps);
         this.variable = variable;
+        this.variableId = variableId;
         this.allowedTypes = allowedTypes;
     }
 
@@ -61,21 +66,18 @@ public class RelationshipTypeSelection extends Selection {
     public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
         final GAResultProperties input = inputProperties.get(0);
         final Set<Integer> allowedTypes = new HashSet<>(this.allowedTypes);
-        allowedTypes.retainAll(input.getTypes(this.variable));
-
-        final Map<String, Set<Integer>> relationshipTypeMap = new HashMap<>(input.getRelationshipTypeMap());
-        relationshipTypeMap.put(this.variable, allowedTypes);
+        allowedTypes.retainAll(input.getTypes(this.variableId));
 
         final GADbProperties dbProps = this.getDBProperties();
         final double resultSize = input.getSize() * dbProps.relationships(-1, allowedTypes, -1, Direction.OUTGOING)
-                / dbProps.relationships(-1, input.getTypes(this.variable), -1, Direction.OUTGOING);
+                / dbProps.relationships(-1, input.getTypes(this.variableId), -1, Direction.OUTGOING);
 
-        return new GAResultProperties(input.getNodeLabelMap(), relationshipTypeMap, resultSize, false);
+        return input.derive().putTypes(this.variable, this.variableId, allowedTypes).size(resultSize).build();
     }
 
     @Override
     public int hash() {
-        return Objects.hash(this.variable, this.allowedTypes);
+        return Objects.hash(this.variable, this.variableId, this.allowedTypes);
     }
 
     @Override
@@ -88,6 +90,7 @@ public class RelationshipTypeSelection extends Selection {
         }
         final RelationshipTypeSelection otherTypeSelection = (RelationshipTypeSelection) other;
         return otherTypeSelection.getVariable().equals(this.variable)
+                && otherTypeSelection.variableId == this.variableId
                 && otherTypeSelection.getAllowedTypes().equals(this.allowedTypes);
     }
 }
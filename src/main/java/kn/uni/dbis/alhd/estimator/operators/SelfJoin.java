@@ -1,11 +1,13 @@
 package kn.uni.dbis.alhd.estimator.operators;
 
+import kn.uni.dbis.alhd.estimator.ClusterTasks;
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
 import kn.uni.dbis.alhd.estimator.LabelDistribution;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.function.DoubleConsumer;
 import java.util.stream.Collectors;
 
 public final class SelfJoin implements GALogicalOperator {
@@ -13,167 +15,189 @@ public final class SelfJoin implements GALogicalOperator {
 	private final GADbProperties dbProps;
 	private final String stayingVar;
 	private final String leavingVar;
+	private final int stayingId;
+	private final int leavingId;
 
 	public SelfJoin(
 			final GADbProperties dbProps,
 			final String retainedVariable,
-			final String removedVariable
+			final int retainedId,
+			final String removedVariable,
+			final int removedId
 			) {
-		if (retainedVariable.equals(removedVariable)) {
+		if (retainedVariable.equals(removedVariable) || retainedId == removedId) {
 			throw new IllegalArgumentException("The two node variables to be joined must be distinct.");
 		}
 		this.dbProps = dbProps;
 		this.stayingVar = retainedVariable;
 		this.leavingVar = removedVariable;
+		this.stayingId = retainedId;
+		this.leavingId = removedId;
 	}
 
 	@Override
 	public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
 		final GAResultProperties input = inputProperties.get(0);
 		final LabelDistribution labelDist = this.dbProps.getLabelDistribution();
-		final List<Set<Integer>> disjoints = new ArrayList<>(labelDist.getLabelHierarchy());
+		final List<Set<Integer>> disjoints = this.dbProps.labelPartition();
 		
-		final String tempVar = "$temp";
-		final GAResultProperties initial = new GetNodes(this.dbProps, tempVar).computeLogicalProperties(Collections.emptyList());
 		final double numAll = this.dbProps.nodes(-1);
-		final double[] partSizes = this.disjointSizes(initial, disjoints, tempVar);
 		
-		final Map<Integer, Double> fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingVar);
-		final Map<Integer, Double> fractionsAtStaying = input.getNodeLabelMap().get(this.stayingVar);
+		final LabelVector fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingId);
+		final LabelVector fractionsAtStaying = input.getNodeLabelMap().get(this.stayingId);
 		
 		// We estimate the expansion degree using the label hierarchy provided by the database properties.
-		double estimatedDegree = 0.0d;
+		final double[] estimatedDegree = {0.0d};
 		double remainingSt = 1.0d;
 		
-		final List<Integer> labelOrder = input.sortLabelsByFractionAndRecall(this.stayingVar, this.leavingVar, this.dbProps.labels(), this.dbProps);
-		final Map<Integer, Integer> labelToPart = new HashMap<>();
-		for (int p = 0; p < disjoints.size(); p++) {
-			for (Integer lbl : disjoints.get(p)) {
-				labelToPart.put(lbl, p);
+		final List<Integer> labelOrder = input.sortLabelsByFractionAndRecall(this.stayingId, this.leavingId, this.dbProps.labels(), this.dbProps);
+
+		if (ClusterTasks.isParallel(this.dbProps)) {
+			// The covering of each set only depends on its own labels, so the sets are covered concurrently up front,
+			// recording the contributions of every step. They are then added in the order of the sequential loop.
+			final int[][] positions = new int[disjoints.size()][];
+			final int[] counts = new int[disjoints.size()];
+			for (final int l : labelOrder) {
+				counts[this.dbProps.partitionOf(l)]++;
+			}
+			Arrays.setAll(positions, p -> new int[counts[p]]);
+			Arrays.fill(counts, 0);
+			for (final int l : labelOrder) {
+				final int p = this.dbProps.partitionOf(l);
+				positions[p][counts[p]++] = l;
+			}
+			final List<Covering> coverings = ClusterTasks.mapClusters(this.dbProps, p -> new Covering(
+					positions[p], p, disjoints.get(p), fractionsAtStaying, fractionsAtLeaving, numAll, labelDist));
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < labelOrder.size() && remainingSt > 0.0d; i++) {
+				final int partID = this.dbProps.partitionOf(labelOrder.get(i));
+				final Covering covering = coverings.get(partID);
+				final int step = counts[partID]++;
+				for (int c = covering.stepStarts[step]; c < covering.stepStarts[step + 1]; c++) {
+					estimatedDegree[0] += covering.contributions[c];
+				}
+				// Logically, the remaining fraction is always at least at big as the covered one. But this might be violated by rounding errors or user errors.
+				remainingSt -= Math.min(remainingSt, covering.coveredFractions[step]);
+			}
+		} else {
+			final List<Set<Integer>> uncovered = disjoints.stream().map(HashSet::new).collect(Collectors.toList());
+			final double[] coveredFractions = new double[disjoints.size()];
+			for (int i = 0; i < labelOrder.size() && remainingSt > 0.0d; i++) {
+				final int l = labelOrder.get(i);
+				final int partID = this.dbProps.partitionOf(l);
+				coveredFractions[partID] = this.cover(l, partID, uncovered.get(partID), coveredFractions[partID],
+						fractionsAtStaying, fractionsAtLeaving, numAll, labelDist, c -> estimatedDegree[0] += c);
+				// Logically, the remaining fraction is always at least at big as the covered one. But this might be violated by rounding errors or user errors.
+				remainingSt -= Math.min(remainingSt, coveredFractions[partID]);
 			}
 		}
+		
+		final double factor = estimatedDegree[0] + remainingSt * this.dbProps.nodes(-1);
 
-		final List<Set<Integer>> uncovered = disjoints.stream().map(HashSet::new).collect(Collectors.toList());
-		final double[] coveredFractions = new double[partSizes.length];
-		for (int i = 0; i < labelOrder.size() && remainingSt > 0.0d; i++) {
-			final int l = labelOrder.get(i);
-			final int partID = labelToPart.get(l);
-			final Set<Integer> uncoveredLabels = uncovered.get(partID);
-			
-			// Update the fraction of input nodes explained by the labels in this overlapping set.
-			if (coveredFractions[partID] < 1.0d) {
-				final double numL = this.dbProps.nodes(l);
-				final Set<Integer> subL = labelDist.getAllKnownSublabels(l);
-				// Avoid adding degrees multiple times by tracking which labels are already covered by previous ones.
-				if (uncoveredLabels.contains(l)) {
-					final double fracSt = fractionsAtStaying.getOrDefault(l, 0.0);
-					if (fracSt > 0) {
-						// add the amount of overlap between nodes with label `l` bound to the remaining variable
-						// with nodes in the same partition bound to the leaving variable
-						for (final int l2 : uncoveredLabels) {
-							final double fracLv = fractionsAtLeaving.getOrDefault(l2, 0.0);
-							if (fracLv > 0) {
-								final double numL2 = this.dbProps.nodes(l2);
-								final Set<Integer> subL2 = labelDist.getAllKnownSublabels(l2);
-								final double pL2CondL;
-								if (subL.contains(l2)) {
-									// `l2` is a sublabel of `l`, so a fixed fraction of nodes qualify
-									pL2CondL = numL <= 0 ? 0 : Math.min(1.0, numL2 / numL);
-								} else if (l == l2 || subL2.contains(l)) {
-									// `l` is a sublabel of `l2`, so all nodes qualify
-									pL2CondL = 1;
-								} else {
-									// assume independence, probability is P[n:L2 | n \in part ] = N(L2) / |part|
-									final double pL2 = numL2 / numAll;
-									final double pL2InPart = partSizes[partID] <= 0 ? pL2 : pL2 / partSizes[partID];
-									pL2CondL = Math.min(pL2InPart, 1);
-								}
-								final double fracStL2 = pL2CondL * fracSt;
-								final double contrib = (1.0d - coveredFractions[partID]) * fracStL2 / numL2;
-								// newFracs.put(l2, value)
-								estimatedDegree += contrib;
+		return input.derive().remove(this.leavingId).size(input.getSize() * factor).build();
+	}
+
+	/**
+	 * Covers the next label of a set of overlapping labels, passing the contribution of every overlapping label
+	 * to the given sink.
+	 *
+	 * @return the new fraction of the set covered by its labels
+	 */
+	private double cover(final int l, final int partID, final Set<Integer> uncoveredLabels, final double coveredFraction,
+			final LabelVector fractionsAtStaying, final LabelVector fractionsAtLeaving, final double numAll,
+			final LabelDistribution labelDist, final DoubleConsumer sink) {
+		double covered = coveredFraction;
+		// Update the fraction of input nodes explained by the labels in this overlapping set.
+		if (covered < 1.0d) {
+			final double numL = this.dbProps.nodes(l);
+			final Set<Integer> subL = labelDist.getAllKnownSublabels(l);
+			// Avoid adding degrees multiple times by tracking which labels are already covered by previous ones.
+			if (uncoveredLabels.contains(l)) {
+				final double fracSt = fractionsAtStaying.get(l);
+				if (fracSt > 0) {
+					// add the amount of overlap between nodes with label `l` bound to the remaining variable
+					// with nodes in the same partition bound to the leaving variable
+					for (final int l2 : uncoveredLabels) {
+						final double fracLv = fractionsAtLeaving.get(l2);
+						if (fracLv > 0) {
+							final double numL2 = this.dbProps.nodes(l2);
+							final Set<Integer> subL2 = labelDist.getAllKnownSublabels(l2);
+							final double pL2CondL;
+							if (subL.contains(l2)) {
+								// `l2` is a sublabel of `l`, so a fixed fraction of nodes qualify
+								pL2CondL = numL <= 0 ? 0 : Math.min(1.0, numL2 / numL);
+							} else if (l == l2 || subL2.contains(l)) {
+								// `l` is a sublabel of `l2`, so all nodes qualify
+								pL2CondL = 1;
+							} else {
+								// assume independence, probability is P[n:L2 | n \in part ] = N(L2) / |part|
+								final double pL2 = numL2 / numAll;
+								final double pL2InPart = this.dbProps.initialPartitionSize(partID) <= 0 ? pL2 : pL2 / this.dbProps.initialPartitionSize(partID);
+								pL2CondL = Math.min(pL2InPart, 1);
 							}
+							final double fracStL2 = pL2CondL * fracSt;
+							final double contrib = (1.0d - covered) * fracStL2 / numL2;
+							// newFracs.put(l2, value)
+							sink.accept(contrib);
 						}
 					}
-					coveredFractions[partID] += (1.0d - coveredFractions[partID]) * fracSt;
 				}
-				uncoveredLabels.remove(l);
-				uncoveredLabels.removeAll(subL);
+				covered += (1.0d - covered) * fracSt;
 			}
-			// Logically, the remaining fraction is always at least at big as the covered one. But this might be violated by rounding errors or user errors.
-			remainingSt -= Math.min(remainingSt, coveredFractions[partID]);
+			uncoveredLabels.remove(l);
+			uncoveredLabels.removeAll(subL);
 		}
-		
-		estimatedDegree += remainingSt * this.dbProps.nodes(-1);
-		final double factor = estimatedDegree;
-
-		final Map<String, Map<Integer, Double>> newNLM = new HashMap<>(input.getNodeLabelMap());
-		newNLM.remove(this.leavingVar);
-		final Map<Integer, Double> newStaying = new HashMap<>(newNLM.get(this.stayingVar));
-		for (final Entry<Integer, Double> e : fractionsAtLeaving.entrySet()) {
-			newStaying.merge(e.getKey(), e.getValue(), Math::min);
-		}
-		return new GAResultProperties(newNLM, input.getRelationshipTypeMap(), input.getSize() * factor, false);
+		return covered;
 	}
 
 	/**
-	 * Estimates the relative sizes of the partitions of nodes at a specific node variable.
-	 *
-	 * @param input input properties
-	 * @param parts list of disjoint sets of labels
-	 * @param var variable to look at
-	 * @return array of relative
+	 * Covering of one set of overlapping labels in the order of all labels, with the contributions and the covered
+	 * fraction after every step.
 	 */
-	private double[] disjointSizes(final GAResultProperties input, final List<Set<Integer>> parts, final String var) {
-		final double[] sizes = new double[parts.size()];
-		if (parts.size() < 2) {
-			Arrays.fill(sizes, 1);
-			return sizes;
-		}
+	private final class Covering {
+		/** Contributions of all steps, followed by unused capacity. */
+		private double[] contributions;
 
-		final Map<Integer, Integer> lblToPart = new HashMap<>();
-		for (int i = 0; i < parts.size(); i++) {
-			for (final Integer lbl : parts.get(i)) {
-				lblToPart.put(lbl, i);
-			}
-		}
-		final Map<Integer, Double> labelDist = input.getNodeLabelMap().get(var);
-		double remaining = 1;
-		final Set<Integer> alreadyProcessed = new HashSet<>();
-		final LabelDistribution labels = this.dbProps.getLabelDistribution();
-		final List<Integer> sortedLabels = input.sortLabelsByFractionAndRecall(var, this.dbProps.labels(), this.dbProps);
-		for (final Integer next : sortedLabels) {
-			if (!alreadyProcessed.contains(next)) {
-				alreadyProcessed.addAll(labels.getAllKnownSublabels(next));
-				final double part = labelDist.getOrDefault(next, 0.0) * remaining;
-				sizes[lblToPart.get(next)] += part;
-				remaining -= part;
-				if (remaining <= 0) {
-					break;
-				}
+		/** Start of the contributions of each step, followed by their number. */
+		private final int[] stepStarts;
+
+		/** Covered fraction of the set after each step. */
+		private final double[] coveredFractions;
+
+		/** Number of contributions recorded so far. */
+		private int numContributions;
+
+		Covering(final int[] labels, final int partID, final Set<Integer> part, final LabelVector fractionsAtStaying,
+				final LabelVector fractionsAtLeaving, final double numAll, final LabelDistribution labelDist) {
+			final Set<Integer> uncoveredLabels = new HashSet<>(part);
+			this.contributions = new double[Math.max(16, labels.length)];
+			this.stepStarts = new int[labels.length + 1];
+			this.coveredFractions = new double[labels.length];
+			double covered = 0.0d;
+			for (int k = 0; k < labels.length; k++) {
+				covered = SelfJoin.this.cover(labels[k], partID, uncoveredLabels, covered, fractionsAtStaying,
+						fractionsAtLeaving, numAll, labelDist, this::add);
+				this.coveredFractions[k] = covered;
+				this.stepStarts[k + 1] = this.numContributions;
 			}
 		}
 
-		final double sum = Arrays.stream(sizes).sum();
-		if (sum > 0) {
-			for (int i = 0; i < sizes.length; i++) {
-				sizes[i] /= sum;
+		private void add(final double contribution) {
+			if (this.numContributions == this.contributions.length) {
+				this.contributions = Arrays.copyOf(this.contributions, 2 * this.numContributions);
 			}
+			this.contributions[this.numContributions++] = contribution;
 		}
-		return sizes;
 	}
 
 	private double estimateOverlap(final GAResultProperties input) {
 		final LabelDistribution labelDist = this.dbProps.getLabelDistribution();
-		final List<Set<Integer>> disjoints = new ArrayList<>(labelDist.getLabelHierarchy());
+		final List<Set<Integer>> disjoints = this.dbProps.labelPartition();
 
-		final String tempVar = "$temp";
-		final GAResultProperties initial = new GetNodes(this.dbProps, tempVar).computeLogicalProperties(Collections.emptyList());
 		final double numAll = this.dbProps.nodes(-1);
-		final double[] partSizes = disjointSizes(initial, disjoints, tempVar);
 
-		final Map<Integer, Double> fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingVar);
-		final Map<Integer, Double> fractionsAtStaying = input.getNodeLabelMap().get(this.stayingVar);
+		final LabelVector fractionsAtLeaving = input.getNodeLabelMap().get(this.leavingId);
+		final LabelVector fractionsAtStaying = input.getNodeLabelMap().get(this.stayingId);
 
 		// We estimate the expansion degree using the label hierarchy provided by the database properties.
 		double estimatedDegree = 0.0d;
@@ -184,7 +208,7 @@ public final class SelfJoin implements GALogicalOperator {
 			// Sort the overlapping labels by fraction and recall in order to get the labels which are the best
 			// statistical samples of the nodes at the target variable before the others.
 			final Set<Integer> part = disjoints.get(i);
-			final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.stayingVar, part, this.dbProps).iterator();
+			final Iterator<Integer> overlapping = input.sortLabelsByFractionAndRecall(this.stayingId, part, this.dbProps).iterator();
 
 			// Update the fraction of input nodes explained by the labels in this overlapping set.
 			double coveredFractionSt = 0.0d;
@@ -195,12 +219,12 @@ public final class SelfJoin implements GALogicalOperator {
 				final Set<Integer> subL = labelDist.getAllKnownSublabels(l);
 				// Avoid adding degrees multiple times by tracking which labels are already covered by previous ones.
 				if (uncoveredLabels.contains(l)) {
-					final double fracSt = fractionsAtStaying.getOrDefault(l, 0.0);
+					final double fracSt = fractionsAtStaying.get(l);
 					if (fracSt > 0) {
 						// add the amount of overlap between nodes with label `l` bound to the remaining variable
 						// with nodes in the same partition bound to the leaving variable
 						for (final int l2 : uncoveredLabels) {
-							final double fracLv = fractionsAtLeaving.getOrDefault(l2, 0.0);
+							final double fracLv = fractionsAtLeaving.get(l2);
 							if (fracLv > 0) {
 								final double numL2 = this.dbProps.nodes(l2);
 								final Set<Integer> subL2 = labelDist.getAllKnownSublabels(l2);
@@ -214,7 +238,7 @@ public final class SelfJoin implements GALogicalOperator {
 								} else {
 									// assume independence, probability is P[n:L2 | n \in part ] = N(L2) / |part|
 									final double pL2 = numL2 / numAll;
-									final double pL2InPart = partSizes[i] <= 0 ? pL2 : pL2 / partSizes[i];
+									final double pL2InPart = this.dbProps.initialPartitionSize(i) <= 0 ? pL2 : pL2 / this.dbProps.initialPartitionSize(i);
 									pL2CondL = Math.min(pL2InPart, 1);
 								}
 								final double fracStL2 = pL2CondL * fracSt;
@@ -237,7 +261,7 @@ public final class SelfJoin implements GALogicalOperator {
 
 	@Override
 	public int hash() {
-		return 31 * stayingVar.hashCode() + leavingVar.hashCode();
+		return 31 * (31 * stayingVar.hashCode() + leavingVar.hashCode()) + 31 * stayingId + leavingId;
 	}
 
 	@Override
@@ -249,7 +273,8 @@ public final class SelfJoin implements GALogicalOperator {
 			return false;
 		}
 		final SelfJoin that = (SelfJoin) other;
-		return this.stayingVar.equals(that.stayingVar) && this.leavingVar.equals(that.leavingVar);
+		return this.stayingVar.equals(that.stayingVar) && this.leavingVar.equals(that.leavingVar)
+				&& this.stayingId == that.stayingId && this.leavingId == that.leavingId;
 	}
 
 	@Override
@@ -2,9 +2,9 @@ package kn.uni.dbis.alhd.estimator.operators;
 
 import kn.uni.dbis.alhd.estimator.GADbProperties;
 import kn.uni.dbis.alhd.estimator.GAResultProperties;
+import kn.uni.dbis.alhd.estimator.LabelVector;
 
 import java.util.*;
-import java.util.Map.Entry;
 
 public class Traverse implements GALogicalOperator {
     /** Database properties. */
@@ -22,47 +22,54 @@ public class Traverse implements GALogicalOperator {
     /** Variable that matches the new nodes found by this expansion. */
     private final String targetVariable;
 
+    /** IDs of the base, relationship and target variable. */
+    private final int baseId, relationshipId, targetId;
+
     /**
      * Constructs a new Traverse-operator.
      *
      * @param dbProps database properties
      * @param baseVariable which nodes should be expanded from the input
+     * @param baseId ID of the base variable in the operator tree
      * @param relationshipVariable how to match the relationships found by this expansion
+     * @param relationshipId ID of the relationship variable in the operator tree
      * @param relationshipTypes the types of relationships found by this expansion
      *                          (the empty set represents all types)
      * @param targetVariable how to match the new nodes found by this expansion
+     * @param targetId ID of the target variable in the operator tree
      */
     public Traverse(
             final GADbProperties dbProps,
             final String baseVariable,
+            final int baseId,
             final String relationshipVariable,
+            final int relationshipId,
             final Set<Integer> relationshipTypes,
-            final String targetVariable) {
+            final String targetVariable,
+            final int targetId) {
         this.dbProps = dbProps;
         this.baseVariable = baseVariable;
         this.relationshipVariable = relationshipVariable;
         this.relationshipTypes = relationshipTypes;
         this.targetVariable = targetVariable;
+        this.baseId = baseId;
+        this.relationshipId = relationshipId;
+        this.targetId = targetId;
     }
 
 	@Override
 	public GAResultProperties computeLogicalProperties(final List<GAResultProperties> inputProperties) {
 		final GAResultProperties inputProps = inputProperties.get(0);
-        final Map<String, Map<Integer, Double>> inputNodeLabelMap = inputProps.getNodeLabelMap();
-        final Map<Integer, Double> base = inputNodeLabelMap.get(this.baseVariable);
-        final Map<Integer, Double> target = inputNodeLabelMap.get(this.targetVariable);
-        final Map<String, Map<Integer, Double>> nodeLabelMap = new HashMap<>(inputNodeLabelMap);
+        final LabelVector base = inputProps.getNodeLabelMap().get(this.baseId);
+        final LabelVector target = inputProps.getNodeLabelMap().get(this.targetId);
         double size = 0;
         final Set<Integer> relTypes = new HashSet<>();
-        for (final Entry<Integer, Double> from : base.entrySet()) {
-            final double fromRatio = from.getValue();
+        for (final int fromLabel : this.dbProps.labelIds()) {
+            final double fromRatio = base.get(fromLabel);
             if (fromRatio > 0) {
-                final int fromLabel = from.getKey();
             }
         }
-        final Map<String, Set<Integer>> relTypeMap = new HashMap<>(inputProps.getRelationshipTypeMap());
-        relTypeMap.put(this.relationshipVariable, relTypes);
-		return new GAResultProperties(nodeLabelMap, relTypeMap, size, false);
+		return inputProps.derive().putTypes(this.relationshipVariable, this.relationshipId, relTypes).size(size).build();
 	}
 
 	@Override
@@ -71,7 +78,10 @@ public class Traverse implements GALogicalOperator {
 		    this.baseVariable,
 		    this.relationshipVariable,
 		    this.relationshipTypes,
-		    this.targetVariable
+		    this.targetVariable,
+		    this.baseId,
+		    this.relationshipId,
+		    this.targetId
 		});
 	}
 
@@ -84,7 +94,10 @@ public class Traverse implements GALogicalOperator {
 		return this.baseVariable.equals(that.baseVariable)
 		        && this.relationshipTypes.equals(that.relationshipTypes)
 		        && this.relationshipVariable.equals(that.relationshipVariable)
-		        && this.targetVariable.equals(that.targetVariable);
+		        && this.targetVariable.equals(that.targetVariable)
+		        && this.baseId == that.baseId
+		        && this.relationshipId == that.relationshipId
+		        && this.targetId == that.targetId;
 	}
 
 }
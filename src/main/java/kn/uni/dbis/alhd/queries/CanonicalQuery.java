@@ -0,0 +1,536 @@
+package kn.uni.dbis.alhd.queries;
+
+import kn.uni.dbis.alhd.util.UnionFind;
+
+import java.util.*;
+
+/**
+ * Canonical form of a {@link CypherQuery} that does not depend on the names of its variables, so that isomorphic
+ * queries like {@code (a:Person)-[:KNOWS]->(b)} and {@code (x:Person)-[:KNOWS]->(y)} share a cache key.
+ *
+ * The node variables are first colored by their labels and property predicates, and the coloring is refined by the
+ * colors of the neighbors, the direction and the types and predicates of the connecting relationships until it is
+ * stable. Remaining ties are broken by individualizing each node of the first non-singleton color class in turn,
+ * refining again and keeping the numbering with the lexicographically smallest encoding of the pattern. Branches
+ * that are mapped onto an already explored one by an automorphism found along the way are skipped, so that
+ * symmetric patterns like stars do not lead to a factorial search.
+ *
+ * Two queries have the same {@link #key()} if and only if they are equal up to renaming of their variables. The
+ * canonical query names its node variables {@code n0, n1, ...} in canonical order, and the original names are
+ * available through {@link #originalName(String)}.
+ */
+public final class CanonicalQuery {
+
+    /** Encoding of the query independent of variable names. */
+    private final String key;
+
+    /** The query with renamed node variables. */
+    private final CypherQuery query;
+
+    /** Original name of each canonical node variable, by canonical index. */
+    private final String[] originalNames;
+
+    /** Canonical index of each original node variable. */
+    private final Map<String, Integer> canonicalIndex;
+
+    private CanonicalQuery(final String key, final CypherQuery query, final String[] originalNames) {
+        this.key = key;
+        this.query = query;
+        this.originalNames = originalNames;
+        this.canonicalIndex = new HashMap<>();
+        for (int i = 0; i < originalNames.length; i++) {
+            this.canonicalIndex.put(originalNames[i], i);
+        }
+    }
+
+    /**
+     * Computes the canonical form of the given query.
+     *
+     * @param query the query
+     * @return the canonical form
+     */
+    public static CanonicalQuery of(final CypherQuery query) {
+        return new Labeling(query).run();
+    }
+
+    /**
+     * Returns the encoding of the query, which is equal for two queries if and only if they are isomorphic.
+     *
+     * @return the canonical key
+     */
+    public String key() {
+        return this.key;
+    }
+
+    /**
+     * Returns the query with its node variables renamed to {@code n0, n1, ...} in canonical order.
+     *
+     * @return the canonical query
+     */
+    public CypherQuery getQuery() {
+        return this.query;
+    }
+
+    /**
+     * Returns the name of a canonical node variable in the original query.
+     *
+     * @param canonicalVar a node variable of the canonical query
+     * @return the original variable name
+     * @throws IllegalArgumentException if the variable is not a node variable of the canonical query
+     */
+    public String originalName(final String canonicalVar) {
+        final int idx = canonicalVar.startsWith("n") ? parseIndex(canonicalVar.substring(1)) : -1;
+        if (idx < 0 || idx >= this.originalNames.length) {
+            throw new IllegalArgumentException("Unknown canonical variable: " + canonicalVar);
+        }
+        return this.originalNames[idx];
+    }
+
+    /**
+     * Returns the name of an original node variable in the canonical query.
+     *
+     * @param var a node variable of the original query
+     * @return the canonical variable name
+     * @throws IllegalArgumentException if the variable is not a node variable of the original query
+     */
+    public String canonicalName(final String var) {
+        final Integer idx = this.canonicalIndex.get(var);
+        if (idx == null) {
+            throw new IllegalArgumentException("Unknown variable: " + var);
+        }
+        return "n" + idx;
+    }
+
+    /**
+     * Returns the original node variables in canonical order.
+     *
+     * @return the original names, the {@code i}-th one is renamed to {@code n<i>}
+     */
+    public List<String> originalNames() {
+        return List.of(this.originalNames);
+    }
+
+    private static int parseIndex(final String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return this == obj || obj instanceof CanonicalQuery && this.key.equals(((CanonicalQuery) obj).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.key;
+    }
+
+    /**
+     * State of the canonical labeling of one query.
+     */
+    private static final class Labeling {
+        /** The query. */
+        private final CypherQuery query;
+
+        /** Node variables, sorted by name. */
+        private final String[] nodes;
+
+        /** Relationships of the pattern. */
+        private final List<CypherPattern.Relationship> rels;
+
+        /** Source and target node of each relationship. */
+        private final int[] sources, targets;
+
+        /** Rank of each node's labels and predicates among all distinct ones. */
+        private final int[] nodeInvariants;
+
+        /** Rank of each relationship's types and predicates among all distinct ones. */
+        private final int[] relInvariants;
+
+        /** Distinct node and relationship invariants, in ascending order. */
+        private final List<String> nodeTable, relTable;
+
+        /** Relationships incident to each node. */
+        private final List<List<Integer>> incident;
+
+        /** Smallest encoding found so far. */
+        private int[] bestCode;
+
+        /** Canonical index of each node for the smallest encoding. */
+        private int[] bestPerm;
+
+        /** Individualized nodes leading to the smallest encoding. */
+        private List<Integer> bestPath;
+
+        /** Depth to return to after finding an automorphism, the subtrees below it are equivalent to explored ones. */
+        private int backjump = Integer.MAX_VALUE;
+
+        /** Automorphisms found so far, as mappings of node indices. */
+        private final List<int[]> automorphisms = new ArrayList<>();
+
+        Labeling(final CypherQuery query) {
+            this.query = query;
+            final CypherPattern pattern = query.getPattern();
+            this.nodes = pattern.getNodeVars().keySet().stream().sorted().toArray(String[]::new);
+            final Map<String, Integer> pos = new HashMap<>();
+            for (int i = 0; i < this.nodes.length; i++) {
+                pos.put(this.nodes[i], i);
+            }
+            this.rels = pattern.getRelationships();
+            this.sources = new int[this.rels.size()];
+            this.targets = new int[this.rels.size()];
+            this.incident = new ArrayList<>();
+            for (int i = 0; i < this.nodes.length; i++) {
+                this.incident.add(new ArrayList<>());
+            }
+            for (int r = 0; r < this.rels.size(); r++) {
+                this.sources[r] = pos.get(this.rels.get(r).getSource());
+                this.targets[r] = pos.get(this.rels.get(r).getTarget());
+                this.incident.get(this.sources[r]).add(r);
+                this.incident.get(this.targets[r]).add(r);
+            }
+
+            final String[] nodeInv = new String[this.nodes.length];
+            for (int i = 0; i < this.nodes.length; i++) {
+                final StringBuilder sb = new StringBuilder("L");
+                pattern.getNodeVars().get(this.nodes[i]).stream().sorted().forEach(l -> encode(sb, l));
+                encodePredicates(sb.append('P'), query.getNodePredicates().get(this.nodes[i]));
+                nodeInv[i] = sb.toString();
+            }
+            final String[] relInv = new String[this.rels.size()];
+            for (int r = 0; r < this.rels.size(); r++) {
+                final StringBuilder sb = new StringBuilder("T");
+                this.rels.get(r).getTypes().stream().sorted().forEach(t -> encode(sb, t));
+                encodePredicates(sb.append('P'), query.getEdgePredicates().get(this.rels.get(r).name()));
+                relInv[r] = sb.toString();
+            }
+            this.nodeTable = new ArrayList<>(new TreeSet<>(Arrays.asList(nodeInv)));
+            this.relTable = new ArrayList<>(new TreeSet<>(Arrays.asList(relInv)));
+            this.nodeInvariants = Arrays.stream(nodeInv).mapToInt(s -> Collections.binarySearch(this.nodeTable, s))
+                    .toArray();
+            this.relInvariants = Arrays.stream(relInv).mapToInt(s -> Collections.binarySearch(this.relTable, s))
+                    .toArray();
+        }
+
+        CanonicalQuery run() {
+            this.search(this.nodeInvariants.clone(), new ArrayList<>());
+            final int n = this.nodes.length;
+            final int[] perm = this.bestPerm == null ? new int[0] : this.bestPerm;
+            final String[] originalNames = new String[n];
+            for (int v = 0; v < n; v++) {
+                originalNames[perm[v]] = this.nodes[v];
+            }
+
+            // the key consists of the invariant tables and the encoding, which refers to them by rank
+            final StringBuilder key = new StringBuilder();
+            key.append('N');
+            this.nodeTable.forEach(s -> encode(key, s));
+            key.append('R');
+            this.relTable.forEach(s -> encode(key, s));
+            key.append('C');
+            final int[] code = this.bestCode == null ? new int[0] : this.bestCode;
+            for (final int c : code) {
+                key.append(c).append(',');
+            }
+
+            // rebuild the query with canonical names, relationships in the order of the encoding
+            final CypherPattern pattern = new CypherPattern();
+            final Map<String, Map<String, PropSelection>> nodePreds = new HashMap<>();
+            final Map<String, Map<String, PropSelection>> edgePreds = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                final String orig = originalNames[i];
+                pattern.var("n" + i, this.query.getPattern().getNodeVars().get(orig).toArray(String[]::new));
+                final Map<String, PropSelection> preds = this.query.getNodePredicates().get(orig);
+                if (preds != null && !preds.isEmpty()) {
+                    nodePreds.put("n" + i, preds);
+                }
+            }
+            // predicates are keyed by relationship name, which is shared by the directed relationships and the
+            // undirected ones with the same source and target, so undirected ones are oriented into a name with
+            // equal predicates
+            final List<Integer> order = this.relationshipOrder(perm);
+            final Map<String, Map<String, PropSelection>> byName = new HashMap<>();
+            for (final int r : order) {
+                if (this.rels.get(r).isDirected()) {
+                    byName.put(perm[this.sources[r]] + "_" + perm[this.targets[r]], this.predicates(r));
+                }
+            }
+            for (final int r : order) {
+                final CypherPattern.Relationship rel = this.rels.get(r);
+                int a = perm[this.sources[r]];
+                int b = perm[this.targets[r]];
+                if (!rel.isDirected()) {
+                    final Map<String, PropSelection> preds = this.predicates(r);
+                    final int lo = Math.min(a, b);
+                    final int hi = Math.max(a, b);
+                    final Map<String, PropSelection> forward = byName.get(lo + "_" + hi);
+                    final boolean flip = !preds.equals(forward) && (preds.equals(byName.get(hi + "_" + lo))
+                            || forward != null);
+                    a = flip ? hi : lo;
+                    b = flip ? lo : hi;
+                    byName.put(a + "_" + b, preds);
+                }
+                final List<String> types = new ArrayList<>(rel.getTypes());
+                Collections.sort(types);
+                final String name = pattern.rel("n" + a, types.isEmpty() ? null : String.join("|", types),
+                        rel.isDirected() ? Direction.OUTGOING : Direction.BOTH, "n" + b);
+                final Map<String, PropSelection> preds = this.predicates(r);
+                if (!preds.isEmpty()) {
+                    edgePreds.put(name, preds);
+                }
+            }
+            return new CanonicalQuery(key.toString(), new CypherQuery(pattern, nodePreds, edgePreds),
+                    originalNames);
+        }
+
+        private Map<String, PropSelection> predicates(final int r) {
+            return this.query.getEdgePredicates().getOrDefault(this.rels.get(r).name(), Collections.emptyMap());
+        }
+
+        /** Explores the numberings refining the given coloring after individualizing the given nodes. */
+        private void search(final int[] initial, final List<Integer> fixed) {
+            final int[] colors = this.refine(initial);
+            final int n = colors.length;
+            final int[] cellSizes = new int[n];
+            for (final int c : colors) {
+                cellSizes[c]++;
+            }
+            int target = -1;
+            for (int c = 0; c < n && target < 0; c++) {
+                if (cellSizes[c] > 1) {
+                    target = c;
+                }
+            }
+            if (target < 0) {
+                this.leaf(colors, fixed);
+                return;
+            }
+            final List<Integer> explored = new ArrayList<>();
+            for (int v = 0; v < n; v++) {
+                if (colors[v] == target && !this.equivalentToExplored(v, explored, fixed)) {
+                    explored.add(v);
+                    final int[] individualized = new int[n];
+                    for (int u = 0; u < n; u++) {
+                        individualized[u] = 2 * colors[u] + (u == v ? 0 : 1);
+                    }
+                    fixed.add(v);
+                    this.search(rank(individualized), fixed);
+                    fixed.remove(fixed.size() - 1);
+                    if (this.backjump < fixed.size()) {
+                        return;
+                    }
+                    this.backjump = Integer.MAX_VALUE;
+                }
+            }
+        }
+
+        /** Records a discrete coloring as a candidate numbering. */
+        private void leaf(final int[] perm, final List<Integer> path) {
+            final int[] code = this.encodeNumbering(perm);
+            final int cmp = this.bestCode == null ? -1 : Arrays.compare(code, this.bestCode);
+            if (cmp < 0) {
+                this.bestCode = code;
+                this.bestPerm = perm;
+                this.bestPath = new ArrayList<>(path);
+            } else if (cmp == 0) {
+                // both numberings give the same pattern, so mapping one onto the other is an automorphism
+                final int[] inverse = new int[perm.length];
+                for (int v = 0; v < perm.length; v++) {
+                    inverse[this.bestPerm[v]] = v;
+                }
+                final int[] aut = new int[perm.length];
+                for (int v = 0; v < perm.length; v++) {
+                    aut[v] = inverse[perm[v]];
+                }
+                this.automorphisms.add(aut);
+                // the automorphism maps the subtree of this leaf at the first divergence onto the explored one
+                int common = 0;
+                while (common < path.size() && path.get(common).equals(this.bestPath.get(common))) {
+                    common++;
+                }
+                this.backjump = common;
+            }
+        }
+
+        /**
+         * Checks whether the node is in the orbit of an explored one under the automorphisms found so far that fix
+         * the individualized nodes.
+         */
+        private boolean equivalentToExplored(final int v, final List<Integer> explored, final List<Integer> fixed) {
+            if (explored.isEmpty() || this.automorphisms.isEmpty()) {
+                return false;
+            }
+            final int n = this.nodes.length;
+            final int[] orbit = UnionFind.create(n);
+            for (final int[] aut : this.automorphisms) {
+                boolean fixes = true;
+                for (final int f : fixed) {
+                    fixes &= aut[f] == f;
+                }
+                if (fixes) {
+                    for (int u = 0; u < n; u++) {
+                        UnionFind.union(orbit, u, aut[u]);
+                    }
+                }
+            }
+            final int root = UnionFind.find(orbit, v);
+            for (final int u : explored) {
+                if (UnionFind.find(orbit, u) == root) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Refines the coloring by the colors of the neighbors until the number of colors is stable. */
+        private int[] refine(final int[] initial) {
+            int[] colors = initial;
+            int numColors = Arrays.stream(colors).max().orElse(-1) + 1;
+            for (;;) {
+                final int n = colors.length;
+                final int[][] signatures = new int[n][];
+                for (int v = 0; v < n; v++) {
+                    final List<int[]> neighbors = new ArrayList<>();
+                    for (final int r : this.incident.get(v)) {
+                        final boolean directed = this.rels.get(r).isDirected();
+                        if (this.sources[r] == v) {
+                            neighbors.add(new int[] {this.relInvariants[r], directed ? 0 : 2, colors[this.targets[r]]});
+                        }
+                        if (this.targets[r] == v) {
+                            neighbors.add(new int[] {this.relInvariants[r], directed ? 1 : 2, colors[this.sources[r]]});
+                        }
+                    }
+                    neighbors.sort(Arrays::compare);
+                    final int[] sig = new int[1 + 3 * neighbors.size()];
+                    sig[0] = colors[v];
+                    for (int i = 0; i < neighbors.size(); i++) {
+                        System.arraycopy(neighbors.get(i), 0, sig, 1 + 3 * i, 3);
+                    }
+                    signatures[v] = sig;
+                }
+                final int[] refined = rank(signatures);
+                final int refinedColors = Arrays.stream(refined).max().orElse(-1) + 1;
+                if (refinedColors == numColors) {
+                    return refined;
+                }
+                colors = refined;
+                numColors = refinedColors;
+            }
+        }
+
+        /** Encodes the pattern under the given numbering of the nodes. */
+        private int[] encodeNumbering(final int[] perm) {
+            final int n = perm.length;
+            final int[] code = new int[2 + n + 4 * this.rels.size()];
+            code[0] = n;
+            code[1] = this.rels.size();
+            for (int v = 0; v < n; v++) {
+                code[2 + perm[v]] = this.nodeInvariants[v];
+            }
+            int pos = 2 + n;
+            for (final int[] t : this.relationshipTuples(perm)) {
+                System.arraycopy(t, 0, code, pos, 4);
+                pos += 4;
+            }
+            return code;
+        }
+
+        /** Returns the relationships in the order of their tuples under the given numbering. */
+        private List<Integer> relationshipOrder(final int[] perm) {
+            final List<int[]> tuples = this.relationshipTuples(perm);
+            final List<Integer> order = new ArrayList<>();
+            for (final int[] t : tuples) {
+                order.add(t[4]);
+            }
+            return order;
+        }
+
+        /**
+         * Sorted tuples of the canonical end points, direction flag and invariant of each relationship, followed by
+         * the relationship's index.
+         */
+        private List<int[]> relationshipTuples(final int[] perm) {
+            final List<int[]> tuples = new ArrayList<>(this.rels.size());
+            for (int r = 0; r < this.rels.size(); r++) {
+                final boolean directed = this.rels.get(r).isDirected();
+                final int a = perm[this.sources[r]];
+                final int b = perm[this.targets[r]];
+                tuples.add(new int[] {directed ? a : Math.min(a, b), directed ? b : Math.max(a, b), directed ? 1 : 0,
+                        this.relInvariants[r], r});
+            }
+            tuples.sort((x, y) -> Arrays.compare(x, 0, 4, y, 0, 4));
+            return tuples;
+        }
+
+        /** Replaces each key by its rank among the distinct keys. */
+        private static int[] rank(final int[] keys) {
+            final int[] distinct = Arrays.stream(keys).distinct().sorted().toArray();
+            return Arrays.stream(keys).map(k -> Arrays.binarySearch(distinct, k)).toArray();
+        }
+
+        private static int[] rank(final int[][] keys) {
+            final int[][] sorted = keys.clone();
+            Arrays.sort(sorted, Arrays::compare);
+            final List<int[]> distinct = new ArrayList<>();
+            for (final int[] k : sorted) {
+                if (distinct.isEmpty() || Arrays.compare(distinct.get(distinct.size() - 1), k) != 0) {
+                    distinct.add(k);
+                }
+            }
+            final int[] ranks = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                ranks[i] = Collections.binarySearch(distinct, keys[i], Arrays::compare);
+            }
+            return ranks;
+        }
+
+        private static void encodePredicates(final StringBuilder sb, final Map<String, PropSelection> preds) {
+            if (preds != null) {
+                new TreeMap<>(preds).forEach((prop, sel) -> {
+                    encode(sb, prop);
+                    encodePredicate(sb, sel);
+                });
+            }
+        }
+
+        /**
+         * Appends all fields compared by {@link PropSelection#equals(Object)}, each of them length-prefixed, as
+         * {@link PropSelection#toString()} does not escape the values.
+         */
+        private static void encodePredicate(final StringBuilder sb, final PropSelection sel) {
+            encode(sb, sel.property);
+            if (sel.isDisjunction()) {
+                sb.append('D').append(sel.values.length).append(':');
+                for (final String value : sel.values) {
+                    encode(sb, value);
+                }
+                sb.append(sel.ranges.length).append(':');
+                for (final double[] range : sel.ranges) {
+                    encodeRange(sb, range);
+                }
+            } else if (sel.value != null) {
+                encode(sb.append('V'), sel.value);
+            } else {
+                encodeRange(sb.append('R'), sel.range);
+            }
+        }
+
+        private static void encodeRange(final StringBuilder sb, final double[] range) {
+            encode(sb, Double.toString(range[0]));
+            encode(sb, Double.toString(range[1]));
+        }
+
+        /** Appends the string with its length, so that concatenated encodings are unambiguous. */
+        private static void encode(final StringBuilder sb, final String s) {
+            sb.append(s.length()).append(':').append(s);
+        }
+    }
+}
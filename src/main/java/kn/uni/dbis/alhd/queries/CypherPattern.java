@@ -99,7 +99,7 @@ public class CypherPattern implements Cloneable {
 			}
 		}
 		for (final Relationship rel : this.relationships) {
-			if (!rel.directed) {
+			if (!rel.directed || rel.hasMultipleTypes()) {
 				return Optional.empty();
 			}
 			final String pred = rel.type == null ? "?dummy" + dummy++ : "T:" + rel.type;
@@ -116,7 +116,8 @@ public class CypherPattern implements Cloneable {
 		final Map<String, Relationship> left = new HashMap<>();
 		final Set<String> right = new HashSet<>();
 		for (final Relationship rel : this.relationships) {
-			if (!rel.directed || left.containsKey(rel.source) || right.contains(rel.target) || rel.type == null) {
+			if (!rel.directed || left.containsKey(rel.source) || right.contains(rel.target) || rel.type == null
+					|| rel.hasMultipleTypes()) {
 				return Optional.empty();
 			}
 			left.put(rel.source, rel);
@@ -175,7 +176,7 @@ public class CypherPattern implements Cloneable {
 			if (rel == null) {
 				break;
 			}
-			path.add(rel.type == null ? new String[0] : new String[] { rel.type });
+			path.add(rel.types.toArray(String[]::new));
 			node = rel.target;
 		}
 		return Optional.of(path.toArray(String[][]::new));
@@ -187,7 +188,7 @@ public class CypherPattern implements Cloneable {
 		}
 		final Map<String, List<Relationship>> neighbors = new HashMap<>();
 		for (final Relationship rel : this.relationships) {
-			if (!rel.directed) {
+			if (!rel.directed || rel.hasMultipleTypes()) {
 				return Optional.empty();
 			}
 			final List<Relationship> left = neighbors.computeIfAbsent(rel.source, k -> new ArrayList<>());
@@ -354,11 +355,18 @@ public class CypherPattern implements Cloneable {
 		private final String target;
 		private final boolean directed;
 		private final String type;
+		private final List<String> types;
+		/** The alternative types in ascending order, which identify the relationship independently of their order. */
+		private final List<String> sortedTypes;
+		private final String name;
 		Relationship(final String source, final String target, final String label, final boolean directed) {
 			this.source = source;
 			this.target = target;
 			this.directed = directed;
 			this.type = label;
+			this.types = label == null ? Collections.emptyList() : List.of(label.split("\\|"));
+			this.sortedTypes = this.types.stream().sorted().collect(Collectors.toUnmodifiableList());
+			this.name = source.replace("_", "__") + "_" + target.replace("_", "__");
 		}
 
 		public final Relationship redirect(final String newTarget) {
@@ -366,7 +374,7 @@ public class CypherPattern implements Cloneable {
 		}
 
 		public final String name() {
-			return source.replaceAll("_", "__") + "_" + target.replaceAll("_", "__");
+			return this.name;
 		}
 
 		@Override
@@ -386,6 +394,19 @@ public class CypherPattern implements Cloneable {
 			return Optional.ofNullable(this.type);
 		}
 
+		/**
+		 * Returns the alternative types of this relationship, an empty list means that any type matches.
+		 *
+		 * @return list of allowed relationship types
+		 */
+		public List<String> getTypes() {
+			return this.types;
+		}
+
+		public boolean hasMultipleTypes() {
+			return this.types.size() > 1;
+		}
+
 		public String getTarget() {
 			return this.target;
 		}
@@ -404,12 +425,12 @@ public class CypherPattern implements Cloneable {
 			}
 			final Relationship that = (Relationship) obj;
 			return Objects.equals(this.source, that.source) && this.directed == that.directed
-					&& Objects.equals(this.type, that.type) && Objects.equals(this.target, that.target);
+					&& this.sortedTypes.equals(that.sortedTypes) && Objects.equals(this.target, that.target);
 		}
 
 		@Override
 		public int hashCode() {
-			return Objects.hash(this.source, this.directed, this.type, this.target);
+			return Objects.hash(this.source, this.directed, this.sortedTypes, this.target);
 		}
 
 		@Override
@@ -421,10 +442,14 @@ public class CypherPattern implements Cloneable {
 			if (cSrc != 0) {
 				return cSrc;
 			}
-			final int cType = this.type != null ? that.type == null ? 1 : this.type.compareTo(that.type)
-					                            : that.type == null ? 0 : -1;
-			if (cType != 0) {
-				return cType;
+			for (int i = 0; i < Math.min(this.sortedTypes.size(), that.sortedTypes.size()); i++) {
+				final int cType = this.sortedTypes.get(i).compareTo(that.sortedTypes.get(i));
+				if (cType != 0) {
+					return cType;
+				}
+			}
+			if (this.sortedTypes.size() != that.sortedTypes.size()) {
+				return Integer.compare(this.sortedTypes.size(), that.sortedTypes.size());
 			}
 			if (this.directed ^ that.directed) {
 				return this.directed ? 1 : -1;
@@ -434,7 +459,7 @@ public class CypherPattern implements Cloneable {
 	}
 
 	private static final Pattern NODE_VAR = Pattern.compile("\\(([a-zA-Z0-9_]*)((?::[a-zA-Z0-9_]+)*)\\)");
-	private static final Pattern REL = Pattern.compile("\\(([a-zA-Z0-9_]*)(?::[^\\)]+)*\\)(<?-)(?:\\[((?::[a-zA-Z0-9_]+)?)\\])?(->?)\\(([a-zA-Z0-9_]*)(?::[^\\)]+)*\\)");
+	private static final Pattern REL = Pattern.compile("\\(([a-zA-Z0-9_]*)(?::[^\\)]+)*\\)(<?-)(?:\\[((?::[a-zA-Z0-9_]+(?:\\|:?[a-zA-Z0-9_]+)*)?)\\])?(->?)\\(([a-zA-Z0-9_]*)(?::[^\\)]+)*\\)");
 
 	public static CypherPattern fromCypher(final String in) {
 		final CypherPattern pattern = new CypherPattern();
@@ -458,7 +483,9 @@ public class CypherPattern implements Cloneable {
 				final String varR = relMatcher.group(5);
 				final Direction dir = relL.startsWith("<") ? Direction.INCOMING
 						: relR.endsWith(">") ? Direction.OUTGOING : Direction.BOTH;
-				pattern.rel(varL, label != null && label.startsWith(":") ? label.substring(1) : null, dir, varR);
+				// alternative types `[:A|B]` or `[:A|:B]` are stored as `A|B`
+				final String type = label != null && label.startsWith(":") ? label.substring(1).replace("|:", "|") : null;
+				pattern.rel(varL, type, dir, varR);
 				start = relMatcher.start() + 1;
 			}
 		}
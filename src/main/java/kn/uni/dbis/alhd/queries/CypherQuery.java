@@ -1,9 +1,11 @@
 package kn.uni.dbis.alhd.queries;
 
+import kn.uni.dbis.alhd.util.ConnectedSubsets;
+
 import java.util.*;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class CypherQuery {
 
@@ -153,42 +155,104 @@ public class CypherQuery {
         return sb.toString();
     }
 
+    /**
+     * Returns the sub-queries induced by every connected set of exactly {@code k} node variables, each of them
+     * once, in the order of {@link #connectedSubsets(int, int, boolean)}. For {@code k = 1} these are the
+     * single-node sub-queries.
+     *
+     * @param k number of node variables of the sub-queries
+     * @return the sub-queries, only this query itself if {@code k} is its number of node variables
+     */
     public Collection<CypherQuery> subQueries(final int k) {
-        final List<String> nodes = new ArrayList<>(this.pattern.getNodeVars().keySet());
-        Collections.sort(nodes);
-        if (k >= nodes.size()) {
-           return k == nodes.size() ? List.of(this) : List.of();
+        final int n = this.pattern.getNodeVars().size();
+        if (k >= n) {
+           return k == n ? List.of(this) : List.of();
         }
+        return this.subQueryStream(k, k, false).collect(Collectors.toList());
+    }
+
+    /**
+     * Lazily streams the connected sub-queries induced by {@code minSize} to {@code maxSize} node variables,
+     * each of them exactly once, see {@link #connectedSubsets(int, int, boolean)}.
+     *
+     * @param minSize minimum number of node variables
+     * @param maxSize maximum number of node variables
+     * @param parallel whether the stream is parallel
+     * @return stream of the sub-queries
+     */
+    public Stream<CypherQuery> subQueryStream(final int minSize, final int maxSize, final boolean parallel) {
+        final List<String> nodes = this.sortedNodeVars();
+        return this.connectedSubsets(minSize, maxSize, parallel).map(vs -> this.induced(nodes, vs));
+    }
+
+    /**
+     * Lazily streams all connected sub-queries with at least two node variables, including this query if it is
+     * connected.
+     *
+     * @param parallel whether the stream is parallel
+     * @return stream of the sub-queries
+     */
+    public Stream<CypherQuery> allSubQueries(final boolean parallel) {
+        return this.subQueryStream(2, this.pattern.getNodeVars().size(), parallel);
+    }
+
+    /**
+     * Lazily streams the sets of {@code minSize} to {@code maxSize} node variables which induce a connected
+     * sub-pattern, each of them exactly once. Bit {@code i} stands for the {@code i}-th node variable in
+     * lexicographic order.
+     *
+     * @param minSize minimum number of node variables
+     * @param maxSize maximum number of node variables
+     * @param parallel whether the stream is parallel
+     * @return stream of the node sets
+     */
+    public Stream<BitSet> connectedSubsets(final int minSize, final int maxSize, final boolean parallel) {
+        final List<String> nodes = this.sortedNodeVars();
         final Map<String, Integer> nodeToPos = IntStream.range(0, nodes.size()).boxed()
                 .collect(Collectors.toMap(nodes::get, i -> i));
-        final Set<BitSet> out = new HashSet<>();
-        final int limit = nodes.size() - k;
-        final BitSet vars = new BitSet();
-        for (int i = 0; i < limit; i++) {
-            vars.set(i);
-            subQueriesFrom(nodeToPos, k, vars, out::add);
-            vars.clear(i);
+        final List<Set<Integer>> neighbors = new ArrayList<>();
+        nodes.forEach(v -> neighbors.add(new TreeSet<>()));
+        for (final CypherPattern.Relationship rel : this.pattern.getRelationships()) {
+            final int fromID = nodeToPos.get(rel.getSource());
+            final int toID = nodeToPos.get(rel.getTarget());
+            neighbors.get(fromID).add(toID);
+            neighbors.get(toID).add(fromID);
         }
-        return out.stream().map(vs -> {
-            final Map<String, Set<String>> newNodes = vs.stream().mapToObj(nodes::get)
-                    .collect(Collectors.toMap(n -> n, this.pattern.getNodeVars()::get));
-            final List<CypherPattern.Relationship> relationships = this.pattern.getRelationships().stream()
-                    .filter(e -> newNodes.containsKey(e.getSource()) && newNodes.containsKey(e.getTarget()))
-                    .collect(Collectors.toList());
-            if (relationships.isEmpty()) {
-                throw new AssertionError();
-            }
-            final Set<String> edgeNames = relationships.stream()
-                    .map(CypherPattern.Relationship::name).collect(Collectors.toSet());
-            final CypherPattern pat = new CypherPattern(newNodes, relationships);
-            final Map<String, Map<String, PropSelection>> nodePreds = this.nodePreds.entrySet().stream()
-                    .filter(e -> newNodes.containsKey(e.getKey()))
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-            final Map<String, Map<String, PropSelection>> edgePreds = this.edgePreds.entrySet().stream()
-                    .filter(e -> edgeNames.contains(e.getKey()))
-                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-            return new CypherQuery(pat, nodePreds, edgePreds);
-        }).collect(Collectors.toList());
+        final int[][] adjacency = neighbors.stream().map(ns -> ns.stream().mapToInt(Integer::intValue).toArray())
+                .toArray(int[][]::new);
+        return ConnectedSubsets.stream(adjacency, minSize, maxSize, parallel);
+    }
+
+    /**
+     * Returns the node variables in lexicographic order, which is the numbering used for sub-queries.
+     *
+     * @return the sorted node variables
+     */
+    public List<String> sortedNodeVars() {
+        final List<String> nodes = new ArrayList<>(this.pattern.getNodeVars().keySet());
+        Collections.sort(nodes);
+        return nodes;
+    }
+
+    private CypherQuery induced(final List<String> nodes, final BitSet vs) {
+        final Map<String, Set<String>> newNodes = vs.stream().mapToObj(nodes::get)
+                .collect(Collectors.toMap(n -> n, this.pattern.getNodeVars()::get));
+        final List<CypherPattern.Relationship> relationships = this.pattern.getRelationships().stream()
+                .filter(e -> newNodes.containsKey(e.getSource()) && newNodes.containsKey(e.getTarget()))
+                .collect(Collectors.toList());
+        if (relationships.isEmpty() && newNodes.size() > 1) {
+            throw new AssertionError();
+        }
+        final Set<String> edgeNames = relationships.stream()
+                .map(CypherPattern.Relationship::name).collect(Collectors.toSet());
+        final CypherPattern pat = new CypherPattern(newNodes, relationships);
+        final Map<String, Map<String, PropSelection>> nodePreds = this.nodePreds.entrySet().stream()
+                .filter(e -> newNodes.containsKey(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        final Map<String, Map<String, PropSelection>> edgePreds = this.edgePreds.entrySet().stream()
+                .filter(e -> edgeNames.contains(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return new CypherQuery(pat, nodePreds, edgePreds);
     }
 
     public Optional<String[][]> toTriples(final boolean rdfType) {
@@ -213,27 +277,14 @@ public class CypherQuery {
         return Optional.of(outTrips.toArray(String[][]::new));
     }
 
-    private void subQueriesFrom(final Map<String, Integer> nodeToPos,
-                                final int k, final BitSet vars, final Consumer<BitSet> out) {
-        if (vars.cardinality() == k) {
-            out.accept((BitSet) vars.clone());
-            return;
-        }
-        final BitSet neighborhood = new BitSet();
-        for (final CypherPattern.Relationship rel : this.getPattern().getRelationships()) {
-            final int fromID = nodeToPos.get(rel.getSource());
-            final int toID = nodeToPos.get(rel.getTarget());
-            final boolean fromIn = vars.get(fromID);
-            final boolean toIn = vars.get(toID);
-            if (fromIn ^ toIn) {
-                neighborhood.set(fromIn ? toID : fromID);
-            }
-        }
-        neighborhood.stream().forEach(v -> {
-            vars.set(v);
-            subQueriesFrom(nodeToPos, k, vars, out);
-            vars.clear(v);
-        });
+    /**
+     * Computes the form of this query that does not depend on the names of its variables, usable as cache key.
+     *
+     * @return the canonical form
+     * @see CanonicalQuery
+     */
+    public CanonicalQuery canonical() {
+        return CanonicalQuery.of(this);
     }
 
     public CypherPattern getPattern() {
@@ -1,8 +1,6 @@
 package kn.uni.dbis.alhd.queries;
 
-import java.util.Locale;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.*;
 
 public class PropSelection {
 
@@ -10,10 +8,109 @@ public class PropSelection {
     public final double[] range;
     public final String value;
 
+    /** String values of an IN-list, {@code null} unless this is a disjunctive predicate. */
+    public final String[] values;
+
+    /** Sorted disjoint numeric ranges, {@code null} unless this is a disjunctive predicate. */
+    public final double[][] ranges;
+
+    /** Hashes of all values matched by equality in a disjunctive predicate. */
+    private final int[] valueHashes;
+
+    /** The ranges of a disjunctive predicate which are not single values. */
+    private final double[][] intervals;
+
+    /**
+     * Creates an IN-list predicate, numeric values are compared numerically and all others as strings.
+     *
+     * @param prop the property
+     * @param values the allowed values
+     * @return a predicate matching any of the values
+     */
+    public static PropSelection in(final String prop, final Collection<?> values) {
+        final Set<String> strings = new TreeSet<>();
+        final List<double[]> ranges = new ArrayList<>();
+        for (final Object val : values) {
+            if (val instanceof Number) {
+                final double d = ((Number) val).doubleValue();
+                ranges.add(new double[] { d, d });
+            } else {
+                strings.add(val.toString());
+            }
+        }
+        return disjunction(prop, strings, ranges);
+    }
+
+    /**
+     * Creates a predicate matching values in any of the given (possibly overlapping) ranges.
+     *
+     * @param prop the property
+     * @param ranges the allowed ranges as pairs of lower and upper bound
+     * @return a predicate matching any of the ranges
+     */
+    public static PropSelection anyOf(final String prop, final Collection<double[]> ranges) {
+        return disjunction(prop, Collections.emptySet(), ranges);
+    }
+
+    private static PropSelection disjunction(final String prop, final Set<String> strings,
+                                             final Collection<double[]> ranges) {
+        final List<double[]> sorted = new ArrayList<>();
+        for (final double[] range : ranges) {
+            if (range[0] > range[1]) {
+                throw new IllegalArgumentException(
+                        String.format(Locale.US, "Broken range: %s = [%f, %f])", prop, range[0], range[1]));
+            }
+            sorted.add(new double[] { range[0], range[1] });
+        }
+        sorted.sort(Comparator.comparingDouble((double[] r) -> r[0]).thenComparingDouble(r -> r[1]));
+        // merge overlapping ranges so that no value is counted twice
+        final List<double[]> disjoint = new ArrayList<>();
+        for (final double[] range : sorted) {
+            final double[] last = disjoint.isEmpty() ? null : disjoint.get(disjoint.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                disjoint.add(range);
+            }
+        }
+        if (strings.size() == 1 && disjoint.isEmpty()) {
+            return new PropSelection(prop, strings.iterator().next());
+        } else if (strings.isEmpty() && disjoint.size() == 1) {
+            return new PropSelection(prop, disjoint.get(0)[0], disjoint.get(0)[1]);
+        }
+        return new PropSelection(prop, strings.toArray(String[]::new), disjoint.toArray(double[][]::new));
+    }
+
+    private PropSelection(final String prop, final String[] values, final double[][] ranges) {
+        this.property = prop;
+        this.range = null;
+        this.value = null;
+        this.values = values;
+        this.ranges = ranges;
+        final int numPoints = (int) Arrays.stream(ranges).filter(r -> r[0] == r[1]).count();
+        this.valueHashes = new int[values.length + numPoints];
+        this.intervals = new double[ranges.length - numPoints][];
+        int h = 0;
+        for (final String val : values) {
+            this.valueHashes[h++] = val.hashCode();
+        }
+        int i = 0;
+        for (final double[] r : ranges) {
+            if (r[0] == r[1]) {
+                this.valueHashes[h++] = Double.hashCode(r[0]);
+            } else {
+                this.intervals[i++] = r;
+            }
+        }
+    }
+
     public static PropSelection merge(final PropSelection a, final PropSelection b) {
         if (!Objects.equals(a.property, b.property)) {
             throw new IllegalArgumentException("Properties must match.");
         }
+        if (a.isDisjunction() || b.isDisjunction()) {
+            return intersect(a, b);
+        }
 
         if (a.range == null ^ b.range == null) {
             throw new IllegalArgumentException("Type of property must match.");
@@ -27,6 +124,32 @@ public class PropSelection {
         return new PropSelection(a.property, Math.max(a.range[0], b.range[0]), Math.min(a.range[1], b.range[1]));
     }
 
+    private static PropSelection intersect(final PropSelection a, final PropSelection b) {
+        final Set<String> strings = new TreeSet<>(a.stringValues());
+        strings.retainAll(b.stringValues());
+        final List<double[]> ranges = new ArrayList<>();
+        for (final double[] ra : a.numericRanges()) {
+            for (final double[] rb : b.numericRanges()) {
+                final double low = Math.max(ra[0], rb[0]);
+                final double high = Math.min(ra[1], rb[1]);
+                if (low <= high) {
+                    ranges.add(new double[] { low, high });
+                }
+            }
+        }
+        return disjunction(a.property, strings, ranges);
+    }
+
+    private List<String> stringValues() {
+        return this.values != null ? Arrays.asList(this.values)
+                : this.value != null ? List.of(this.value) : List.of();
+    }
+
+    private List<double[]> numericRanges() {
+        return this.ranges != null ? Arrays.asList(this.ranges)
+                : this.range != null ? List.of(this.range) : List.of();
+    }
+
     public PropSelection(String property, double low, double high) {
         if (low > high) {
             throw new IllegalArgumentException(
@@ -35,6 +158,10 @@ public class PropSelection {
         this.property = property;
         this.range = new double[] { low, high };
         this.value = null;
+        this.values = null;
+        this.ranges = null;
+        this.valueHashes = null;
+        this.intervals = null;
     }
 
     public PropSelection(final String prop, final String op, final double value) {
@@ -55,16 +182,87 @@ public class PropSelection {
         }
         this.range = range;
         this.value = null;
+        this.values = null;
+        this.ranges = null;
+        this.valueHashes = null;
+        this.intervals = null;
     }
 
     public PropSelection(final String prop, final String value) {
         this.property = prop;
         this.range = null;
         this.value = value;
+        this.values = null;
+        this.ranges = null;
+        this.valueHashes = null;
+        this.intervals = null;
+    }
+
+    /**
+     * Checks whether this predicate is a disjunction of several values or ranges.
+     *
+     * @return {@code true} if {@link #values} and {@link #ranges} are set
+     */
+    public boolean isDisjunction() {
+        return this.values != null;
+    }
+
+    /**
+     * Returns the hashes of all values a disjunctive predicate matches by equality, i.e. the string
+     * values and the numeric values given as single points.
+     * The returned array is shared and must not be modified.
+     *
+     * @return the value hashes
+     */
+    public int[] valueHashes() {
+        return this.valueHashes;
+    }
+
+    /**
+     * Returns the ranges of a disjunctive predicate which cover more than a single value.
+     * The returned array is shared and must not be modified.
+     *
+     * @return the sorted disjoint ranges
+     */
+    public double[][] intervals() {
+        return this.intervals;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PropSelection)) {
+            return false;
+        }
+        final PropSelection that = (PropSelection) o;
+        return Objects.equals(this.property, that.property) && Arrays.equals(this.range, that.range)
+                && Objects.equals(this.value, that.value) && Arrays.equals(this.values, that.values)
+                && Arrays.deepEquals(this.ranges, that.ranges);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(this.property, this.value);
+        result = 31 * result + Arrays.hashCode(this.range);
+        result = 31 * result + Arrays.hashCode(this.values);
+        result = 31 * result + Arrays.deepHashCode(this.ranges);
+        return result;
     }
 
     @Override
     public String toString() {
+        if (this.isDisjunction()) {
+            final StringJoiner sj = new StringJoiner(" | ", "PropSelection[" + property + " in ", "]");
+            for (final String val : this.values) {
+                sj.add("'" + val + "'");
+            }
+            for (final double[] r : this.ranges) {
+                sj.add(r[0] == r[1] ? String.valueOf(r[0]) : "[" + r[0] + ", " + r[1] + "]");
+            }
+            return sj.toString();
+        }
         return "PropSelection[" + property + (range == null ? "='" + this.value + "'"
                 : range[0] == range[1] ? "=" + range[0]
                 : Double.isInfinite(range[0]) ? "<" + range[1]
@@ -73,10 +271,35 @@ public class PropSelection {
     }
 
     public void toString(final StringBuilder sb, final String var) {
-        if (this.value != null) {
+        if (this.isDisjunction()) {
+            final int start = sb.append('(').length();
+            if (this.values.length > 0) {
+                final StringJoiner sj = new StringJoiner(", ", "[", "]");
+                for (final String val : this.values) {
+                    sj.add("'" + val.replace("\\", "\\\\").replace("'", "\\'") + "'");
+                }
+                sb.append(String.format(Locale.US, "%s.%s IN %s", var, property, sj));
+            }
+            for (final double[] r : this.ranges) {
+                if (sb.length() > start) {
+                    sb.append(" OR ");
+                }
+                this.appendRange(sb, var, r);
+            }
+            if (sb.length() == start) {
+                sb.append("false");
+            }
+            sb.append(')');
+        } else if (this.value != null) {
             final String str = this.value.replace("\\", "\\\\").replace("'", "\\'");
             sb.append(String.format(Locale.US, "%s.%s = '%s'", var, property, str));
-        } else if (Double.isInfinite(range[0])) {
+        } else {
+            this.appendRange(sb, var, this.range);
+        }
+    }
+
+    private void appendRange(final StringBuilder sb, final String var, final double[] range) {
+        if (Double.isInfinite(range[0])) {
             sb.append(String.format(Locale.US, "%s.%s < %f", var, property, range[1]));
         } else if (Double.isInfinite(range[1])) {
             sb.append(String.format(Locale.US, "%s.%s > %f", var, property, range[0]));
@@ -88,6 +311,9 @@ public class PropSelection {
     }
 
     public Optional<String> valueString() {
+        if (this.isDisjunction()) {
+            return Optional.empty();
+        }
         if (this.value != null) {
             final String str = this.value.replace("\\", "\\\\").replace("\"", "\\\"");
             return Optional.of("\"" + str + "\"");
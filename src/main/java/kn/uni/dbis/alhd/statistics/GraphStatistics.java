@@ -1,14 +1,13 @@
 package kn.uni.dbis.alhd.statistics;
 
-import kn.uni.dbis.alhd.util.IntPair;
 import kn.uni.dbis.alhd.util.IntTriple;
-import kn.uni.dbis.alhd.util.Pair;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class  GraphStatistics {
@@ -36,12 +35,14 @@ public class  GraphStatistics {
 	private final Map<String, Integer> nodeLabelPos;
 	private final long[] labelCounts;
 	private final Map<String, Integer> edgeTypePos;
+	private final String[] labelNameById;
+	private final String[] typeNameById;
 	private final Map<Integer, long[]> syn1;
 	private final Map<IntTriple, Long> edgeCounts;
 	private final Map<IntTriple, long[]> syn2;
 	private final Map<String, Integer> propPos;
-	private final Map<IntPair, Pair<double[], Map<Integer, Double>>> nodeProps;
-	private final Map<IntPair, Pair<double[], Map<Integer, Double>>> relProps;
+	private final PropertyStatistics nodeProps;
+	private final PropertyStatistics relProps;
 
 	public GraphStatistics(final long numNodes,
 						   final Map<String, Integer> l2id,
@@ -51,12 +52,14 @@ public class  GraphStatistics {
 						   final Map<IntTriple, Long> edgeCounts,
 						   final Map<IntTriple, long[]> syn2,
 						   final Map<String, Integer> p2id,
-						   final Map<IntPair, Pair<double[], Map<Integer, Double>>> nodeProps,
-						   final Map<IntPair, Pair<double[], Map<Integer, Double>>> relProps) {
+						   final PropertyStatistics nodeProps,
+						   final PropertyStatistics relProps) {
 		this.numNodes = numNodes;
 		this.nodeLabelPos = l2id;
 		this.labelCounts = labelCounts;
 		this.edgeTypePos = t2id;
+		this.labelNameById = reverse(l2id);
+		this.typeNameById = reverse(t2id);
 		this.syn1 = syn1;
 		this.edgeCounts = edgeCounts;
 		this.syn2 = syn2;
@@ -140,48 +143,45 @@ public class  GraphStatistics {
 			startsWith(reader.readLine(), "# Label/Property Combinations " +
 					"(label, property, count, unique, numeric, num_mf, most_frequent..., histogram...)");
 			final int lp = Integer.parseInt(reader.readLine());
-			final Map<IntPair, Pair<double[], Map<Integer, Double>>> nodeProps = new HashMap<>();
+			final PropertyStatistics.Builder nodeProps = PropertyStatistics.builder();
 			for (int i = 0; i < lp; i++) {
-				final String[] line = reader.readLine().split("\t");
-				final int label = Integer.parseInt(line[0]);
-				final int prop = Integer.parseInt(line[1]);
-				final Pair<double[], Map<Integer, Double>> res = readPropStats(line);
-				nodeProps.put(new IntPair(label, prop), res);
+				readPropStats(reader.readLine().split("\t"), nodeProps);
 			}
 
 			startsWith(reader.readLine(), "# Type/Property Combinations " +
 					"(type, property, count, unique, numeric, num_mf, most_frequent..., histogram...)");
 			final int tp = Integer.parseInt(reader.readLine());
-			final Map<IntPair, Pair<double[], Map<Integer, Double>>> relProps = new HashMap<>();
+			final PropertyStatistics.Builder relProps = PropertyStatistics.builder();
 			for (int i = 0; i < tp; i++) {
-				final String[] line = reader.readLine().split("\t");
-				final int type = Integer.parseInt(line[0]);
-				final int prop = Integer.parseInt(line[1]);
-				final Pair<double[], Map<Integer, Double>> res = readPropStats(line);
-				relProps.put(new IntPair(type, prop), res);
+				readPropStats(reader.readLine().split("\t"), relProps);
 			}
 
-			return new GraphStatistics(numNodes, l2id, labelCounts, t2id, syn1, edgeCounts, syn2, p2id, nodeProps, relProps);
+			return new GraphStatistics(numNodes, l2id, labelCounts, t2id, syn1, edgeCounts, syn2, p2id,
+					nodeProps.build(), relProps.build());
 		}
 	}
 
-	private static Pair<double[], Map<Integer, Double>> readPropStats(String[] line) {
+	private static void readPropStats(final String[] line, final PropertyStatistics.Builder builder) {
+		final int labelOrType = Integer.parseInt(line[0]);
+		final int prop = Integer.parseInt(line[1]);
 		final int count = Integer.parseInt(line[2]);
 		final int unique = Integer.parseInt(line[3]);
 		final int numeric = Integer.parseInt(line[4]);
 		final int numMF = Integer.parseInt(line[5]);
-		final Map<Integer, Double> mostFrequent = new LinkedHashMap<>();
+		final int[] hashes = new int[numMF];
+		final double[] frequencies = new double[numMF];
 		for (int j = 0; j < numMF; j++) {
-			final String[] kv = line[j + 6].split("=", 2);
-			mostFrequent.put((int) Long.parseLong(kv[0], 16), Double.parseDouble(kv[1]));
+			final String kv = line[j + 6];
+			final int mid = kv.indexOf('=');
+			hashes[j] = (int) Long.parseLong(kv.substring(0, mid), 16);
+			frequencies[j] = Double.parseDouble(kv.substring(mid + 1));
+		}
+		final int histStart = numMF + 6;
+		final double[] quantiles = new double[Math.max(0, line.length - histStart)];
+		for (int j = 0; j < quantiles.length; j++) {
+			quantiles[j] = Double.parseDouble(line[histStart + j]);
 		}
-		final double[] histo = Arrays.stream(line).skip(numMF + 6).mapToDouble(Double::parseDouble).toArray();
-		final double[] counts = new double[histo.length + 3];
-		counts[0] = count;
-		counts[1] = unique;
-		counts[2] = numeric;
-		System.arraycopy(histo, 0, counts, 3, histo.length);
-		return Pair.of(counts, mostFrequent);
+		builder.add(labelOrType, prop, count, unique, numeric, hashes, frequencies, numMF, quantiles, quantiles.length);
 	}
 
 	private static void startsWith(final String line, final String start) {
@@ -347,6 +347,24 @@ public class  GraphStatistics {
 		return v == null ? 0 : this.labelCounts[v];
 	}
 
+	/**
+	 * Returns the property statistics of all label and property combinations.
+	 *
+	 * @return node property statistics
+	 */
+	public PropertyStatistics nodeProperties() {
+		return this.nodeProps;
+	}
+
+	/**
+	 * Returns the property statistics of all type and property combinations.
+	 *
+	 * @return relationship property statistics
+	 */
+	public PropertyStatistics relProperties() {
+		return this.relProps;
+	}
+
 	public final Map<String, Integer> getPropertyIDs() {
 		return Collections.unmodifiableMap(this.propPos);
 	}
@@ -356,135 +374,125 @@ public class  GraphStatistics {
 	}
 
 	public double nodeWithProperty(int label, int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		return rec == null ? 0 : rec.getFirst()[0];
+		final int row = this.nodeProps.row(label, property);
+		return row < 0 ? 0 : this.nodeProps.count(row);
 	}
 
 	public double nodeWithPropertyUnique(int label, int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		return rec == null ? 0 : rec.getFirst()[1];
+		final int row = this.nodeProps.row(label, property);
+		return row < 0 ? 0 : this.nodeProps.unique(row);
 	}
 
 	public double nodeWithPropertyNumeric(int label, int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		return rec == null ? 0 : rec.getFirst()[2];
+		final int row = this.nodeProps.row(label, property);
+		return row < 0 ? 0 : this.nodeProps.numeric(row);
 	}
 
 	public double relWithProperty(int type, int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(type, property));
-		return rec == null ? 0 : rec.getFirst()[0];
+		final int row = this.relProps.row(type, property);
+		return row < 0 ? 0 : this.relProps.count(row);
 	}
 
 	public double relWithPropertyUnique(int type, int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(type, property));
-		return rec == null ? 0 : rec.getFirst()[1];
+		final int row = this.relProps.row(type, property);
+		return row < 0 ? 0 : this.relProps.unique(row);
 	}
 
 	public double relWithPropertyNumeric(int type, int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(type, property));
-		return rec == null ? 0 : rec.getFirst()[2];
+		final int row = this.relProps.row(type, property);
+		return row < 0 ? 0 : this.relProps.numeric(row);
 	}
 
 	public OptionalDouble nodePropertyRange(final int label, final int property, final double min, final double max) {
-		if (min > max) {
-			throw new IllegalArgumentException(String.format(Locale.US, "Broken range: [%s, %s]", min, max));
-		}
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		if (rec == null || rec.getFirst()[2] == 0) {
-			return OptionalDouble.empty();
-		}
-		return OptionalDouble.of(range(rec.getFirst(), min, max));
+		return propertyRange(this.nodeProps, label, property, min, max);
 	}
 
 	public OptionalDouble nodePropIfFrequent(final int label, final int property, final int hash) {
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		if (rec == null) {
-			return OptionalDouble.empty();
-		}
-		final Double part = rec.getSecond().get(hash);
-		return part == null ? OptionalDouble.empty() : OptionalDouble.of(part);
+		return propIfFrequent(this.nodeProps, label, property, hash);
+	}
+
+	/**
+	 * Returns the relative frequency of a property value at nodes with the given label
+	 * without allocating, like {@link #nodePropIfFrequent(int, int, int)}.
+	 *
+	 * @param label the label
+	 * @param property the property
+	 * @param hash hash of the value
+	 * @return the relative frequency, or {@link Double#NaN} if the value is not frequent
+	 */
+	public double nodePropFrequency(final int label, final int property, final int hash) {
+		final int row = this.nodeProps.row(label, property);
+		return row < 0 ? Double.NaN : this.nodeProps.frequency(row, hash);
 	}
 
 	public int numNodePropFrequent(final int label, final int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		return rec == null ? 0 : rec.getSecond().size();
+		final int row = this.nodeProps.row(label, property);
+		return row < 0 ? 0 : this.nodeProps.numFrequent(row);
 	}
 
 	public double nodePropNonFrequent(final int label, final int property, final int hash) {
-		final Pair<double[], Map<Integer, Double>> rec = this.nodeProps.get(new IntPair(label, property));
-		if (rec == null) {
-			return 1.0;
-		}
-		return Math.max(0, Math.min(1 - rec.getSecond().values().stream().mapToDouble(Double::doubleValue).sum(), 1));
+		return propNonFrequent(this.nodeProps, label, property);
 	}
 
 	public OptionalDouble relPropIfFrequent(final int label, final int property, final int hash) {
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(label, property));
-		if (rec == null) {
-			return OptionalDouble.empty();
-		}
-		final Double part = rec.getSecond().get(hash);
-		return part == null ? OptionalDouble.empty() : OptionalDouble.of(part);
+		return propIfFrequent(this.relProps, label, property, hash);
+	}
+
+	/**
+	 * Returns the relative frequency of a property value at relationships with the given type
+	 * without allocating, like {@link #relPropIfFrequent(int, int, int)}.
+	 *
+	 * @param type the type
+	 * @param property the property
+	 * @param hash hash of the value
+	 * @return the relative frequency, or {@link Double#NaN} if the value is not frequent
+	 */
+	public double relPropFrequency(final int type, final int property, final int hash) {
+		final int row = this.relProps.row(type, property);
+		return row < 0 ? Double.NaN : this.relProps.frequency(row, hash);
 	}
 
 	public int numRelPropFrequent(final int label, final int property) {
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(label, property));
-		return rec == null ? 0 : rec.getSecond().size();
+		final int row = this.relProps.row(label, property);
+		return row < 0 ? 0 : this.relProps.numFrequent(row);
 	}
 
 	public double relPropNonFrequent(final int label, final int property, final int hash) {
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(label, property));
-		if (rec == null) {
+		return propNonFrequent(this.relProps, label, property);
+	}
+
+	public OptionalDouble relPropertyRange(final int type, final int property, final double min, final double max) {
+		return propertyRange(this.relProps, type, property, min, max);
+	}
+
+	private static OptionalDouble propIfFrequent(final PropertyStatistics props, final int labelOrType,
+												 final int property, final int hash) {
+		final int row = props.row(labelOrType, property);
+		if (row < 0) {
+			return OptionalDouble.empty();
+		}
+		final double part = props.frequency(row, hash);
+		return Double.isNaN(part) ? OptionalDouble.empty() : OptionalDouble.of(part);
+	}
+
+	private static double propNonFrequent(final PropertyStatistics props, final int labelOrType, final int property) {
+		final int row = props.row(labelOrType, property);
+		if (row < 0) {
 			return 1.0;
 		}
-		return Math.max(0, Math.min(1 - rec.getSecond().values().stream().mapToDouble(Double::doubleValue).sum(), 1));
+		return props.nonFrequentMass(row);
 	}
 
-	public OptionalDouble relPropertyRange(final int type, final int property, final double min, final double max) {
+	private static OptionalDouble propertyRange(final PropertyStatistics props, final int labelOrType,
+												final int property, final double min, final double max) {
 		if (min > max) {
 			throw new IllegalArgumentException(String.format(Locale.US, "Broken range: [%s, %s]", min, max));
 		}
-		final Pair<double[], Map<Integer, Double>> rec = this.relProps.get(new IntPair(type, property));
-		if (rec == null || rec.getFirst()[2] == 0) {
+		final int row = props.row(labelOrType, property);
+		if (row < 0 || props.numeric(row) == 0) {
 			return OptionalDouble.empty();
 		}
-		return OptionalDouble.of(range(rec.getFirst(), min, max));
-	}
-
-	private static double range(final double[] quantiles, final double vmin, final double vmax) {
-		final int start = 3;
-		final double min = Math.max(vmin, quantiles[start]);
-		final double max = Math.min(vmax, quantiles[quantiles.length - 1]);
-		final int buckets = quantiles.length - start - 1;
-		int l = start;
-		int r = quantiles.length - 1;
-		while (l + 1 < quantiles.length && quantiles[l + 1] < min) {
-			l++;
-		}
-		if (l + 1 < quantiles.length && quantiles[l + 1] == min) {
-			l++;
-		}
-		while (r - 1 >= start && quantiles[r - 1] > max) {
-			r--;
-		}
-		if (r - 1 >= start && quantiles[r - 1] == max) {
-			r--;
-		}
-		if (r <= l) {
-			return 0.0;
-		}
-		if (l + 1 == r) {
-			final double bucketRange = quantiles[r] - quantiles[l];
-			final double fracOfBucket = (max - min) / bucketRange;
-			return fracOfBucket / buckets;
-		}
-		final int involved = r - l;
-		final double firstFrac = min < quantiles[l] || quantiles[l + 1] == quantiles[l] ? 1 :
-				(quantiles[l + 1] - min) / (quantiles[l + 1] - quantiles[l]);
-		final double lastFrac = max > quantiles[r] || quantiles[r] == quantiles[r - 1] ? 1 :
-				(max - quantiles[r - 1]) / (quantiles[r] - quantiles[r - 1]);
-
-		return (firstFrac + involved - 2.0 + lastFrac) / buckets;
+		return OptionalDouble.of(props.rangeFraction(row, min, max));
 	}
 
 	public int numLabels() {
@@ -496,13 +504,21 @@ public class  GraphStatistics {
 	}
 
 	public Optional<String> getLabelName(final int label) {
-		return this.nodeLabelPos.entrySet().stream().filter(e -> e.getValue().equals(label))
-				.map(Map.Entry::getKey).findFirst();
+		return label >= 0 && label < this.labelNameById.length
+				? Optional.ofNullable(this.labelNameById[label]) : Optional.empty();
 	}
 
 	public Optional<String> getTypeName(final int type) {
-		return this.edgeTypePos.entrySet().stream().filter(e -> e.getValue().equals(type))
-				.map(Map.Entry::getKey).findFirst();
+		return type >= 0 && type < this.typeNameById.length
+				? Optional.ofNullable(this.typeNameById[type]) : Optional.empty();
+	}
+
+	private static String[] reverse(final Map<String, Integer> ids) {
+		final String[] names = new String[ids.values().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1];
+		for (final Map.Entry<String, Integer> e : ids.entrySet()) {
+			names[e.getValue()] = e.getKey();
+		}
+		return names;
 	}
 
 	public Map<String, Integer> sizeStats() {
@@ -518,10 +534,10 @@ public class  GraphStatistics {
 		counts.put("reltype_strings", Math.toIntExact(edgeTypePos.keySet().stream().mapToInt(String::length).sum()));
 		counts.put("num_props", propPos.size());
 		counts.put("prop_strings", Math.toIntExact(propPos.keySet().stream().mapToInt(String::length).sum()));
-		counts.put("prop_entries_num", Math.toIntExact(Stream.of(this.nodeProps, this.relProps)
-				.flatMap(m -> m.values().stream()).filter(p -> p.getFirst()[2] != 0).count()));
-		counts.put("prop_entries_str", Math.toIntExact(Stream.of(this.nodeProps, this.relProps)
-				.flatMap(m -> m.values().stream()).filter(p -> p.getFirst()[2] == 0).count()));
+		final int numericEntries = Stream.of(this.nodeProps, this.relProps)
+				.mapToInt(p -> (int) IntStream.range(0, p.numRows()).filter(row -> p.numeric(row) != 0).count()).sum();
+		counts.put("prop_entries_num", numericEntries);
+		counts.put("prop_entries_str", this.nodeProps.numRows() + this.relProps.numRows() - numericEntries);
 		return counts;
 	}
 }
@@ -0,0 +1,556 @@
+package kn.uni.dbis.alhd.statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Columnar store of property statistics, one row per label (or type) and property combination.
+ *
+ * Every row consists of the number of entities having the property, the number of unique values, the number of
+ * numeric values, a slice of the histogram arena containing the quantiles of the numeric values and a slice of the
+ * heavy-hitter arrays containing the value hashes and relative frequencies of the most frequent values, in the order
+ * in which they were added. Rows are found through an open-addressing hash table on the (label, property) pair, the
+ * frequencies of heavy hitters through a second one on the (row, value hash) pair, so that equality probes do not
+ * allocate.
+ */
+public final class PropertyStatistics {
+
+	/** Marker for an empty slot in the index. */
+	private static final int EMPTY = -1;
+
+	/** Version of the binary format written by {@link #write(DataOutput)}. */
+	private static final int FORMAT_VERSION = 1;
+
+	/** Keys of the open-addressing index, {@link #key(int, int)} of the label and property. */
+	private final long[] slotKeys;
+	/** Row numbers of the open-addressing index, {@link #EMPTY} for unused slots. */
+	private final int[] slotRows;
+
+	/** Label (or type) of each row. */
+	private final int[] labels;
+	/** Property of each row. */
+	private final int[] properties;
+	/** Number of entities having the property. */
+	private final int[] counts;
+	/** Number of unique values of the property. */
+	private final int[] uniques;
+	/** Number of numeric values of the property. */
+	private final int[] numerics;
+
+	/** Start of each row's quantiles in the histogram arena, with an additional end offset. */
+	private final int[] histOffsets;
+	/** Quantiles of all rows. */
+	private final double[] histograms;
+
+	/** Start of each row's heavy hitters, with an additional end offset. */
+	private final int[] hhOffsets;
+	/** Value hashes of the heavy hitters, distinct within each row, which are looked up through the index. */
+	private final int[] hhHashes;
+	/** Relative frequencies of the heavy hitters. */
+	private final double[] hhFrequencies;
+	/** Fraction of each row's values that are not heavy hitters, clamped to {@code [0, 1]}. */
+	private final double[] nonFrequentMass;
+
+	/**
+	 * Keys of the heavy-hitter index, {@link #frequencyKey(int, int)} of the row and value hash,
+	 * {@code 0} for unused slots.
+	 */
+	private final long[] frequencyKeys;
+	/** Relative frequencies of the heavy-hitter index. */
+	private final double[] frequencyValues;
+
+	private PropertyStatistics(final Builder builder) {
+		final int n = builder.rows;
+		this.labels = Arrays.copyOf(builder.labels, n);
+		this.properties = Arrays.copyOf(builder.properties, n);
+		this.counts = Arrays.copyOf(builder.counts, n);
+		this.uniques = Arrays.copyOf(builder.uniques, n);
+		this.numerics = Arrays.copyOf(builder.numerics, n);
+		this.histOffsets = Arrays.copyOf(builder.histOffsets, n + 1);
+		this.histograms = Arrays.copyOf(builder.histograms, builder.histOffsets[n]);
+		this.hhOffsets = Arrays.copyOf(builder.hhOffsets, n + 1);
+		this.hhHashes = Arrays.copyOf(builder.hhHashes, builder.hhOffsets[n]);
+		this.hhFrequencies = Arrays.copyOf(builder.hhFrequencies, builder.hhOffsets[n]);
+		this.nonFrequentMass = this.computeNonFrequentMass();
+
+		this.slotKeys = new long[capacity(n)];
+		this.slotRows = new int[this.slotKeys.length];
+		Arrays.fill(this.slotRows, EMPTY);
+		final int mask = this.slotKeys.length - 1;
+		for (int row = 0; row < n; row++) {
+			final long key = key(this.labels[row], this.properties[row]);
+			int slot = slot(key, mask);
+			while (this.slotRows[slot] != EMPTY && this.slotKeys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			// later rows for the same combination replace earlier ones
+			this.slotKeys[slot] = key;
+			this.slotRows[slot] = row;
+		}
+
+		this.frequencyKeys = new long[capacity(this.hhHashes.length)];
+		this.frequencyValues = new double[this.frequencyKeys.length];
+		final int freqMask = this.frequencyKeys.length - 1;
+		for (int row = 0; row < n; row++) {
+			for (int i = this.hhOffsets[row]; i < this.hhOffsets[row + 1]; i++) {
+				final long key = frequencyKey(row, this.hhHashes[i]);
+				int slot = slot(key, freqMask);
+				while (this.frequencyKeys[slot] != 0) {
+					slot = (slot + 1) & freqMask;
+				}
+				this.frequencyKeys[slot] = key;
+				this.frequencyValues[slot] = this.hhFrequencies[i];
+			}
+		}
+	}
+
+	private PropertyStatistics(final DataInput in) throws IOException {
+		final int version = in.readInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported property statistics format: " + version);
+		}
+		this.labels = readInts(in);
+		this.properties = readInts(in);
+		this.counts = readInts(in);
+		this.uniques = readInts(in);
+		this.numerics = readInts(in);
+		this.histOffsets = readInts(in);
+		this.histograms = readDoubles(in);
+		this.hhOffsets = readInts(in);
+		this.hhHashes = readInts(in);
+		this.hhFrequencies = readDoubles(in);
+		this.slotKeys = readLongs(in);
+		this.slotRows = readInts(in);
+		this.frequencyKeys = readLongs(in);
+		this.frequencyValues = readDoubles(in);
+		final int n = this.labels.length;
+		if (this.histOffsets.length != n + 1 || this.hhOffsets.length != n + 1
+				|| this.slotRows.length != this.slotKeys.length || Integer.bitCount(this.slotKeys.length) != 1
+				|| this.frequencyValues.length != this.frequencyKeys.length
+				|| Integer.bitCount(this.frequencyKeys.length) != 1) {
+			throw new IOException("Corrupt property statistics.");
+		}
+		if (!validOffsets(this.histOffsets, this.histograms.length)
+				|| this.hhHashes.length != this.hhFrequencies.length
+				|| !validOffsets(this.hhOffsets, this.hhHashes.length)) {
+			throw new IOException("Corrupt property statistics: row offsets out of bounds.");
+		}
+		for (final int row : this.slotRows) {
+			if (row < EMPTY || row >= n) {
+				throw new IOException("Corrupt property statistics: index refers to row " + row + ".");
+			}
+		}
+		this.nonFrequentMass = this.computeNonFrequentMass();
+	}
+
+	/** Checks that the offsets start at {@code 0}, never decrease and end at the given length. */
+	private static boolean validOffsets(final int[] offsets, final int length) {
+		if (offsets[0] != 0 || offsets[offsets.length - 1] != length) {
+			return false;
+		}
+		for (int i = 1; i < offsets.length; i++) {
+			if (offsets[i] < offsets[i - 1]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double[] computeNonFrequentMass() {
+		final double[] mass = new double[this.labels.length];
+		for (int row = 0; row < mass.length; row++) {
+			final double sum = Arrays.stream(this.hhFrequencies, this.hhOffsets[row], this.hhOffsets[row + 1]).sum();
+			mass[row] = Math.max(0, Math.min(1 - sum, 1));
+		}
+		return mass;
+	}
+
+	/**
+	 * Writes this store including its indexes in a binary format, which can be read using
+	 * {@link #read(DataInput)} without rebuilding the indexes.
+	 *
+	 * @param out the output to write to
+	 * @throws IOException if writing fails
+	 */
+	public void write(final DataOutput out) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		writeInts(out, this.labels);
+		writeInts(out, this.properties);
+		writeInts(out, this.counts);
+		writeInts(out, this.uniques);
+		writeInts(out, this.numerics);
+		writeInts(out, this.histOffsets);
+		writeDoubles(out, this.histograms);
+		writeInts(out, this.hhOffsets);
+		writeInts(out, this.hhHashes);
+		writeDoubles(out, this.hhFrequencies);
+		writeLongs(out, this.slotKeys);
+		writeInts(out, this.slotRows);
+		writeLongs(out, this.frequencyKeys);
+		writeDoubles(out, this.frequencyValues);
+	}
+
+	/**
+	 * Reads a store written by {@link #write(DataOutput)}.
+	 *
+	 * @param in the input to read from
+	 * @return the property statistics
+	 * @throws IOException if reading fails or the data is corrupt
+	 */
+	public static PropertyStatistics read(final DataInput in) throws IOException {
+		return new PropertyStatistics(in);
+	}
+
+	private static void writeInts(final DataOutput out, final int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (final int v : values) {
+			out.writeInt(v);
+		}
+	}
+
+	private static void writeLongs(final DataOutput out, final long[] values) throws IOException {
+		out.writeInt(values.length);
+		for (final long v : values) {
+			out.writeLong(v);
+		}
+	}
+
+	private static void writeDoubles(final DataOutput out, final double[] values) throws IOException {
+		out.writeInt(values.length);
+		for (final double v : values) {
+			out.writeDouble(v);
+		}
+	}
+
+	private static int[] readInts(final DataInput in) throws IOException {
+		final int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static long[] readLongs(final DataInput in) throws IOException {
+		final long[] values = new long[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+	private static double[] readDoubles(final DataInput in) throws IOException {
+		final double[] values = new double[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	/**
+	 * Creates a builder for a new property statistics store.
+	 *
+	 * @return the builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private static long key(final int label, final int property) {
+		return (long) label << 32 | property & 0xFFFFFFFFL;
+	}
+
+	/** Key of a value hash in the heavy-hitter index, never {@code 0} as the row is stored incremented. */
+	private static long frequencyKey(final int row, final int hash) {
+		return (row + 1L) << 32 | hash & 0xFFFFFFFFL;
+	}
+
+	/** Smallest power of two providing at least two slots per entry. */
+	private static int capacity(final int entries) {
+		int capacity = 2;
+		while (capacity < 2 * entries) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static int slot(final long key, final int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 29;
+		return (int) h & mask;
+	}
+
+	/**
+	 * Finds the row of the given label (or type) and property combination.
+	 *
+	 * @param label the label or type
+	 * @param property the property
+	 * @return the row, or {@code -1} if there are no statistics for the combination
+	 */
+	public int row(final int label, final int property) {
+		final long key = key(label, property);
+		final int mask = this.slotKeys.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			final int row = this.slotRows[slot];
+			if (row == EMPTY || this.slotKeys[slot] == key) {
+				return row;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of rows in this store.
+	 *
+	 * @return number of rows
+	 */
+	public int numRows() {
+		return this.labels.length;
+	}
+
+	public int label(final int row) {
+		return this.labels[row];
+	}
+
+	public int property(final int row) {
+		return this.properties[row];
+	}
+
+	public double count(final int row) {
+		return this.counts[row];
+	}
+
+	public double unique(final int row) {
+		return this.uniques[row];
+	}
+
+	public double numeric(final int row) {
+		return this.numerics[row];
+	}
+
+	/**
+	 * Estimates the fraction of a row's numeric values within the given range using its histogram.
+	 * The quantiles of the histogram are located through binary search. A single quantile is taken to be the
+	 * value of all numeric values.
+	 *
+	 * @param row the row
+	 * @param vmin lower bound of the range
+	 * @param vmax upper bound of the range
+	 * @return estimated fraction of the numeric values in {@code [vmin, vmax]}
+	 * @throws IllegalStateException if the row has no quantiles
+	 */
+	public double rangeFraction(final int row, final double vmin, final double vmax) {
+		if (vmin > vmax) {
+			throw new IllegalArgumentException(String.format(Locale.US, "Broken range: [%s, %s]", vmin, vmax));
+		}
+		final double[] quantiles = this.histograms;
+		final int start = this.histOffsets[row];
+		final int end = this.histOffsets[row + 1];
+		if (end - start < 2) {
+			if (end == start) {
+				throw new IllegalStateException("No quantiles for the numeric values of row " + row + ".");
+			}
+			// a single quantile means that all numeric values are equal
+			return vmin <= quantiles[start] && quantiles[start] <= vmax ? 1.0 : 0.0;
+		}
+		final double min = Math.max(vmin, quantiles[start]);
+		final double max = Math.min(vmax, quantiles[end - 1]);
+		final int buckets = end - start - 1;
+		// last quantile below `min`, moved to the first one equal to it if there is one
+		int l = Math.max(start, lowerBound(quantiles, start + 1, end, min) - 1);
+		if (l + 1 < end && quantiles[l + 1] == min) {
+			l++;
+		}
+		// first quantile above `max`, moved to the last one equal to it if there is one
+		int r = upperBound(quantiles, start, end - 1, max);
+		if (r - 1 >= start && quantiles[r - 1] == max) {
+			r--;
+		}
+		if (r <= l) {
+			return 0.0;
+		}
+		if (l + 1 == r) {
+			final double bucketRange = quantiles[r] - quantiles[l];
+			final double fracOfBucket = (max - min) / bucketRange;
+			return fracOfBucket / buckets;
+		}
+		final int involved = r - l;
+		final double firstFrac = min < quantiles[l] || quantiles[l + 1] == quantiles[l] ? 1 :
+				(quantiles[l + 1] - min) / (quantiles[l + 1] - quantiles[l]);
+		final double lastFrac = max > quantiles[r] || quantiles[r] == quantiles[r - 1] ? 1 :
+				(max - quantiles[r - 1]) / (quantiles[r] - quantiles[r - 1]);
+
+		return (firstFrac + involved - 2.0 + lastFrac) / buckets;
+	}
+
+	/**
+	 * Finds the first position in the sorted slice {@code [from, to)} whose value is not below {@code key}.
+	 */
+	private static int lowerBound(final double[] values, final int from, final int to, final double key) {
+		int lo = from;
+		int hi = to;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (values[mid] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Finds the first position in the sorted slice {@code [from, to)} whose value is above {@code key}.
+	 */
+	private static int upperBound(final double[] values, final int from, final int to, final double key) {
+		int lo = from;
+		int hi = to;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (values[mid] > key) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Returns the number of heavy hitters stored for a row.
+	 *
+	 * @param row the row
+	 * @return number of heavy hitters
+	 */
+	public int numFrequent(final int row) {
+		return this.hhOffsets[row + 1] - this.hhOffsets[row];
+	}
+
+	/**
+	 * Returns the relative frequency of a value if it is one of the row's heavy hitters.
+	 *
+	 * @param row the row
+	 * @param hash hash of the value
+	 * @return the relative frequency, or {@link Double#NaN} if the value is not frequent
+	 */
+	public double frequency(final int row, final int hash) {
+		final long key = frequencyKey(row, hash);
+		final int mask = this.frequencyKeys.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			final long k = this.frequencyKeys[slot];
+			if (k == key) {
+				return this.frequencyValues[slot];
+			} else if (k == 0) {
+				return Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Returns the fraction of a row's values which are not heavy hitters, precomputed when the store is built.
+	 *
+	 * @param row the row
+	 * @return the non-frequent fraction
+	 */
+	public double nonFrequentMass(final int row) {
+		return this.nonFrequentMass[row];
+	}
+
+	/**
+	 * Builder collecting the rows of a property statistics store.
+	 */
+	public static final class Builder {
+		private int rows;
+		private int[] labels = new int[16];
+		private int[] properties = new int[16];
+		private int[] counts = new int[16];
+		private int[] uniques = new int[16];
+		private int[] numerics = new int[16];
+		private int[] histOffsets = new int[17];
+		private double[] histograms = new double[64];
+		private int[] hhOffsets = new int[17];
+		private int[] hhHashes = new int[64];
+		private double[] hhFrequencies = new double[64];
+
+		private Builder() {
+		}
+
+		/**
+		 * Adds a row to the store.
+		 *
+		 * @param label the label or type
+		 * @param property the property
+		 * @param count number of entities having the property
+		 * @param unique number of unique values
+		 * @param numeric number of numeric values
+		 * @param hashes hashes of the heavy hitters, later duplicates replace earlier ones
+		 * @param frequencies relative frequencies of the heavy hitters
+		 * @param numFrequent number of heavy hitters
+		 * @param quantiles the quantiles of the numeric values
+		 * @param numQuantiles number of quantiles
+		 * @return this builder for convenience
+		 */
+		public Builder add(final int label, final int property, final int count, final int unique, final int numeric,
+						   final int[] hashes, final double[] frequencies, final int numFrequent,
+						   final double[] quantiles, final int numQuantiles) {
+			if (this.rows == this.labels.length) {
+				final int newSize = 2 * this.rows;
+				this.labels = Arrays.copyOf(this.labels, newSize);
+				this.properties = Arrays.copyOf(this.properties, newSize);
+				this.counts = Arrays.copyOf(this.counts, newSize);
+				this.uniques = Arrays.copyOf(this.uniques, newSize);
+				this.numerics = Arrays.copyOf(this.numerics, newSize);
+				this.histOffsets = Arrays.copyOf(this.histOffsets, newSize + 1);
+				this.hhOffsets = Arrays.copyOf(this.hhOffsets, newSize + 1);
+			}
+			final int row = this.rows++;
+			this.labels[row] = label;
+			this.properties[row] = property;
+			this.counts[row] = count;
+			this.uniques[row] = unique;
+			this.numerics[row] = numeric;
+
+			final int histStart = this.histOffsets[row];
+			if (histStart + numQuantiles > this.histograms.length) {
+				this.histograms = Arrays.copyOf(this.histograms, Math.max(2 * this.histograms.length, histStart + numQuantiles));
+			}
+			System.arraycopy(quantiles, 0, this.histograms, histStart, numQuantiles);
+			this.histOffsets[row + 1] = histStart + numQuantiles;
+
+			final int hhStart = this.hhOffsets[row];
+			if (hhStart + numFrequent > this.hhHashes.length) {
+				final int newSize = Math.max(2 * this.hhHashes.length, hhStart + numFrequent);
+				this.hhHashes = Arrays.copyOf(this.hhHashes, newSize);
+				this.hhFrequencies = Arrays.copyOf(this.hhFrequencies, newSize);
+			}
+			// a duplicate hash replaces the frequency stored before
+			final Map<Integer, Integer> positions = new HashMap<>();
+			int end = hhStart;
+			for (int i = 0; i < numFrequent; i++) {
+				final Integer pos = positions.putIfAbsent(hashes[i], end);
+				if (pos != null) {
+					this.hhFrequencies[pos] = frequencies[i];
+				} else {
+					this.hhHashes[end] = hashes[i];
+					this.hhFrequencies[end] = frequencies[i];
+					end++;
+				}
+			}
+			this.hhOffsets[row + 1] = end;
+			return this;
+		}
+
+		/**
+		 * Creates the store from the rows added so far.
+		 *
+		 * @return the property statistics
+		 */
+		public PropertyStatistics build() {
+			return new PropertyStatistics(this);
+		}
+	}
+}
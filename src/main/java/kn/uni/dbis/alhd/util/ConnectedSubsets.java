@@ -0,0 +1,151 @@
+package kn.uni.dbis.alhd.util;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Enumeration of the connected induced vertex subsets of an undirected graph in the style of ESU
+ * (Wernicke, "Efficient Detection of Network Motifs", 2006), which produces every subset exactly once.
+ *
+ * Each subset is generated from its smallest vertex, the root, by repeatedly adding a vertex from an extension set
+ * that only contains vertices greater than the root which are adjacent to the newest vertex but not to any earlier
+ * one. The subsets are produced lazily, one search step at a time. Splitting hands the search in progress together
+ * with the first half of the remaining roots to the new spliterator, so that parallel streams keep the sequential
+ * encounter order.
+ */
+public final class ConnectedSubsets implements Spliterator<BitSet> {
+	/** Neighbors of each vertex. */
+	private final int[][] adjacency;
+	/** Bounds of the sizes of the produced subsets. */
+	private final int minSize, maxSize;
+	/** Range of roots not started yet. */
+	private int nextRoot, endRoot;
+	/** Search state of the current root. */
+	private Deque<Frame> stack;
+
+	private ConnectedSubsets(final int[][] adjacency, final int minSize, final int maxSize, final int fromRoot,
+			final int toRoot, final Deque<Frame> stack) {
+		this.adjacency = adjacency;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.nextRoot = fromRoot;
+		this.endRoot = toRoot;
+		this.stack = stack;
+	}
+
+	/**
+	 * Streams the connected subsets of the given sizes.
+	 *
+	 * @param adjacency neighbors of each vertex, which must be symmetric, self loops are ignored
+	 * @param minSize minimum size of the subsets, at least {@code 1}
+	 * @param maxSize maximum size of the subsets
+	 * @param parallel whether the stream is parallel
+	 * @return stream of the subsets, each of which is a fresh bit set of vertices
+	 */
+	public static Stream<BitSet> stream(final int[][] adjacency, final int minSize, final int maxSize,
+			final boolean parallel) {
+		if (minSize < 1) {
+			throw new IllegalArgumentException("Subsets must not be empty.");
+		}
+		return StreamSupport.stream(new ConnectedSubsets(adjacency, minSize, maxSize, 0, adjacency.length,
+				new ArrayDeque<>()), parallel);
+	}
+
+	@Override
+	public boolean tryAdvance(final Consumer<? super BitSet> action) {
+		for (;;) {
+			final Frame top = this.stack.peek();
+			if (top == null) {
+				if (this.nextRoot >= this.endRoot) {
+					return false;
+				}
+				final int root = this.nextRoot++;
+				final BitSet sub = new BitSet();
+				sub.set(root);
+				final BitSet extension = new BitSet();
+				final BitSet neighborhood = new BitSet();
+				neighborhood.set(root);
+				for (final int u : this.adjacency[root]) {
+					neighborhood.set(u);
+					if (u > root) {
+						extension.set(u);
+					}
+				}
+				final Frame frame = new Frame(root, sub, extension, neighborhood);
+				this.stack.push(frame);
+				if (this.minSize <= 1) {
+					action.accept((BitSet) sub.clone());
+					return true;
+				}
+			} else if (top.extension.isEmpty() || top.size >= this.maxSize) {
+				this.stack.pop();
+			} else {
+				final int w = top.extension.nextSetBit(0);
+				top.extension.clear(w);
+				final BitSet sub = (BitSet) top.sub.clone();
+				sub.set(w);
+				final BitSet extension = (BitSet) top.extension.clone();
+				final BitSet neighborhood = (BitSet) top.neighborhood.clone();
+				for (final int u : this.adjacency[w]) {
+					// exclusive neighbors of the new vertex
+					if (u > top.root && !top.neighborhood.get(u)) {
+						extension.set(u);
+					}
+					neighborhood.set(u);
+				}
+				final Frame frame = new Frame(top.root, sub, extension, neighborhood);
+				this.stack.push(frame);
+				if (frame.size >= this.minSize) {
+					action.accept((BitSet) sub.clone());
+					return true;
+				}
+			}
+		}
+	}
+
+	@Override
+	public Spliterator<BitSet> trySplit() {
+		final int remaining = this.endRoot - this.nextRoot;
+		if (remaining < (this.stack.isEmpty() ? 2 : 1)) {
+			return null;
+		}
+		// the prefix takes the search in progress and the first half of the roots
+		final int mid = this.nextRoot + remaining / 2;
+		final ConnectedSubsets prefix = new ConnectedSubsets(this.adjacency, this.minSize, this.maxSize,
+				this.nextRoot, mid, this.stack);
+		this.stack = new ArrayDeque<>();
+		this.nextRoot = mid;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL;
+	}
+
+	/**
+	 * Node of the search tree: a connected subset, its remaining extension and the subset with its neighbors.
+	 */
+	private static final class Frame {
+		private final int root;
+		private final BitSet sub;
+		private final BitSet extension;
+		private final BitSet neighborhood;
+		private final int size;
+
+		Frame(final int root, final BitSet sub, final BitSet extension, final BitSet neighborhood) {
+			this.root = root;
+			this.sub = sub;
+			this.extension = extension;
+			this.neighborhood = neighborhood;
+			this.size = sub.cardinality();
+		}
+	}
+}
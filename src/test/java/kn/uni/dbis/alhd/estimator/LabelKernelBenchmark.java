@@ -0,0 +1,102 @@
+package kn.uni.dbis.alhd.estimator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Micro benchmark comparing the scalar label kernels with the ones used by default.
+ *
+ * The benchmark is compiled with the test sources and not part of the library, run it with
+ * {@code java -cp target/classes:target/test-classes kn.uni.dbis.alhd.estimator.LabelKernelBenchmark}. Build with
+ * the profile {@code vector} and run with {@code --add-modules jdk.incubator.vector} to compare against the vector
+ * implementation. For each kernel and number of labels, the time per call of both implementations is printed and
+ * the results are checked to be bit-identical.
+ */
+public final class LabelKernelBenchmark {
+
+    /** Numbers of labels to benchmark. */
+    private static final int[] SIZES = {64, 256, 1024, 4096};
+
+    /** Number of vectors per size, to avoid measuring a single cached vector. */
+    private static final int VECTORS = 64;
+
+    private LabelKernelBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optional number of iterations per kernel and size
+     */
+    public static void main(final String[] args) {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        final LabelKernels scalar = LabelKernels.scalar();
+        final LabelKernels kernels = LabelKernels.get();
+        System.out.println("kernels: " + kernels.name());
+        System.out.println("kernel   labels   scalar ns/op   " + kernels.name() + " ns/op   speedup   exact");
+        final Random rnd = new Random(42);
+        for (final int n : SIZES) {
+            final double[][] left = new double[VECTORS][];
+            final double[][] right = new double[VECTORS][];
+            final boolean[][] selected = new boolean[VECTORS][n];
+            for (int v = 0; v < VECTORS; v++) {
+                left[v] = fractions(rnd, n);
+                right[v] = fractions(rnd, n);
+                for (int l = 0; l < n; l++) {
+                    selected[v][l] = rnd.nextBoolean();
+                }
+            }
+            final double factor = 1e-3;
+            final double selectivity = 0.25;
+
+            run("union", n, iterations, scalar, kernels, (k, v, out) -> k.union(left[v], right[v], out, n));
+            run("merge", n, iterations, scalar, kernels, (k, v, out) -> k.merge(left[v], right[v], factor, out, n));
+            run("rescale", n, iterations, scalar, kernels, (k, v, out) -> {
+                System.arraycopy(left[v], 0, out, 0, n);
+                k.rescale(out, 0, n, selected[v], selectivity);
+            });
+        }
+    }
+
+    /** Random label fractions with roughly a quarter of the labels absent. */
+    private static double[] fractions(final Random rnd, final int n) {
+        final double[] f = new double[n];
+        for (int l = 0; l < n; l++) {
+            f[l] = rnd.nextInt(4) == 0 ? 0.0d : rnd.nextDouble();
+        }
+        return f;
+    }
+
+    /** A kernel call on the given vector index writing to {@code out}. */
+    private interface Call {
+        void run(LabelKernels kernels, int vector, double[] out);
+    }
+
+    private static void run(final String name, final int n, final int iterations, final LabelKernels scalar,
+                            final LabelKernels kernels, final Call call) {
+        final double[] expected = new double[n];
+        final double[] actual = new double[n];
+        boolean exact = true;
+        for (int v = 0; v < VECTORS; v++) {
+            call.run(scalar, v, expected);
+            call.run(kernels, v, actual);
+            exact &= Arrays.equals(expected, actual);
+        }
+        // warm up both implementations before measuring
+        time(scalar, call, iterations, expected);
+        time(kernels, call, iterations, actual);
+        final double scalarNs = time(scalar, call, iterations, expected);
+        final double kernelNs = time(kernels, call, iterations, actual);
+        System.out.printf("%-8s %6d   %12.1f   %12.1f   %7.2f   %s%n",
+                name, n, scalarNs, kernelNs, scalarNs / kernelNs, exact);
+    }
+
+    private static double time(final LabelKernels kernels, final Call call, final int iterations,
+                               final double[] out) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.run(kernels, i % VECTORS, out);
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+}
@@ -0,0 +1,107 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.queries.CypherQuery;
+import kn.uni.dbis.alhd.statistics.GraphStatistics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Check that the fork-join execution of {@link ClusterTasks} yields bit-identical estimates to the sequential loops.
+ *
+ * The check is compiled with the test sources and not part of the library. Usage:
+ * {@code java -cp target/classes:target/test-classes kn.uni.dbis.alhd.estimator.ParallelLabelsCheck
+ * <data dir> <query file>}, with the data directory and query file as for {@link PrecisionBenchmark}.
+ *
+ * As {@link ClusterTasks#THRESHOLD} is fixed when the class is loaded, the estimates of all queries are computed
+ * sequentially in this JVM and in parallel in a second JVM started with {@code -Dalhd.parallelLabels=1}, once with
+ * the default join and once with {@link kn.uni.dbis.alhd.estimator.operators.MergeOn}. The exit status is
+ * {@code 1} if any estimate differs in any bit.
+ */
+public final class ParallelLabelsCheck {
+
+    /** First argument making the process print its estimates instead of comparing them. */
+    private static final String PRINT = "--print";
+
+    private ParallelLabelsCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args data directory and query file
+     * @throws IOException if the statistics or queries cannot be read or the second JVM fails
+     * @throws InterruptedException if interrupted while waiting for the second JVM
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (PRINT.equals(args[0])) {
+            for (final long bits : estimates(Paths.get(args[1]), Paths.get(args[2]))) {
+                System.out.println(bits);
+            }
+            return;
+        }
+        final long[] sequential = estimates(Paths.get(args[0]), Paths.get(args[1]));
+
+        final Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        final Process process = new ProcessBuilder(java.toString(), "-Dalhd.parallelLabels=1",
+                "-cp", System.getProperty("java.class.path"), ParallelLabelsCheck.class.getName(),
+                PRINT, args[0], args[1]).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        final List<Long> parallel = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = reader.readLine()) != null;) {
+                parallel.add(Long.parseLong(line));
+            }
+        }
+        if (process.waitFor() != 0 || parallel.size() != sequential.length) {
+            throw new IOException("Parallel run failed.");
+        }
+
+        int differing = 0;
+        for (int i = 0; i < sequential.length; i++) {
+            if (sequential[i] != parallel.get(i)) {
+                differing++;
+                System.out.printf("estimate %d: sequential %s, parallel %s%n", i,
+                        Double.longBitsToDouble(sequential[i]), Double.longBitsToDouble(parallel.get(i)));
+            }
+        }
+        System.out.printf("%d of %d estimates differ%n", differing, sequential.length);
+        if (differing > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Estimates all queries with both joins and returns the bits of the estimates.
+     */
+    private static long[] estimates(final Path dir, final Path queryFile) throws IOException {
+        final GraphStatistics stats = GraphStatistics.readFrom(dir.resolve("stats.txt"));
+        final LabelDistribution dist = CSVLabelDistribution.read(stats, dir);
+        final GADbProperties dbProps = new GraphDBProperties(dist, stats, false);
+        final boolean parallel = ClusterTasks.THRESHOLD <= 1;
+        if (ClusterTasks.isParallel(dbProps) != parallel) {
+            throw new IllegalStateException(parallel ? "A single set of overlapping labels is never split."
+                    : "The sequential run would use fork-join tasks, alhd.parallelLabels is too low.");
+        }
+        final CardinalityEstimator estimator = new CardinalityEstimator(stats, dist, false);
+        final List<CypherQuery> queries = new ArrayList<>();
+        for (final String line : Files.readAllLines(queryFile)) {
+            if (!line.isBlank()) {
+                final String[] parts = line.split("\t", 2);
+                queries.add(CypherQuery.from(parts[0], parts.length > 1 ? parts[1] : ""));
+            }
+        }
+        final long[] bits = new long[2 * queries.size()];
+        for (int q = 0; q < queries.size(); q++) {
+            bits[2 * q] = Double.doubleToRawLongBits(estimator.estimate(queries.get(q), false, null));
+            bits[2 * q + 1] = Double.doubleToRawLongBits(estimator.estimate(queries.get(q), true, null));
+        }
+        return bits;
+    }
+}
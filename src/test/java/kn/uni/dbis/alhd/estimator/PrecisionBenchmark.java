@@ -0,0 +1,140 @@
+package kn.uni.dbis.alhd.estimator;
+
+import kn.uni.dbis.alhd.queries.CypherQuery;
+import kn.uni.dbis.alhd.statistics.GraphStatistics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Benchmark comparing label fractions stored in single precision with the default double precision.
+ *
+ * The benchmark is compiled with the test sources and not part of the library. Usage:
+ * {@code java -cp target/classes:target/test-classes kn.uni.dbis.alhd.estimator.PrecisionBenchmark
+ * <data dir> <query file> [repetitions]}, where the data directory contains
+ * {@code stats.txt} and the CSV label distribution, and every line of the query file is a Cypher pattern,
+ * optionally followed by a tab and the serialized property predicates (see {@link CypherQuery#from}).
+ *
+ * For both precisions, the estimates of all queries are computed and their operator trees kept, reporting
+ * the bytes of all distinct label vectors in the trees, the heap growth, and the throughput of repeated
+ * estimation, where every repetition starts from fresh database properties with empty caches. Finally the
+ * q-error of the single precision estimates against the double precision ones is reported.
+ */
+public final class PrecisionBenchmark {
+
+    private PrecisionBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args data directory, query file and optionally the number of repetitions
+     * @throws IOException if the statistics or queries cannot be read
+     */
+    public static void main(final String[] args) throws IOException {
+        final Path dir = Paths.get(args[0]);
+        final int reps = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        final GraphStatistics stats = GraphStatistics.readFrom(dir.resolve("stats.txt"));
+        final LabelDistribution dist = CSVLabelDistribution.read(stats, dir);
+        final List<CypherQuery> queries = new ArrayList<>();
+        for (final String line : Files.readAllLines(Paths.get(args[1]))) {
+            if (!line.isBlank()) {
+                final String[] parts = line.split("\t", 2);
+                queries.add(CypherQuery.from(parts[0], parts.length > 1 ? parts[1] : ""));
+            }
+        }
+
+        final double[][] estimates = new double[2][];
+        for (final boolean single : new boolean[] {false, true}) {
+            final String name = single ? "float32" : "float64";
+            final GADbProperties dbProps = new GraphDBProperties(dist, stats, false, single);
+            final long heapBefore = usedHeap();
+            final List<Expression> trees = new ArrayList<>(queries.size());
+            final double[] sizes = new double[queries.size()];
+            for (int q = 0; q < queries.size(); q++) {
+                final Expression tree = PatternToTreeConverter.mapToAlgebraExpression(stats, dbProps,
+                        queries.get(q), true, null);
+                trees.add(tree);
+                sizes[q] = tree.getLogicalProperties().getSize();
+            }
+            final long heap = usedHeap() - heapBefore;
+            final long vectorBytes = vectorBytes(trees);
+            estimates[single ? 1 : 0] = sizes;
+
+            // one untimed round to warm up the caches and the JIT
+            double checksum = estimateAll(stats, dist, single, queries);
+            final long start = System.nanoTime();
+            for (int r = 0; r < reps; r++) {
+                checksum += estimateAll(stats, dist, single, queries);
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s: label vector bytes %d, heap growth %d, %.1f queries/s (checksum %g)%n",
+                    name, vectorBytes, heap, reps * queries.size() / seconds, checksum);
+            trees.clear();
+        }
+
+        double maxQ = 1;
+        double sumLogQ = 0;
+        int differing = 0;
+        for (int q = 0; q < queries.size(); q++) {
+            final double d = estimates[0][q];
+            final double s = estimates[1][q];
+            if (d != s) {
+                differing++;
+                final double qError = d <= 0 || s <= 0 ? Double.POSITIVE_INFINITY : Math.max(d / s, s / d);
+                maxQ = Math.max(maxQ, qError);
+                sumLogQ += Math.log(qError);
+            }
+        }
+        System.out.printf("q-error float32 vs. float64: %d of %d estimates differ, max %.9f, geo. mean %.9f%n",
+                differing, queries.size(), maxQ, Math.exp(sumLogQ / Math.max(1, queries.size())));
+    }
+
+    /**
+     * Estimates all queries once on fresh database properties, whose expression factory holds no expression of a
+     * previous round, so that every operator tree is evaluated, only sharing sub-expressions between the queries.
+     *
+     * @return sum of the estimates
+     */
+    private static double estimateAll(final GraphStatistics stats, final LabelDistribution dist,
+                                      final boolean single, final List<CypherQuery> queries) {
+        final GADbProperties dbProps = new GraphDBProperties(dist, stats, false, single);
+        double sum = 0;
+        for (final CypherQuery query : queries) {
+            sum += PatternToTreeConverter.mapToAlgebraExpression(stats, dbProps, query, true, null)
+                    .getLogicalProperties().getSize();
+        }
+        return sum;
+    }
+
+    /** Sums the payload of all distinct label vectors in the logical properties of the given trees. */
+    private static long vectorBytes(final List<Expression> trees) {
+        final Set<LabelVector> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<Expression> stack = new ArrayDeque<>(trees);
+        final Set<Expression> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = 0;
+        while (!stack.isEmpty()) {
+            final Expression expr = stack.pop();
+            if (visited.add(expr)) {
+                for (final LabelVector v : expr.getLogicalProperties().getNodeLabelMap().values()) {
+                    if (seen.add(v)) {
+                        bytes += v.payloadBytes();
+                    }
+                }
+                stack.addAll(expr.getInputs());
+            }
+        }
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        final Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,488 @@
+package kn.uni.dbis.alhd.queries;
+
+import java.util.*;
+
+/**
+ * Check that two queries have the same {@link CanonicalQuery#key()} if and only if they are isomorphic, comparing the
+ * keys against a brute-force search over all bijections of the node variables.
+ *
+ * The check is compiled with the test sources and not part of the library. Usage:
+ * {@code java -cp target/classes:target/test-classes kn.uni.dbis.alhd.queries.CanonicalQueryCheck [queries]}, with
+ * the number of random queries defaulting to {@value #DEFAULT_QUERIES}.
+ *
+ * Random queries with labels, alternative relationship types, all directions, parallel edges, self loops and
+ * equality, range and IN-list predicates on nodes and relationships are bucketed by key, and every query of a bucket
+ * has to be isomorphic to the first one. Every query also has to keep its key under random renamings of its
+ * variables and reordering of its relationships, and its canonical query has to be its own canonical form. Stars,
+ * cliques, parallel and undirected edges with predicates, IN-lists and pairs of regular graphs that color refinement
+ * alone cannot tell apart are compared explicitly. All random choices use fixed seeds, and the exit status is
+ * {@code 1} if any comparison fails.
+ */
+public final class CanonicalQueryCheck {
+
+    /** Default number of random queries. */
+    private static final int DEFAULT_QUERIES = 20000;
+
+    /** Number of random renamings of each random query. */
+    private static final int RENAMINGS = 3;
+
+    /** Largest number of node variables compared by brute force. */
+    private static final int MAX_BRUTE_FORCE = 7;
+
+    private static final String[] LABELS = { "A", "B" };
+    private static final String[] TYPES = { null, "R", "S", "R|S" };
+
+    /** Number of failed comparisons. */
+    private static int failures;
+
+    /** Number of comparisons. */
+    private static int comparisons;
+
+    private CanonicalQueryCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args optional number of random queries
+     */
+    public static void main(final String[] args) {
+        final int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_QUERIES;
+        randomQueries(numQueries, new Random(11));
+        stars(new Random(12));
+        cliques(new Random(13));
+        parallelEdges(new Random(14));
+        inLists(new Random(15));
+        regularGraphs(new Random(16));
+        System.out.printf("%d of %d comparisons failed%n", failures, comparisons);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Buckets random queries by key, checks that each bucket only contains isomorphic queries and that renamed
+     * copies share the key.
+     */
+    private static void randomQueries(final int numQueries, final Random rnd) {
+        final Map<String, List<CypherQuery>> buckets = new HashMap<>();
+        for (int i = 0; i < numQueries; i++) {
+            final int n = 2 + rnd.nextInt(4);
+            final CypherQuery query = random(rnd, n, n - 1 + rnd.nextInt(4));
+            final CanonicalQuery canonical = query.canonical();
+            buckets.computeIfAbsent(canonical.key(), k -> new ArrayList<>()).add(query);
+            check(canonical.getQuery().canonical().key().equals(canonical.key()),
+                    "canonical query is not canonical", query);
+            for (int r = 0; r < RENAMINGS; r++) {
+                check(renamed(query, rnd).canonical().key().equals(canonical.key()),
+                        "renamed query has a different key", query);
+            }
+        }
+        int merged = 0;
+        for (final List<CypherQuery> bucket : buckets.values()) {
+            for (final CypherQuery query : bucket.subList(1, bucket.size())) {
+                merged++;
+                check(isomorphic(bucket.get(0), query), "non-isomorphic queries share a key", query);
+            }
+        }
+        System.out.printf("random: %d queries, %d keys, %d queries sharing a key%n",
+                numQueries, buckets.size(), merged);
+    }
+
+    /**
+     * Stars of mixed directions with predicates on some leaves and relationships.
+     */
+    private static void stars(final Random rnd) {
+        for (final int leaves : new int[] { 4, 6, 16 }) {
+            final CypherQuery plain = star(leaves, -1, -1);
+            final CypherQuery edgePred = star(leaves, 1, -1);
+            final CypherQuery otherEdgePred = star(leaves, leaves - 1, -1);
+            final CypherQuery nodePred = star(leaves, -1, 1);
+            compare(plain, edgePred, false);
+            compare(edgePred, otherEdgePred, true);
+            compare(edgePred, nodePred, false);
+            compare(nodePred, star(leaves, -1, leaves - 1), true);
+            for (final CypherQuery query : List.of(plain, edgePred, nodePred)) {
+                compare(query, renamed(query, rnd), true);
+            }
+        }
+    }
+
+    /**
+     * Star with relationships from the center to the even leaves and from the odd leaves to the center, and an
+     * equality predicate on the relationship to one leaf and on one leaf, {@code -1} for none.
+     */
+    private static CypherQuery star(final int leaves, final int predEdge, final int predNode) {
+        final CypherPattern pattern = new CypherPattern("c", "A");
+        final Map<String, Map<String, PropSelection>> nodePreds = new HashMap<>();
+        final Map<String, Map<String, PropSelection>> edgePreds = new HashMap<>();
+        for (int i = 0; i < leaves; i++) {
+            final String leaf = "l" + i;
+            final String rel = pattern.rel("c", "R", i % 2 == 0 ? Direction.OUTGOING : Direction.INCOMING, leaf);
+            if (i == predEdge) {
+                edgePreds.put(rel, Map.of("w", new PropSelection("w", "=", 1)));
+            }
+            if (i == predNode) {
+                nodePreds.put(leaf, Map.of("p", new PropSelection("p", "x")));
+            }
+        }
+        return new CypherQuery(pattern, nodePreds, edgePreds);
+    }
+
+    /**
+     * Undirected cliques with predicates on adjacent or disjoint relationships.
+     */
+    private static void cliques(final Random rnd) {
+        for (final int size : new int[] { 4, 6, 9 }) {
+            final CypherQuery one = clique(size, new int[][] { { 0, 1 } });
+            compare(one, clique(size, new int[][] { { 2, 3 } }), true);
+            final CypherQuery adjacent = clique(size, new int[][] { { 0, 1 }, { 1, 2 } });
+            final CypherQuery disjoint = clique(size, new int[][] { { 0, 1 }, { 2, 3 } });
+            compare(adjacent, clique(size, new int[][] { { 3, 2 }, { 2, 0 } }), true);
+            compare(adjacent, disjoint, false);
+            compare(one, adjacent, false);
+            for (final CypherQuery query : List.of(one, adjacent, disjoint)) {
+                compare(query, renamed(query, rnd), true);
+            }
+        }
+    }
+
+    /**
+     * Undirected clique with a range predicate on the given pairs of nodes.
+     */
+    private static CypherQuery clique(final int size, final int[][] predPairs) {
+        final CypherPattern pattern = new CypherPattern();
+        final Map<String, Map<String, PropSelection>> edgePreds = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                final String rel = pattern.rel("k" + i, "R", Direction.BOTH, "k" + j);
+                for (final int[] pair : predPairs) {
+                    if (Math.min(pair[0], pair[1]) == i && Math.max(pair[0], pair[1]) == j) {
+                        edgePreds.put(rel, Map.of("w", new PropSelection("w", 0, 5)));
+                    }
+                }
+            }
+        }
+        return new CypherQuery(pattern, Map.of(), edgePreds);
+    }
+
+    /**
+     * Parallel, anti-parallel and undirected relationships between the same nodes, with and without predicates.
+     */
+    private static void parallelEdges(final Random rnd) {
+        final PropSelection pred = PropSelection.in("w", List.of("x", "y"));
+        final List<CypherQuery> queries = new ArrayList<>();
+        for (final Direction second : Direction.values()) {
+            for (final String secondType : new String[] { "R", "S" }) {
+                for (final boolean withPred : new boolean[] { false, true }) {
+                    final CypherPattern pattern = new CypherPattern("a", "A");
+                    pattern.var("c", "A");
+                    final String rel = pattern.rel("a", "R", Direction.OUTGOING, "b");
+                    pattern.rel("a", secondType, second, "b");
+                    pattern.rel("b", "S", Direction.BOTH, "c");
+                    queries.add(new CypherQuery(pattern, Map.of(),
+                            withPred ? Map.of(rel, Map.of("w", pred)) : Map.of()));
+                }
+            }
+        }
+        for (final CypherQuery x : queries) {
+            compare(x, renamed(x, rnd), true);
+            for (final CypherQuery y : queries) {
+                compare(x, y, null);
+            }
+        }
+        final CypherPattern twice = new CypherPattern();
+        twice.rel("a", "R", Direction.BOTH, "b");
+        twice.rel("a", "R", Direction.BOTH, "b");
+        final CypherPattern once = new CypherPattern();
+        once.rel("a", "R", Direction.BOTH, "b");
+        compare(new CypherQuery(twice), new CypherQuery(once), false);
+    }
+
+    /**
+     * IN-lists of strings and numbers, including strings that look like the rendering of an IN-list.
+     */
+    private static void inLists(final Random rnd) {
+        final List<PropSelection> preds = List.of(
+                PropSelection.in("p", List.of("a", "b", "c")),
+                PropSelection.in("p", List.of("c", "a", "b")),
+                PropSelection.in("p", List.of("a' | 'b", "c")),
+                PropSelection.in("p", List.of("a", "b")),
+                PropSelection.in("p", List.of(1, 2.0, 3)),
+                PropSelection.in("p", List.of(3, 1)),
+                PropSelection.in("p", List.of("1.0", 2)),
+                PropSelection.anyOf("p", List.of(new double[] { 1, 1 }, new double[] { 3, 3 })),
+                PropSelection.anyOf("p", List.of(new double[] { 0, 2 }, new double[] { 1, 3 })),
+                new PropSelection("p", 0, 3),
+                new PropSelection("p", "a"),
+                new PropSelection("q", "a"));
+        final List<CypherQuery> queries = new ArrayList<>();
+        for (final PropSelection pred : preds) {
+            final CypherPattern pattern = new CypherPattern();
+            final String rel = pattern.rel("a", "R", Direction.OUTGOING, "b");
+            pattern.rel("b", "R", Direction.OUTGOING, "c");
+            queries.add(new CypherQuery(pattern, Map.of("a", Map.of("p", pred)), Map.of()));
+            queries.add(new CypherQuery(pattern, Map.of(), Map.of(rel, Map.of("p", pred))));
+        }
+        for (final CypherQuery x : queries) {
+            compare(x, renamed(x, rnd), true);
+            for (final CypherQuery y : queries) {
+                compare(x, y, null);
+            }
+        }
+        final CypherPattern pattern = new CypherPattern();
+        pattern.rel("a", "R", Direction.OUTGOING, "b");
+        compare(new CypherQuery(pattern, Map.of("a", Map.of("p", preds.get(2))), Map.of()),
+                new CypherQuery(pattern, Map.of("a", Map.of("p", preds.get(0))), Map.of()), false);
+    }
+
+    /**
+     * Regular graphs that have the same stable coloring: the prism and {@code K3,3}, and a cycle of length 12 and two
+     * cycles of length 6.
+     */
+    private static void regularGraphs(final Random rnd) {
+        final CypherPattern prism = new CypherPattern();
+        for (final int[] e : new int[][] { { 0, 1 }, { 1, 2 }, { 2, 0 }, { 3, 4 }, { 4, 5 }, { 5, 3 },
+                { 0, 3 }, { 1, 4 }, { 2, 5 } }) {
+            prism.rel("p" + e[0], null, Direction.BOTH, "p" + e[1]);
+        }
+        final CypherPattern k33 = new CypherPattern();
+        for (int i = 0; i < 3; i++) {
+            for (int j = 3; j < 6; j++) {
+                k33.rel("k" + i, null, Direction.BOTH, "k" + j);
+            }
+        }
+        compare(new CypherQuery(prism), new CypherQuery(k33), false);
+        compare(new CypherQuery(prism), renamed(new CypherQuery(prism), rnd), true);
+        compare(new CypherQuery(k33), renamed(new CypherQuery(k33), rnd), true);
+
+        final CypherPattern cycle = new CypherPattern();
+        final CypherPattern twoCycles = new CypherPattern();
+        for (int i = 0; i < 12; i++) {
+            cycle.rel("a" + i, "a" + (i + 1) % 12);
+        }
+        for (int i = 0; i < 6; i++) {
+            twoCycles.rel("b" + i, "b" + (i + 1) % 6);
+            twoCycles.rel("c" + i, "c" + (i + 1) % 6);
+        }
+        compare(new CypherQuery(cycle), new CypherQuery(twoCycles), false);
+        compare(new CypherQuery(cycle), renamed(new CypherQuery(cycle), rnd), true);
+        compare(new CypherQuery(twoCycles), renamed(new CypherQuery(twoCycles), rnd), true);
+    }
+
+    /**
+     * Compares the keys of two queries with the expected outcome, and with the brute-force isomorphism test if both
+     * are small enough. An expectation of {@code null} relies on the brute-force test alone.
+     */
+    private static void compare(final CypherQuery x, final CypherQuery y, final Boolean expected) {
+        final boolean sameKey = x.canonical().key().equals(y.canonical().key());
+        if (expected != null) {
+            check(sameKey == expected, expected ? "isomorphic queries have different keys"
+                    : "non-isomorphic queries share a key", x);
+        }
+        if (x.getPattern().numNodeVars() <= MAX_BRUTE_FORCE && y.getPattern().numNodeVars() <= MAX_BRUTE_FORCE) {
+            check(sameKey == isomorphic(x, y), "key equality differs from isomorphism", x);
+        }
+    }
+
+    private static void check(final boolean ok, final String message, final CypherQuery query) {
+        comparisons++;
+        if (!ok) {
+            failures++;
+            if (failures <= 10) {
+                System.out.println(message + ": " + query.toCypher(false) + " " + query.getNodePredicates()
+                        + " " + query.getEdgePredicates());
+            }
+        }
+    }
+
+    /**
+     * Random query with {@code n} node variables, a random spanning tree and {@code m - n + 1} further relationships
+     * between random, possibly equal, nodes, some of them parallel to the previous one.
+     */
+    private static CypherQuery random(final Random rnd, final int n, final int m) {
+        final CypherPattern pattern = new CypherPattern();
+        final Map<String, Map<String, PropSelection>> nodePreds = new HashMap<>();
+        final Map<String, Map<String, PropSelection>> edgePreds = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            final String var = "v" + i;
+            switch (rnd.nextInt(4)) {
+            case 0:
+                pattern.var(var, LABELS[rnd.nextInt(LABELS.length)]);
+                break;
+            case 1:
+                pattern.var(var, LABELS);
+                break;
+            default:
+                pattern.var(var);
+                break;
+            }
+            if (rnd.nextInt(4) == 0) {
+                nodePreds.put(var, randomPredicates(rnd));
+            }
+        }
+        String[] last = null;
+        for (int i = 1; i <= m; i++) {
+            final String[] ends;
+            if (i < n) {
+                ends = new String[] { "v" + rnd.nextInt(i), "v" + i };
+            } else if (rnd.nextInt(3) == 0) {
+                ends = last;
+            } else {
+                ends = new String[] { "v" + rnd.nextInt(n), "v" + rnd.nextInt(n) };
+            }
+            final Direction dir = Direction.values()[rnd.nextInt(Direction.values().length)];
+            final String rel = pattern.rel(ends[0], TYPES[rnd.nextInt(TYPES.length)], dir, ends[1]);
+            if (rnd.nextInt(5) == 0) {
+                edgePreds.put(rel, randomPredicates(rnd));
+            }
+            last = ends;
+        }
+        return new CypherQuery(pattern, nodePreds, edgePreds);
+    }
+
+    private static Map<String, PropSelection> randomPredicates(final Random rnd) {
+        final Map<String, PropSelection> preds = new HashMap<>();
+        final int num = 1 + rnd.nextInt(2);
+        for (int i = 0; i < num; i++) {
+            final String prop = "p" + rnd.nextInt(2);
+            final PropSelection pred;
+            switch (rnd.nextInt(4)) {
+            case 0:
+                pred = new PropSelection(prop, "s" + rnd.nextInt(2));
+                break;
+            case 1:
+                pred = new PropSelection(prop, 0, rnd.nextInt(3));
+                break;
+            case 2:
+                pred = PropSelection.in(prop, List.of("s" + rnd.nextInt(2), "s' | 's2"));
+                break;
+            default:
+                pred = PropSelection.in(prop, List.of(rnd.nextInt(2), 2, "s0"));
+                break;
+            }
+            preds.put(prop, pred);
+        }
+        return preds;
+    }
+
+    /**
+     * Copy of the query with randomly renamed node variables and shuffled relationships.
+     */
+    private static CypherQuery renamed(final CypherQuery query, final Random rnd) {
+        final List<String> vars = query.sortedNodeVars();
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < vars.size(); i++) {
+            names.add("x_" + i);
+        }
+        Collections.shuffle(names, rnd);
+        final Map<String, String> renaming = new HashMap<>();
+        for (int i = 0; i < vars.size(); i++) {
+            renaming.put(vars.get(i), names.get(i));
+        }
+        return rename(query, renaming, rnd);
+    }
+
+    private static CypherQuery rename(final CypherQuery query, final Map<String, String> renaming,
+                                      final Random rnd) {
+        final CypherPattern pattern = new CypherPattern();
+        final Map<String, Map<String, PropSelection>> nodePreds = new HashMap<>();
+        final Map<String, Map<String, PropSelection>> edgePreds = new HashMap<>();
+        final List<String> vars = query.sortedNodeVars();
+        Collections.shuffle(vars, rnd);
+        for (final String var : vars) {
+            pattern.var(renaming.get(var), query.getPattern().getNodeVars().get(var).toArray(String[]::new));
+            final Map<String, PropSelection> preds = query.getNodePredicates().get(var);
+            if (preds != null) {
+                nodePreds.put(renaming.get(var), preds);
+            }
+        }
+        final List<CypherPattern.Relationship> rels = new ArrayList<>(query.getPattern().getRelationships());
+        Collections.shuffle(rels, rnd);
+        for (final CypherPattern.Relationship r : rels) {
+            final String rel = pattern.rel(renaming.get(r.getSource()), r.getType().orElse(null),
+                    r.isDirected() ? Direction.OUTGOING : Direction.BOTH, renaming.get(r.getTarget()));
+            final Map<String, PropSelection> preds = query.getEdgePredicates().get(r.name());
+            if (preds != null) {
+                edgePreds.put(rel, preds);
+            }
+        }
+        return new CypherQuery(pattern, nodePreds, edgePreds);
+    }
+
+    /**
+     * Tests by trying all bijections of the node variables whether the queries are equal up to renaming.
+     */
+    private static boolean isomorphic(final CypherQuery x, final CypherQuery y) {
+        final List<String> xs = x.sortedNodeVars();
+        final List<String> ys = y.sortedNodeVars();
+        if (xs.size() != ys.size()
+                || x.getPattern().numRelationships() != y.getPattern().numRelationships()) {
+            return false;
+        }
+        final Map<List<Object>, Integer> target = structure(y, Collections.emptyMap());
+        final int[] perm = new int[xs.size()];
+        for (int i = 0; i < perm.length; i++) {
+            perm[i] = i;
+        }
+        final Map<String, String> renaming = new HashMap<>();
+        do {
+            for (int i = 0; i < perm.length; i++) {
+                renaming.put(xs.get(i), ys.get(perm[i]));
+            }
+            if (structure(x, renaming).equals(target)) {
+                return true;
+            }
+        } while (nextPermutation(perm));
+        return false;
+    }
+
+    /**
+     * Multiset of the renamed nodes with their labels and predicates and of the renamed relationships with their
+     * types and predicates, undirected relationships with their end points in lexicographic order.
+     */
+    private static Map<List<Object>, Integer> structure(final CypherQuery query, final Map<String, String> renaming) {
+        final Map<List<Object>, Integer> elements = new HashMap<>();
+        for (final Map.Entry<String, Set<String>> e : query.getPattern().getNodeVars().entrySet()) {
+            elements.merge(List.of(renaming.getOrDefault(e.getKey(), e.getKey()), e.getValue(),
+                    query.getNodePredicates().getOrDefault(e.getKey(), Map.of())), 1, Integer::sum);
+        }
+        for (final CypherPattern.Relationship r : query.getPattern().getRelationships()) {
+            String source = renaming.getOrDefault(r.getSource(), r.getSource());
+            String target = renaming.getOrDefault(r.getTarget(), r.getTarget());
+            if (!r.isDirected() && source.compareTo(target) > 0) {
+                final String tmp = source;
+                source = target;
+                target = tmp;
+            }
+            elements.merge(List.of(source, target, r.isDirected(), new TreeSet<>(r.getTypes()),
+                    query.getEdgePredicates().getOrDefault(r.name(), Map.of())), 1, Integer::sum);
+        }
+        return elements;
+    }
+
+    private static boolean nextPermutation(final int[] perm) {
+        int i = perm.length - 2;
+        while (i >= 0 && perm[i] >= perm[i + 1]) {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        int j = perm.length - 1;
+        while (perm[j] <= perm[i]) {
+            j--;
+        }
+        swap(perm, i, j);
+        for (int l = i + 1, r = perm.length - 1; l < r; l++, r--) {
+            swap(perm, l, r);
+        }
+        return true;
+    }
+
+    private static void swap(final int[] perm, final int i, final int j) {
+        final int tmp = perm[i];
+        perm[i] = perm[j];
+        perm[j] = tmp;
+    }
+}